@@ -0,0 +1,63 @@
+package com.example.networkrequestsapi;
+
+import com.example.networkrequestsapi.NetworkService.ConnectivitySource;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+
+/**
+ * The ConnectivitySource the NetworkService uses unless it is given another. It reads the active network from the
+ * ConnectivityManager and listens for the connectivity broadcast while it has a listener.
+ *
+ * @author Saquib Hafiz
+ *
+ */
+class AndroidConnectivitySource extends BroadcastReceiver implements ConnectivitySource {
+	private final Context context;
+	private final ConnectivityManager connectivityManager;
+	private Listener listener;
+
+	AndroidConnectivitySource(Context context) {
+		this.context = context;
+		this.connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+	}
+
+	@Override
+	public boolean isConnected() {
+		NetworkInfo network = connectivityManager.getActiveNetworkInfo();
+		return network != null && network.isConnected();
+	}
+
+	@Override
+	public boolean isMetered() {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+			return connectivityManager.isActiveNetworkMetered();
+
+		NetworkInfo network = connectivityManager.getActiveNetworkInfo();
+		return network == null || (network.getType() != ConnectivityManager.TYPE_WIFI && network.getType() != ConnectivityManager.TYPE_ETHERNET);
+	}
+
+	@Override
+	public synchronized void setListener(Listener listener) {
+		if (this.listener == null && listener != null)
+			context.registerReceiver(this, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+		else if (this.listener != null && listener == null)
+			context.unregisterReceiver(this);
+		this.listener = listener;
+	}
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		Listener current;
+		synchronized (this) {
+			current = listener;
+		}
+		if (current != null)
+			current.onConnectivityChanged();
+	}
+}
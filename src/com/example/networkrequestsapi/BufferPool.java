@@ -0,0 +1,269 @@
+package com.example.networkrequestsapi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import android.util.Log;
+
+/**
+ * Recycles the byte arrays that bodies are read into and written from, so a burst of requests does not leave a
+ * trail of large short-lived arrays for the garbage collector. Arrays come in power of two size classes from 4KB to
+ * 256KB and the idle ones are kept up to a budget in bytes. A larger array is allocated as needed and never kept.
+ *
+ * In debug mode every borrowed array is tracked, and one that is collected without being released is logged with
+ * the stack that borrowed it.
+ *
+ * @author Saquib Hafiz
+ *
+ */
+class BufferPool {
+	private static final int MIN_CLASS_SIZE = 4 * 1024;
+	private static final int CLASS_COUNT = 7;
+	// A Content-Length above this is not trusted to size storage up front.
+	static final int MAX_PRESIZE = 16 * 1024 * 1024;
+
+	private final ArrayDeque<byte[]>[] free;
+	private long maxSize;
+	private long size = 0;
+	private long hits = 0;
+	private long allocations = 0;
+	private long leaks = 0;
+	private boolean debug = false;
+	private final Map<byte[], Lease> leased = new WeakHashMap<byte[], Lease>();
+	private final Set<Lease> leases = Collections.newSetFromMap(new IdentityHashMap<Lease, Boolean>());
+	private final ReferenceQueue<byte[]> collected = new ReferenceQueue<byte[]>();
+
+	/**
+	 * Remembers where a borrowed array was taken, and is queued if the array is collected before it is released.
+	 */
+	private static class Lease extends WeakReference<byte[]> {
+		private final Throwable borrowedAt = new Throwable("Buffer borrowed here");
+
+		private Lease(byte[] buffer, ReferenceQueue<byte[]> queue) {
+			super(buffer, queue);
+		}
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	BufferPool(long maxSize) {
+		this.maxSize = maxSize;
+		free = new ArrayDeque[CLASS_COUNT];
+		for (int i = 0; i < CLASS_COUNT; i++)
+			free[i] = new ArrayDeque<byte[]>();
+	}
+
+	/**
+	 * @return An array of at least the given length. Its contents are not cleared.
+	 */
+	synchronized byte[] acquire(int length) {
+		int sizeClass = sizeClassOf(length);
+		byte[] buffer = null;
+		if (sizeClass >= 0) {
+			buffer = free[sizeClass].pollLast();
+			if (buffer != null) {
+				size -= buffer.length;
+				hits++;
+			}
+		}
+		if (buffer == null) {
+			buffer = new byte[sizeClass >= 0 ? MIN_CLASS_SIZE << sizeClass : length];
+			allocations++;
+		}
+
+		if (debug) {
+			expungeLeases();
+			Lease lease = new Lease(buffer, collected);
+			leased.put(buffer, lease);
+			leases.add(lease);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Hands an array back. It must not be used again by the caller.
+	 */
+	synchronized void release(byte[] buffer) {
+		if (buffer == null)
+			return;
+
+		if (debug) {
+			Lease lease = leased.remove(buffer);
+			if (lease == null) {
+				// Released twice, or never borrowed. Keeping it could hand the same array to two readers.
+				Log.w("NetworkService", "Released a buffer that was not borrowed from the pool.", new Throwable());
+				return;
+			}
+			leases.remove(lease);
+			lease.clear();
+		}
+
+		int sizeClass = sizeClassOf(buffer.length);
+		if (sizeClass < 0 || MIN_CLASS_SIZE << sizeClass != buffer.length || size + buffer.length > maxSize)
+			return;
+		free[sizeClass].addLast(buffer);
+		size += buffer.length;
+	}
+
+	private void expungeLeases() {
+		Lease lease;
+		while ((lease = (Lease) collected.poll()) != null) {
+			if (leases.remove(lease)) {
+				leaks++;
+				Log.w("NetworkService", "A buffer was never released to the pool.", lease.borrowedAt);
+			}
+		}
+	}
+
+	/**
+	 * @return The size class for the length, or -1 if it is too large to be pooled.
+	 */
+	private static int sizeClassOf(int length) {
+		int sizeClass = 0;
+		while ((MIN_CLASS_SIZE << sizeClass) < length) {
+			if (++sizeClass == CLASS_COUNT)
+				return -1;
+		}
+		return sizeClass;
+	}
+
+	synchronized void setDebug(boolean debug) {
+		this.debug = debug;
+		if (!debug) {
+			leased.clear();
+			leases.clear();
+		}
+	}
+
+	synchronized void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+		trimToSize(maxSize);
+	}
+
+	synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	synchronized long size() {
+		return size;
+	}
+
+	/**
+	 * Drops idle arrays, the largest first, until no more than the limit is kept.
+	 */
+	synchronized void trimToSize(long limit) {
+		for (int i = CLASS_COUNT - 1; i >= 0 && size > limit; i--) {
+			while (size > limit && !free[i].isEmpty())
+				size -= free[i].pollLast().length;
+		}
+	}
+
+	/**
+	 * @return The number of arrays that were handed out from the pool.
+	 */
+	synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * @return The number of arrays that had to be allocated.
+	 */
+	synchronized long getAllocationCount() {
+		return allocations;
+	}
+
+	/**
+	 * @return The number of borrowed arrays found collected without being released, in debug mode.
+	 */
+	synchronized long getLeakCount() {
+		if (debug)
+			expungeLeases();
+		return leaks;
+	}
+
+	/**
+	 * A growing in-memory body whose storage is borrowed from the pool. Close it to hand the storage back.
+	 */
+	static class PooledOutputStream extends OutputStream {
+		private final BufferPool pool;
+		private byte[] buffer;
+		private int count = 0;
+
+		/**
+		 * @param expectedLength The expected number of bytes, or -1 if unknown.
+		 */
+		PooledOutputStream(BufferPool pool, long expectedLength) {
+			this.pool = pool;
+			this.buffer = pool.acquire((int) Math.max(MIN_CLASS_SIZE, Math.min(expectedLength, MAX_PRESIZE)));
+		}
+
+		@Override
+		public void write(int b) {
+			ensureCapacity(count + 1);
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) {
+			ensureCapacity(count + length);
+			System.arraycopy(bytes, offset, buffer, count, length);
+			count += length;
+		}
+
+		/**
+		 * Reads the stream to its end straight into the body, without a separate read buffer.
+		 */
+		void readFrom(InputStream in) throws IOException {
+			int read;
+			do {
+				ensureCapacity(count + 1);
+				read = in.read(buffer, count, buffer.length - count);
+				if (read > 0)
+					count += read;
+			} while (read != -1);
+		}
+
+		private void ensureCapacity(int length) {
+			if (length <= buffer.length)
+				return;
+			byte[] larger = pool.acquire(Math.max(length, buffer.length * 2));
+			System.arraycopy(buffer, 0, larger, 0, count);
+			pool.release(buffer);
+			buffer = larger;
+		}
+
+		int size() {
+			return count;
+		}
+
+		/**
+		 * @return A copy of the body that belongs to the caller.
+		 */
+		byte[] toByteArray() {
+			byte[] bytes = new byte[count];
+			System.arraycopy(buffer, 0, bytes, 0, count);
+			return bytes;
+		}
+
+		String toString(String charset) throws UnsupportedEncodingException {
+			return new String(buffer, 0, count, charset);
+		}
+
+		@Override
+		public void close() {
+			if (buffer != null) {
+				pool.release(buffer);
+				buffer = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package com.example.networkrequestsapi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Asks servers for gzip or deflate responses and decodes them as they are read, so listeners always see the
+ * plain body. It also counts body bytes on the wire against body bytes before encoding and after decoding.
+ *
+ * @author Saquib Hafiz
+ *
+ */
+class CompressionInterceptor implements HttpRequestInterceptor, HttpResponseInterceptor {
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicLong bytesSentUncompressed = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final AtomicLong bytesReceivedDecompressed = new AtomicLong();
+
+	@Override
+	public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+		if (!request.containsHeader("Accept-Encoding"))
+			request.addHeader("Accept-Encoding", "gzip, deflate");
+	}
+
+	@Override
+	public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+		HttpEntity entity = response.getEntity();
+		if (entity == null)
+			return;
+
+		Header encoding = entity.getContentEncoding();
+		String coding = encoding == null ? "identity" : encoding.getValue().trim().toLowerCase();
+		if (!coding.equals("gzip") && !coding.equals("x-gzip") && !coding.equals("deflate") && !coding.equals("identity"))
+			return;
+
+		response.setEntity(new DecodingEntity(entity, coding));
+		if (!coding.equals("identity")) {
+			response.removeHeaders("Content-Encoding");
+			response.removeHeaders("Content-Length");
+			response.removeHeaders("Content-MD5");
+		}
+	}
+
+	/**
+	 * Records a request body that went out, before and after compression.
+	 */
+	void countSent(long uncompressed, long onWire) {
+		bytesSentUncompressed.addAndGet(uncompressed);
+		bytesSent.addAndGet(onWire);
+	}
+
+	long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	long getBytesSentUncompressed() {
+		return bytesSentUncompressed.get();
+	}
+
+	long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	long getBytesReceivedDecompressed() {
+		return bytesReceivedDecompressed.get();
+	}
+
+	static byte[] gzip(byte[] content) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 4 + 64);
+		GZIPOutputStream gzip = new GZIPOutputStream(out);
+		gzip.write(content);
+		gzip.close();
+		return out.toByteArray();
+	}
+
+	private class DecodingEntity extends HttpEntityWrapper {
+		private final String coding;
+
+		private DecodingEntity(HttpEntity wrapped, String coding) {
+			super(wrapped);
+			this.coding = coding;
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			InputStream wire = new CountingInputStream(wrappedEntity.getContent(), bytesReceived);
+			if (coding.equals("identity"))
+				return new CountingInputStream(wire, bytesReceivedDecompressed);
+			if (coding.equals("deflate"))
+				return new CountingInputStream(inflate(wire), bytesReceivedDecompressed);
+			return new CountingInputStream(new GZIPInputStream(wire), bytesReceivedDecompressed);
+		}
+
+		/**
+		 * Servers send "deflate" both with and without the zlib wrapper, so look at the first two bytes.
+		 */
+		private InputStream inflate(InputStream wire) throws IOException {
+			PushbackInputStream in = new PushbackInputStream(wire, 2);
+			int first = in.read();
+			int second = in.read();
+			if (second != -1)
+				in.unread(second);
+			if (first != -1)
+				in.unread(first);
+
+			boolean zlib = first != -1 && second != -1 && (first & 0x0f) == 8 && ((first << 8) | second) % 31 == 0;
+			return new InflaterInputStream(in, new Inflater(!zlib));
+		}
+
+		@Override
+		public long getContentLength() {
+			return coding.equals("identity") ? wrappedEntity.getContentLength() : -1;
+		}
+
+		@Override
+		public Header getContentEncoding() {
+			return null;
+		}
+
+		@Override
+		public boolean isRepeatable() {
+			return false;
+		}
+	}
+
+	private static class CountingInputStream extends FilterInputStream {
+		private final AtomicLong counter;
+
+		private CountingInputStream(InputStream in, AtomicLong counter) {
+			super(in);
+			this.counter = counter;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b != -1)
+				counter.incrementAndGet();
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int read = in.read(buffer, offset, length);
+			if (read > 0)
+				counter.addAndGet(read);
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(n);
+			counter.addAndGet(skipped);
+			return skipped;
+		}
+	}
+}
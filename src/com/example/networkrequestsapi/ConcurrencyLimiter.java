@@ -0,0 +1,116 @@
+package com.example.networkrequestsapi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.example.networkrequestsapi.NetworkService.LimitChange;
+
+/**
+ * Finds the max number of calls from the latency and errors the service sees, between a min and a max.
+ *
+ * Two averages of the time to the response headers are kept: a slow one that stands for the network with
+ * nothing queued, and a fast one for right now. While the fast one stays near the slow one the limit grows by
+ * about its square root per sample. When calls start to queue up at the server or on the radio and latency rises,
+ * the ratio between the two shrinks the limit. A failed or throttled call cuts it by a tenth straight away.
+ *
+ * @author Saquib Hafiz
+ *
+ */
+class ConcurrencyLimiter {
+	private static final double TOLERANCE = 1.5;
+	private static final double SMOOTHING = 0.2;
+	private static final double BACKOFF = 0.9;
+	private static final int LONG_WINDOW = 100;
+	private static final int SHORT_WINDOW = 10;
+	private static final int HISTORY_SIZE = 64;
+
+	private final int minLimit;
+	private final int maxLimit;
+	private double limit;
+	private double longRtt = 0;
+	private double shortRtt = 0;
+	private final long[] historyTimes = new long[HISTORY_SIZE];
+	private final int[] historyLimits = new int[HISTORY_SIZE];
+	private int historyCount = 0;
+	private volatile int currentLimit;
+
+	ConcurrencyLimiter(int minLimit, int maxLimit, int initialLimit) {
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+		this.currentLimit = (int) limit;
+		record(currentLimit);
+	}
+
+	/**
+	 * @param rtt The time from sending the request to receiving the response headers, in nanoseconds.
+	 * @param inFlight The number of calls in flight when the response arrived.
+	 * @param dropped True if the call failed or the server said it was overloaded.
+	 * @return The limit to apply.
+	 */
+	synchronized int onSample(long rtt, int inFlight, boolean dropped) {
+		if (dropped) {
+			update(limit * BACKOFF);
+			return currentLimit;
+		}
+
+		if (longRtt == 0) {
+			longRtt = rtt;
+			shortRtt = rtt;
+			return currentLimit;
+		}
+
+		shortRtt += (rtt - shortRtt) / SHORT_WINDOW;
+		longRtt += (rtt - longRtt) / LONG_WINDOW;
+		// Once latency has settled well below the slow average, let the slow average catch up instead of growing forever.
+		if (longRtt / shortRtt > 2)
+			longRtt = (longRtt + shortRtt) / 2;
+
+		double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+		double target = limit * gradient + Math.sqrt(limit);
+		// A limit that is not being used says nothing about whether more calls would help.
+		if (target > limit && inFlight < limit / 2)
+			return currentLimit;
+
+		update(limit * (1 - SMOOTHING) + target * SMOOTHING);
+		return currentLimit;
+	}
+
+	private void update(double next) {
+		limit = Math.max(minLimit, Math.min(maxLimit, next));
+		int rounded = (int) limit;
+		if (rounded != currentLimit) {
+			currentLimit = rounded;
+			record(rounded);
+		}
+	}
+
+	private void record(int value) {
+		int index = historyCount++ % HISTORY_SIZE;
+		historyTimes[index] = System.currentTimeMillis();
+		historyLimits[index] = value;
+	}
+
+	int getLimit() {
+		return currentLimit;
+	}
+
+	int getMinLimit() {
+		return minLimit;
+	}
+
+	int getMaxLimit() {
+		return maxLimit;
+	}
+
+	/**
+	 * @return The most recent changes to the limit, oldest first.
+	 */
+	synchronized List<LimitChange> getHistory() {
+		int count = Math.min(historyCount, HISTORY_SIZE);
+		List<LimitChange> history = new ArrayList<LimitChange>(count);
+		for (int i = historyCount - count; i < historyCount; i++)
+			history.add(new LimitChange(historyTimes[i % HISTORY_SIZE], historyLimits[i % HISTORY_SIZE]));
+		return history;
+	}
+}
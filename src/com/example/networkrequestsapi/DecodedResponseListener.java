@@ -0,0 +1,81 @@
+package com.example.networkrequestsapi;
+
+import java.io.InputStream;
+
+import com.example.networkrequestsapi.NetworkService.NetworkResponseListener;
+
+/**
+ * A NetworkResponseListener that is given the decoded response instead of a stream. The body is decoded on the
+ * worker thread with the response's Content-Type and Content-Length, and a body that can not be decoded is
+ * reported to onError().
+ *
+ * <pre>
+ * networkService.get(url, headers, parameters, new DecodedResponseListener&lt;JSONObject&gt;(ResponseDecoders.JSON_OBJECT) {
+ *     public void onResult(JSONObject result) { ... }
+ *     public void onError(Exception error) { ... }
+ * });
+ * </pre>
+ *
+ * @param <T> The type of the decoded response.
+ *
+ * @author Saquib Hafiz
+ *
+ */
+public abstract class DecodedResponseListener<T> implements NetworkResponseListener {
+	private final ResponseDecoder<T> decoder;
+
+	/**
+	 * @param decoder The ResponseDecoder for the body.(cannot be null)
+	 */
+	public DecodedResponseListener(ResponseDecoder<T> decoder) {
+		this.decoder = decoder;
+	}
+
+	/**
+	 * Called with the decoded response.
+	 *
+	 * @param result The decoded response.
+	 */
+	public abstract void onResult(T result);
+
+	/**
+	 * Decodes a body whose headers are not known, e.g. when the listener is used outside the service.
+	 */
+	@Override
+	public final void onSuccess(InputStream data) {
+		onSuccess(data, null, -1, null);
+	}
+
+	/**
+	 * @param pool The pool the built-in decoders borrow their storage from, or null.
+	 */
+	final void onSuccess(InputStream data, String contentType, long contentLength, BufferPool pool) {
+		decode(data, contentType, contentLength, pool).run();
+	}
+
+	/**
+	 * Decodes the body on the calling thread.
+	 *
+	 * @return The callback that hands the result, or the decoding error, to this listener.
+	 */
+	final Runnable decode(InputStream data, String contentType, long contentLength, BufferPool pool) {
+		final T result;
+		try {
+			result = pool == null ? decoder.decode(data, contentType, contentLength)
+					: ResponseDecoders.decode(decoder, data, contentType, contentLength, pool);
+		} catch (final Exception e) {
+			return new Runnable() {
+				@Override
+				public void run() {
+					onError(e);
+				}
+			};
+		}
+		return new Runnable() {
+			@Override
+			public void run() {
+				onResult(result);
+			}
+		};
+	}
+}
@@ -0,0 +1,129 @@
+package com.example.networkrequestsapi;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.http.conn.scheme.HostNameResolver;
+
+import android.os.SystemClock;
+
+/**
+ * Remembers host name lookups for the connections the NetworkService opens, so a new connection to a host it
+ * talked to recently does not wait for DNS. Addresses are kept for a fixed time since the platform does not
+ * tell us the record's own TTL, and a host that does not resolve is remembered for a shorter time so a burst
+ * of requests to it fails fast. The least recently used hosts are dropped beyond a fixed count.
+ *
+ * @author Saquib Hafiz
+ *
+ */
+class DnsCache implements HostNameResolver {
+	private static final int MAX_ENTRIES = 128;
+
+	private static class DnsEntry {
+		private final InetAddress[] addresses;
+		private final long expiresAt;
+
+		/**
+		 * @param addresses The addresses, or null if the host did not resolve.
+		 */
+		private DnsEntry(InetAddress[] addresses, long expiresAt) {
+			this.addresses = addresses;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final LinkedHashMap<String, DnsEntry> entries = new LinkedHashMap<String, DnsEntry>(32, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, DnsEntry> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+	private long ttl;
+	private long negativeTtl;
+	private long hits = 0;
+	private long misses = 0;
+
+	DnsCache(long ttl, long negativeTtl) {
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+	}
+
+	@Override
+	public InetAddress resolve(String host) throws IOException {
+		return lookup(host)[0];
+	}
+
+	/**
+	 * @return Every address of the host, from the cache if it was looked up within the TTL.
+	 * @throws UnknownHostException If the host does not resolve, or did not within the negative TTL.
+	 */
+	InetAddress[] lookup(String host) throws UnknownHostException {
+		String key = host.toLowerCase(Locale.US);
+		synchronized (this) {
+			DnsEntry entry = entries.get(key);
+			if (entry != null && SystemClock.elapsedRealtime() < entry.expiresAt) {
+				hits++;
+				if (entry.addresses == null)
+					throw new UnknownHostException(host);
+				return entry.addresses;
+			}
+			misses++;
+		}
+
+		// Looked up outside the lock, so one slow host does not hold up the others.
+		InetAddress[] addresses;
+		try {
+			addresses = InetAddress.getAllByName(host);
+		} catch (UnknownHostException e) {
+			put(key, null);
+			throw e;
+		}
+		put(key, addresses);
+		return addresses;
+	}
+
+	private synchronized void put(String key, InetAddress[] addresses) {
+		long time = addresses == null ? negativeTtl : ttl;
+		if (time > 0)
+			entries.put(key, new DnsEntry(addresses, SystemClock.elapsedRealtime() + time));
+		else
+			entries.remove(key);
+	}
+
+	/**
+	 * Forgets every host, e.g. because the device moved to another network.
+	 */
+	synchronized void clear() {
+		entries.clear();
+	}
+
+	synchronized void setTtl(long ttl) {
+		this.ttl = ttl;
+	}
+
+	synchronized long getTtl() {
+		return ttl;
+	}
+
+	synchronized void setNegativeTtl(long negativeTtl) {
+		this.negativeTtl = negativeTtl;
+	}
+
+	synchronized long getNegativeTtl() {
+		return negativeTtl;
+	}
+
+	synchronized long getHitCount() {
+		return hits;
+	}
+
+	synchronized long getMissCount() {
+		return misses;
+	}
+}
@@ -0,0 +1,493 @@
+package com.example.networkrequestsapi;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import com.example.networkrequestsapi.NetworkService.DownloadListener;
+
+/**
+ * Downloads a response body straight into a file. The body is read into an array from the service's BufferPool
+ * and written to "file.part" through a FileChannel, and the part file is renamed once it is complete.
+ *
+ * A single-stream download remembers the response's ETag or Last-Modified date next to the part file, so an
+ * interrupted download, even one interrupted by the process dying, resumes with Range and If-Range. A download
+ * split into parallel ranges first fetches one range to learn the size, then fetches the rest concurrently;
+ * its ranges are retried individually but it starts over if the process dies.
+ *
+ * @author Saquib Hafiz
+ *
+ */
+class FileDownload {
+
+	/**
+	 * How a download sends the requests for its ranges through the NetworkService.
+	 */
+	interface RangeRequester {
+		/**
+		 * @return The handle of the request, so the download can cancel it.
+		 */
+		RequestHandle<?> request(Range range);
+	}
+
+	/**
+	 * Sends one range of the file and writes the response into place.
+	 */
+	interface RangeHandler {
+		void prepare(HttpUriRequest request);
+		void onResponse(HttpResponse response) throws IOException;
+		void onError(Exception error);
+	}
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_ATTEMPTS = 3;
+	private static final long MIN_PART_SIZE = 1024 * 1024;
+
+	private final File file;
+	private final File partFile;
+	private final File validatorFile;
+	private final int parts;
+	private final DownloadListener listener;
+	private final BufferPool bufferPool;
+	private final Executor callbackExecutor;
+	private final RequestHandle<File> handle;
+	private RangeRequester requester;
+	private final List<RequestHandle<?>> requests = new ArrayList<RequestHandle<?>>();
+	private FileChannel channel;
+	private volatile long total = -1;
+	private volatile String validator;
+	private volatile boolean split = false;
+	private final AtomicLong downloaded = new AtomicLong();
+	private final AtomicInteger remaining = new AtomicInteger(1);
+	private volatile boolean finished = false;
+	private volatile boolean cancelled = false;
+	// Set while an onProgress() call is waiting for the callback executor, so later blocks share it.
+	private final AtomicBoolean progressPending = new AtomicBoolean();
+
+	/**
+	 * @param callbackExecutor The Executor the listener is called on, or null to call it on the worker thread.
+	 * @param handle The handle that completes once the listener has been told, and cancels the download.
+	 */
+	FileDownload(File file, int parts, DownloadListener listener, BufferPool bufferPool, Executor callbackExecutor,
+			RequestHandle<File> handle) {
+		this.file = file;
+		this.partFile = new File(file.getPath() + ".part");
+		this.validatorFile = new File(file.getPath() + ".part.validator");
+		this.parts = Math.max(1, parts);
+		this.listener = listener;
+		this.bufferPool = bufferPool;
+		this.callbackExecutor = callbackExecutor;
+		this.handle = handle;
+		handle.setCanceller(new RequestHandle.Canceller() {
+			@Override
+			public boolean cancel() {
+				return FileDownload.this.cancel();
+			}
+		});
+	}
+
+	void start(RangeRequester requester) {
+		this.requester = requester;
+		try {
+			if (parts == 1 && partFile.exists())
+				validator = readValidator();
+			if (validator == null)
+				partFile.delete();
+
+			channel = new RandomAccessFile(partFile, "rw").getChannel();
+			long resumeFrom = validator == null ? 0 : channel.size();
+			downloaded.set(resumeFrom);
+
+			if (parts == 1)
+				request(new Range(resumeFrom, -1, true));
+			else
+				request(new Range(0, MIN_PART_SIZE - 1, true));
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * A byte range of the file and the position written up to so far.
+	 */
+	class Range implements RangeHandler {
+		private long end;
+		private long position;
+		private final boolean first;
+		private int attempts = 0;
+
+		private Range(long start, long end, boolean first) {
+			this.end = end;
+			this.position = start;
+			this.first = first;
+		}
+
+		@Override
+		public void prepare(HttpUriRequest request) {
+			attempts++;
+			// Ranges count bytes of the encoded body, so ask for it unencoded.
+			request.setHeader("Accept-Encoding", "identity");
+			if (position > 0 || end >= 0)
+				request.setHeader("Range", "bytes=" + position + "-" + (end >= 0 ? String.valueOf(end) : ""));
+			if (validator != null && position > 0)
+				request.setHeader("If-Range", validator);
+		}
+
+		@Override
+		public void onResponse(HttpResponse response) throws IOException {
+			if (finished)
+				return;
+			handle.setStatus(RequestHandle.Status.RUNNING);
+
+			int status = response.getStatusLine().getStatusCode();
+			HttpEntity entity = response.getEntity();
+
+			if (status == 416 && first && parts == 1 && position > 0) {
+				// The part file no longer matches the resource, start again.
+				restart();
+				return;
+			} else if (status == 200) {
+				if (!first || split) {
+					fail(new IOException("Server ignored the range request or the file changed."));
+					return;
+				}
+				// The server sent the whole body, either because it ignores ranges or the resource changed.
+				position = 0;
+				end = -1;
+				downloaded.set(0);
+				channel.truncate(0);
+				total = entity == null ? -1 : entity.getContentLength();
+				rememberValidator(response);
+			} else if (status == 206) {
+				long[] contentRange = parseContentRange(response.getFirstHeader("Content-Range"));
+				if (contentRange == null || contentRange[0] != position) {
+					fail(new IOException("Unexpected Content-Range in response."));
+					return;
+				}
+				if (first && total < 0) {
+					total = contentRange[2];
+					if (validator == null)
+						rememberValidator(response);
+					if (parts > 1 && total > 0)
+						split();
+				}
+			} else {
+				fail(new Exception(response.getStatusLine().getReasonPhrase()));
+				return;
+			}
+
+			try {
+				transfer(entity.getContent());
+			} catch (IOException e) {
+				retry(e);
+				return;
+			}
+
+			if (remaining.decrementAndGet() == 0)
+				complete();
+		}
+
+		/**
+		 * Copies the body into the file at this range's position.
+		 */
+		private void transfer(InputStream content) throws IOException {
+			// Read straight into the array, since a channel over a stream would copy through one of its own.
+			byte[] bytes = bufferPool.acquire(BUFFER_SIZE);
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			try {
+				while (!finished) {
+					int length = BUFFER_SIZE;
+					if (end >= 0)
+						length = (int) Math.min(length, end - position + 1);
+					if (length <= 0)
+						break;
+
+					int read = content.read(bytes, 0, length);
+					if (read == -1)
+						break;
+
+					buffer.clear();
+					buffer.limit(read);
+					while (buffer.hasRemaining())
+						position += channel.write(buffer, position);
+					downloaded.addAndGet(read);
+					progress();
+				}
+			} finally {
+				content.close();
+				bufferPool.release(bytes);
+			}
+
+			if (finished)
+				return;
+			if (end >= 0 ? position <= end : (total >= 0 && position < total))
+				throw new IOException("Connection closed before the range was complete.");
+		}
+
+		/**
+		 * Fetches the rest of the file as parallel ranges once the first range has told us its size.
+		 */
+		private void split() throws IOException {
+			split = true;
+			if (total <= end + 1) {
+				end = total - 1;
+				return;
+			}
+
+			long rest = total - (end + 1);
+			long partSize = Math.max(MIN_PART_SIZE, (rest + parts - 2) / (parts - 1));
+			for (long from = end + 1; from < total; from += partSize) {
+				remaining.incrementAndGet();
+				request(new Range(from, Math.min(total, from + partSize) - 1, false));
+			}
+		}
+
+		private void retry(IOException error) {
+			if (finished)
+				return;
+			if (attempts >= MAX_ATTEMPTS) {
+				fail(error);
+				return;
+			}
+			request(this);
+		}
+
+		/**
+		 * The request failed before its body arrived, after the service's RetryPolicy already gave up on it.
+		 */
+		@Override
+		public void onError(Exception error) {
+			fail(error);
+		}
+	}
+
+	/**
+	 * Sends the request for a range, and cancels it right away if the download was cancelled meanwhile.
+	 */
+	private void request(Range range) {
+		RequestHandle<?> request = requester.request(range);
+		synchronized (requests) {
+			requests.add(request);
+		}
+		if (cancelled)
+			request.cancel();
+	}
+
+	/**
+	 * Fails the download and cancels the requests of its ranges.
+	 *
+	 * @return False if the download had already finished.
+	 */
+	private boolean cancel() {
+		cancelled = true;
+		if (!fail(new CancellationException("Cancelled download.")))
+			return false;
+
+		List<RequestHandle<?>> running;
+		synchronized (requests) {
+			running = new ArrayList<RequestHandle<?>>(requests);
+		}
+		for (RequestHandle<?> request : running)
+			request.cancel();
+		return true;
+	}
+
+	private void restart() throws IOException {
+		validator = null;
+		total = -1;
+		validatorFile.delete();
+		channel.truncate(0);
+		downloaded.set(0);
+		request(new Range(0, -1, true));
+	}
+
+	private void complete() {
+		synchronized (this) {
+			if (finished)
+				return;
+			finished = true;
+		}
+
+		try {
+			channel.close();
+			file.delete();
+			if (!partFile.renameTo(file))
+				throw new IOException("Could not move the download to " + file);
+			validatorFile.delete();
+			succeeded();
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * @return False if the download had already finished.
+	 */
+	private boolean fail(Exception error) {
+		synchronized (this) {
+			if (finished)
+				return false;
+			finished = true;
+		}
+
+		try {
+			if (channel != null)
+				channel.close();
+		} catch (IOException e) {
+		}
+		// Only a single-stream download with a validator can be resumed later.
+		if (parts > 1 || !validatorFile.exists())
+			partFile.delete();
+		failed(error);
+		return true;
+	}
+
+	/**
+	 * Tells the listener the bytes written so far. While one call waits for the callback executor, later blocks
+	 * only update the count it reads.
+	 */
+	private void progress() {
+		if (callbackExecutor == null) {
+			listener.onProgress(downloaded.get(), total);
+			return;
+		}
+		if (!progressPending.compareAndSet(false, true))
+			return;
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				progressPending.set(false);
+				listener.onProgress(downloaded.get(), total);
+			}
+		});
+	}
+
+	private void succeeded() {
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					listener.onSuccess(file);
+				} finally {
+					handle.succeed(file);
+				}
+			}
+		});
+	}
+
+	private void failed(final Exception error) {
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					listener.onError(error);
+				} finally {
+					handle.finish(error, cancelled);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs a listener callback on the callback executor, or right here if there is none or it refuses it.
+	 */
+	private void dispatch(Runnable callback) {
+		if (callbackExecutor != null) {
+			try {
+				callbackExecutor.execute(callback);
+				return;
+			} catch (RejectedExecutionException e) {
+			}
+		}
+		callback.run();
+	}
+
+	private String readValidator() {
+		if (!validatorFile.exists())
+			return null;
+		try {
+			byte[] bytes = new byte[(int) validatorFile.length()];
+			FileInputStream in = new FileInputStream(validatorFile);
+			try {
+				int offset = 0;
+				int read;
+				while (offset < bytes.length && (read = in.read(bytes, offset, bytes.length - offset)) != -1)
+					offset += read;
+			} finally {
+				in.close();
+			}
+			String validator = new String(bytes, "UTF-8").trim();
+			return validator.length() == 0 ? null : validator;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Remembers the response's strong ETag, or its Last-Modified date, for If-Range when a range is retried.
+	 * A single-stream download also writes it next to the part file so it can resume after a restart.
+	 */
+	private void rememberValidator(HttpResponse response) throws IOException {
+		Header etag = response.getFirstHeader("ETag");
+		Header lastModified = response.getFirstHeader("Last-Modified");
+		validator = null;
+		if (etag != null && !etag.getValue().startsWith("W/"))
+			validator = etag.getValue();
+		else if (lastModified != null)
+			validator = lastModified.getValue();
+
+		if (validator == null || parts > 1) {
+			validatorFile.delete();
+			return;
+		}
+
+		FileOutputStream out = new FileOutputStream(validatorFile);
+		try {
+			out.write(validator.getBytes("UTF-8"));
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return The first byte, last byte and total length from a "bytes a-b/total" header, or null.
+	 */
+	private static long[] parseContentRange(Header header) {
+		if (header == null)
+			return null;
+
+		String value = header.getValue().trim();
+		if (!value.startsWith("bytes "))
+			return null;
+
+		try {
+			int dash = value.indexOf('-');
+			int slash = value.indexOf('/');
+			long first = Long.parseLong(value.substring(6, dash).trim());
+			long last = Long.parseLong(value.substring(dash + 1, slash).trim());
+			String length = value.substring(slash + 1).trim();
+			return new long[] { first, last, length.equals("*") ? -1 : Long.parseLong(length) };
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+}
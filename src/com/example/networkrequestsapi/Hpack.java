@@ -0,0 +1,399 @@
+package com.example.networkrequestsapi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression for HTTP/2 (RFC 7541). The Encoder indexes repeated headers in its dynamic table so
+ * later requests to the same origin send most of them as a byte or two, and Huffman codes the literals that
+ * are left when that is shorter. The Decoder reads any valid header block.
+ *
+ * @author Saquib Hafiz
+ *
+ */
+final class Hpack {
+	private static final String[][] STATIC_TABLE = {
+			{":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+			{":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+			{":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+			{":status", "404"}, {":status", "500"}, {"accept-charset", ""}, {"accept-encoding", "gzip, deflate"},
+			{"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""}, {"access-control-allow-origin", ""},
+			{"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+			{"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+			{"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+			{"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""},
+			{"from", ""}, {"host", ""}, {"if-match", ""}, {"if-modified-since", ""},
+			{"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""}, {"last-modified", ""},
+			{"link", ""}, {"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""},
+			{"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+			{"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+			{"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""},
+			{"www-authenticate", ""}
+	};
+
+	private static final int[] HUFFMAN_CODES = {
+			0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+			0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+			0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+			0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+			0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+			0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+			0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+			0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+			0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+			0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+			0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+			0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+			0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+			0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+			0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+			0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+			0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+			0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+			0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+			0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+			0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+			0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+			0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+			0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+			0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+			0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+			0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+			0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+			0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+			0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+			0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+			0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+	};
+	private static final byte[] HUFFMAN_LENGTHS = {
+			13, 23, 28, 28, 28, 28, 28, 28,
+			28, 24, 30, 28, 28, 30, 28, 28,
+			28, 28, 28, 28, 28, 28, 30, 28,
+			28, 28, 28, 28, 28, 28, 28, 28,
+			6, 10, 10, 12, 13, 6, 8, 11,
+			10, 10, 8, 11, 8, 6, 6, 6,
+			5, 5, 5, 6, 6, 6, 6, 6,
+			6, 6, 7, 8, 15, 6, 12, 10,
+			13, 6, 7, 7, 7, 7, 7, 7,
+			7, 7, 7, 7, 7, 7, 7, 7,
+			7, 7, 7, 7, 7, 7, 7, 7,
+			8, 7, 8, 13, 19, 13, 14, 6,
+			15, 5, 6, 5, 6, 5, 6, 6,
+			6, 5, 7, 7, 6, 6, 6, 5,
+			6, 7, 6, 5, 5, 6, 7, 7,
+			7, 7, 7, 15, 11, 14, 13, 28,
+			20, 22, 20, 20, 22, 22, 22, 23,
+			22, 23, 23, 23, 23, 23, 24, 23,
+			24, 24, 22, 23, 24, 23, 23, 23,
+			23, 21, 22, 23, 22, 23, 23, 24,
+			22, 21, 20, 22, 22, 23, 23, 21,
+			23, 22, 22, 24, 21, 22, 23, 23,
+			21, 21, 22, 21, 23, 22, 23, 23,
+			20, 22, 22, 22, 23, 22, 22, 23,
+			26, 26, 20, 19, 22, 23, 22, 25,
+			26, 26, 26, 27, 27, 26, 24, 25,
+			19, 21, 26, 27, 27, 26, 27, 24,
+			21, 21, 26, 26, 28, 27, 27, 27,
+			20, 24, 20, 21, 22, 21, 21, 23,
+			22, 22, 25, 25, 24, 24, 26, 23,
+			26, 27, 26, 26, 27, 27, 27, 27,
+			27, 28, 27, 27, 27, 27, 27, 26
+	};
+
+	private static final Map<String, Integer> STATIC_HEADERS = new HashMap<String, Integer>();
+	private static final Map<String, Integer> STATIC_NAMES = new HashMap<String, Integer>();
+	private static final int[] HUFFMAN_TREE;
+
+	static {
+		for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+			STATIC_HEADERS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+			STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+		}
+
+		// Node n has its children at 2n and 2n + 1, a leaf holds -1 - symbol and 0 is no node yet.
+		int[] tree = new int[2 * 1024];
+		int nodes = 1;
+		for (int symbol = 0; symbol < HUFFMAN_CODES.length; symbol++) {
+			int node = 0;
+			for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+				int child = 2 * node + ((HUFFMAN_CODES[symbol] >>> bit) & 1);
+				if (bit == 0) {
+					tree[child] = -1 - symbol;
+				} else {
+					if (tree[child] == 0)
+						tree[child] = nodes++;
+					node = tree[child];
+				}
+			}
+		}
+		HUFFMAN_TREE = tree;
+	}
+
+	private Hpack() {
+	}
+
+	/**
+	 * The table both ends add headers to, newest first.
+	 */
+	private static class DynamicTable {
+		private final LinkedList<String[]> entries = new LinkedList<String[]>();
+		private int size = 0;
+		private int maxSize;
+
+		private DynamicTable(int maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		private void add(String name, String value) {
+			int entrySize = name.length() + value.length() + 32;
+			if (entrySize > maxSize) {
+				entries.clear();
+				size = 0;
+				return;
+			}
+			entries.addFirst(new String[] { name, value });
+			size += entrySize;
+			evict();
+		}
+
+		private void setMaxSize(int maxSize) {
+			this.maxSize = maxSize;
+			evict();
+		}
+
+		private void evict() {
+			while (size > maxSize) {
+				String[] oldest = entries.removeLast();
+				size -= oldest[0].length() + oldest[1].length() + 32;
+			}
+		}
+
+		/**
+		 * @return The index of the entry, counted after the static table, or 0.
+		 */
+		private int indexOf(String name, String value) {
+			int index = STATIC_TABLE.length + 1;
+			for (String[] entry : entries) {
+				if (entry[0].equals(name) && (value == null || entry[1].equals(value)))
+					return index;
+				index++;
+			}
+			return 0;
+		}
+
+		private String[] get(int index) throws IOException {
+			if (index < 1 || index > STATIC_TABLE.length + entries.size())
+				throw new IOException("HPACK index out of range : " + index);
+			if (index <= STATIC_TABLE.length)
+				return STATIC_TABLE[index - 1];
+			return entries.get(index - STATIC_TABLE.length - 1);
+		}
+	}
+
+	static class Encoder {
+		private final DynamicTable table = new DynamicTable(4096);
+		private int pendingSizeUpdate = -1;
+
+		/**
+		 * Follows the peer's SETTINGS_HEADER_TABLE_SIZE, never using more than the default 4096 bytes.
+		 */
+		void setMaxTableSize(int maxTableSize) {
+			int size = Math.min(maxTableSize, 4096);
+			if (size == table.maxSize)
+				return;
+			table.setMaxSize(size);
+			pendingSizeUpdate = pendingSizeUpdate < 0 ? size : Math.min(pendingSizeUpdate, size);
+		}
+
+		/**
+		 * @param headers Name and value pairs with lower case names, pseudo headers first.
+		 */
+		byte[] encode(List<String[]> headers) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+			if (pendingSizeUpdate >= 0) {
+				writeInt(out, 0x20, 5, pendingSizeUpdate);
+				if (pendingSizeUpdate != table.maxSize)
+					writeInt(out, 0x20, 5, table.maxSize);
+				pendingSizeUpdate = -1;
+			}
+
+			for (String[] header : headers) {
+				String name = header[0];
+				String value = header[1];
+				Integer exact = STATIC_HEADERS.get(name + '\0' + value);
+				int index = exact != null ? exact : table.indexOf(name, value);
+				if (index > 0) {
+					writeInt(out, 0x80, 7, index);
+					continue;
+				}
+
+				Integer staticName = STATIC_NAMES.get(name);
+				int nameIndex = staticName != null ? staticName : table.indexOf(name, null);
+				if (name.equals("authorization") || name.equals("proxy-authorization")) {
+					// Never indexed, so a compromised intermediary can not probe for it.
+					writeInt(out, 0x10, 4, nameIndex);
+				} else if (name.equals(":path") || name.equals("content-length") || name.startsWith("if-")) {
+					writeInt(out, 0x00, 4, nameIndex);
+				} else {
+					writeInt(out, 0x40, 6, nameIndex);
+					table.add(name, value);
+				}
+				if (nameIndex == 0)
+					writeString(out, name);
+				writeString(out, value);
+			}
+			return out.toByteArray();
+		}
+
+		private static void writeInt(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+			int max = (1 << prefixBits) - 1;
+			if (value < max) {
+				out.write(flags | value);
+				return;
+			}
+			out.write(flags | max);
+			value -= max;
+			while (value >= 0x80) {
+				out.write((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			out.write(value);
+		}
+
+		private static void writeString(ByteArrayOutputStream out, String value) {
+			long bits = 0;
+			for (int i = 0; i < value.length(); i++)
+				bits += HUFFMAN_LENGTHS[value.charAt(i) & 0xff];
+			int huffmanLength = (int) ((bits + 7) / 8);
+
+			if (huffmanLength >= value.length()) {
+				writeInt(out, 0x00, 7, value.length());
+				for (int i = 0; i < value.length(); i++)
+					out.write(value.charAt(i));
+				return;
+			}
+
+			writeInt(out, 0x80, 7, huffmanLength);
+			long buffer = 0;
+			int buffered = 0;
+			for (int i = 0; i < value.length(); i++) {
+				int symbol = value.charAt(i) & 0xff;
+				buffer = (buffer << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+				buffered += HUFFMAN_LENGTHS[symbol];
+				while (buffered >= 8) {
+					buffered -= 8;
+					out.write((int) (buffer >>> buffered));
+				}
+			}
+			if (buffered > 0)
+				out.write((int) ((buffer << (8 - buffered)) | (0xff >>> buffered)));
+		}
+	}
+
+	static class Decoder {
+		private final DynamicTable table = new DynamicTable(4096);
+
+		/**
+		 * @return The name and value pairs of the block, in order.
+		 */
+		List<String[]> decode(byte[] block) throws IOException {
+			List<String[]> headers = new ArrayList<String[]>();
+			int[] position = { 0 };
+			while (position[0] < block.length) {
+				int b = block[position[0]] & 0xff;
+				if ((b & 0x80) != 0) {
+					String[] entry = table.get(readInt(block, position, 7));
+					headers.add(new String[] { entry[0], entry[1] });
+				} else if ((b & 0x40) != 0) {
+					String[] header = readLiteral(block, position, 6);
+					table.add(header[0], header[1]);
+					headers.add(header);
+				} else if ((b & 0x20) != 0) {
+					int size = readInt(block, position, 5);
+					if (size > 4096)
+						throw new IOException("HPACK table size update above the limit : " + size);
+					table.setMaxSize(size);
+				} else {
+					headers.add(readLiteral(block, position, 4));
+				}
+			}
+			return headers;
+		}
+
+		private String[] readLiteral(byte[] block, int[] position, int prefixBits) throws IOException {
+			int nameIndex = readInt(block, position, prefixBits);
+			String name = nameIndex == 0 ? readString(block, position) : table.get(nameIndex)[0];
+			return new String[] { name, readString(block, position) };
+		}
+
+		private static int readInt(byte[] block, int[] position, int prefixBits) throws IOException {
+			int max = (1 << prefixBits) - 1;
+			int value = block[position[0]++] & max;
+			if (value < max)
+				return value;
+
+			int shift = 0;
+			while (true) {
+				if (position[0] >= block.length || shift > 28)
+					throw new IOException("Malformed HPACK integer.");
+				int b = block[position[0]++] & 0xff;
+				value += (b & 0x7f) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+				shift += 7;
+			}
+		}
+
+		private static String readString(byte[] block, int[] position) throws IOException {
+			if (position[0] >= block.length)
+				throw new IOException("Truncated HPACK string.");
+			boolean huffman = (block[position[0]] & 0x80) != 0;
+			int length = readInt(block, position, 7);
+			int start = position[0];
+			if (length < 0 || start + length > block.length)
+				throw new IOException("Truncated HPACK string.");
+			position[0] += length;
+
+			StringBuilder value = new StringBuilder(huffman ? length * 8 / 5 : length);
+			if (!huffman) {
+				for (int i = start; i < start + length; i++)
+					value.append((char) (block[i] & 0xff));
+				return value.toString();
+			}
+
+			int node = 0;
+			int depth = 0;
+			for (int i = start; i < start + length; i++) {
+				for (int bit = 7; bit >= 0; bit--) {
+					int next = HUFFMAN_TREE[2 * node + ((block[i] >>> bit) & 1)];
+					if (next < 0) {
+						value.append((char) (-1 - next));
+						node = 0;
+						depth = 0;
+					} else if (next == 0) {
+						throw new IOException("Invalid Huffman code in HPACK string.");
+					} else {
+						node = next;
+						depth++;
+					}
+				}
+			}
+			// Only up to seven bits of the EOS code's leading ones may pad the end.
+			if (depth > 7)
+				throw new IOException("Invalid Huffman padding in HPACK string.");
+			return value.toString();
+		}
+	}
+
+	static byte[] latin1(String value) {
+		byte[] bytes = new byte[value.length()];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) value.charAt(i);
+		return bytes;
+	}
+}
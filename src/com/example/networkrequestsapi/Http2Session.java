@@ -0,0 +1,540 @@
+package com.example.networkrequestsapi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+/**
+ * The client side of one HTTP/2 connection (RFC 7540), without the socket: the NioTransport feeds it the bytes
+ * it reads and writes out what nextOutput() returns. Requests are sent as concurrent streams, with HPACK
+ * compressed headers and flow control in both directions. Responses are collected into memory and handed to
+ * the Listener once their stream ends.
+ *
+ * @param <T> What the caller ties to each stream.
+ *
+ * @author Saquib Hafiz
+ *
+ */
+class Http2Session<T> {
+
+	interface Listener<T> {
+		void onResponse(T owner, HttpResponse response, long headersAt);
+		void onStreamActivity(T owner);
+		/**
+		 * @param refused True if the server did not process the stream, so it can be sent again.
+		 */
+		void onStreamFailed(T owner, IOException error, boolean refused);
+	}
+
+	private static final byte[] PREFACE = Hpack.latin1("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n");
+	private static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP", 2, 0);
+
+	private static final int DATA = 0x0;
+	private static final int HEADERS = 0x1;
+	private static final int PRIORITY = 0x2;
+	private static final int RST_STREAM = 0x3;
+	private static final int SETTINGS = 0x4;
+	private static final int PUSH_PROMISE = 0x5;
+	private static final int PING = 0x6;
+	private static final int GOAWAY = 0x7;
+	private static final int WINDOW_UPDATE = 0x8;
+	private static final int CONTINUATION = 0x9;
+
+	private static final int FLAG_END_STREAM = 0x1;
+	private static final int FLAG_ACK = 0x1;
+	private static final int FLAG_END_HEADERS = 0x4;
+	private static final int FLAG_PADDED = 0x8;
+	private static final int FLAG_PRIORITY = 0x20;
+
+	private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	private static final int SETTINGS_ENABLE_PUSH = 0x2;
+	private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+	private static final int NO_ERROR = 0x0;
+	private static final int REFUSED_STREAM = 0x7;
+	private static final int CANCEL = 0x8;
+
+	private static final int DEFAULT_WINDOW = 65535;
+	private static final int MAX_FRAME_SIZE = 16384;
+	private static final int STREAM_WINDOW = 1024 * 1024;
+	private static final int CONNECTION_WINDOW = 16 * 1024 * 1024;
+
+	private static class Stream<T> {
+		private final int id;
+		private final T owner;
+		private byte[] body;
+		private int bodyOffset = 0;
+		private boolean endSent = false;
+		private long sendWindow;
+		private int unacknowledged = 0;
+		private BasicHttpResponse response;
+		private ByteArrayOutputStream data;
+		private long headersAt;
+
+		private Stream(int id, T owner, long sendWindow) {
+			this.id = id;
+			this.owner = owner;
+			this.sendWindow = sendWindow;
+		}
+	}
+
+	private final Listener<T> listener;
+	private final Hpack.Encoder encoder = new Hpack.Encoder();
+	private final Hpack.Decoder decoder = new Hpack.Decoder();
+	private final Map<Integer, Stream<T>> streams = new HashMap<Integer, Stream<T>>();
+	private final Map<T, Stream<T>> streamsByOwner = new HashMap<T, Stream<T>>();
+	private final ArrayDeque<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+	private final ByteBuffer input = ByteBuffer.allocate(9 + MAX_FRAME_SIZE);
+	private int nextStreamId = 1;
+	private int maxConcurrentStreams = 100;
+	private int initialSendWindow = DEFAULT_WINDOW;
+	private long connectionSendWindow = DEFAULT_WINDOW;
+	private int connectionUnacknowledged = 0;
+	private int peerMaxFrameSize = MAX_FRAME_SIZE;
+	private boolean confirmed = false;
+	private boolean goingAway = false;
+	private int continuationStream = 0;
+	private ByteArrayOutputStream headerBlock;
+	private boolean headerBlockEndsStream;
+
+	Http2Session(Listener<T> listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Queues the connection preface and the client's settings.
+	 */
+	void start() {
+		ByteBuffer settings = frame(SETTINGS, 0, 0, 12);
+		settings.putShort((short) SETTINGS_ENABLE_PUSH).putInt(0);
+		settings.putShort((short) SETTINGS_INITIAL_WINDOW_SIZE).putInt(STREAM_WINDOW);
+		output.add(ByteBuffer.wrap(PREFACE));
+		queue(settings);
+		queue(frame(WINDOW_UPDATE, 0, 0, 4).putInt(CONNECTION_WINDOW - DEFAULT_WINDOW));
+	}
+
+	/**
+	 * @return True once the server's settings arrived, which shows it speaks HTTP/2.
+	 */
+	boolean isConfirmed() {
+		return confirmed;
+	}
+
+	/**
+	 * @return True if the server asked for no new streams.
+	 */
+	boolean isGoingAway() {
+		return goingAway;
+	}
+
+	boolean canOpenStream() {
+		return !goingAway && streams.size() < maxConcurrentStreams && nextStreamId > 0;
+	}
+
+	int getStreamCount() {
+		return streams.size();
+	}
+
+	List<T> getOwners() {
+		return new ArrayList<T>(streamsByOwner.keySet());
+	}
+
+	boolean hasStream(T owner) {
+		return streamsByOwner.containsKey(owner);
+	}
+
+	/**
+	 * @param headers Name and value pairs, without the pseudo headers and the headers HTTP/2 leaves out.
+	 * @param body The request body, or null.
+	 */
+	void openStream(T owner, String method, String scheme, String authority, String path, List<String[]> headers, byte[] body) {
+		List<String[]> block = new ArrayList<String[]>(headers.size() + 5);
+		block.add(new String[] { ":method", method });
+		block.add(new String[] { ":scheme", scheme });
+		block.add(new String[] { ":authority", authority });
+		block.add(new String[] { ":path", path });
+		block.addAll(headers);
+		if (body != null)
+			block.add(new String[] { "content-length", Integer.toString(body.length) });
+
+		Stream<T> stream = new Stream<T>(nextStreamId, owner, initialSendWindow);
+		nextStreamId += 2;
+		streams.put(stream.id, stream);
+		streamsByOwner.put(owner, stream);
+
+		byte[] encoded = encoder.encode(block);
+		int offset = 0;
+		boolean first = true;
+		do {
+			int length = Math.min(encoded.length - offset, peerMaxFrameSize);
+			boolean last = offset + length == encoded.length;
+			int flags = (last ? FLAG_END_HEADERS : 0) | (first && body == null ? FLAG_END_STREAM : 0);
+			ByteBuffer frame = frame(first ? HEADERS : CONTINUATION, flags, stream.id, length);
+			frame.put(encoded, offset, length);
+			queue(frame);
+			offset += length;
+			first = false;
+		} while (offset < encoded.length);
+
+		if (body == null) {
+			stream.endSent = true;
+		} else {
+			stream.body = body;
+			sendData();
+		}
+	}
+
+	/**
+	 * Cancels the stream. Its owner is not told.
+	 */
+	void resetStream(T owner) {
+		Stream<T> stream = streamsByOwner.get(owner);
+		if (stream == null)
+			return;
+		removeStream(stream);
+		queue(frame(RST_STREAM, 0, stream.id, 4).putInt(CANCEL));
+	}
+
+	/**
+	 * Tells the server the connection is being closed.
+	 */
+	void goAway() {
+		goingAway = true;
+		queue(frame(GOAWAY, 0, 0, 8).putInt(0).putInt(NO_ERROR));
+	}
+
+	/**
+	 * @return The next bytes to write, or null if there are none.
+	 */
+	ByteBuffer nextOutput() {
+		while (!output.isEmpty() && !output.peek().hasRemaining())
+			output.poll();
+		if (output.size() <= 1)
+			return output.peek();
+
+		// Send small frames together rather than one TLS record or packet each.
+		int total = 0;
+		for (ByteBuffer buffer : output)
+			total += buffer.remaining();
+		ByteBuffer combined = ByteBuffer.allocate(total);
+		while (!output.isEmpty())
+			combined.put(output.poll());
+		combined.flip();
+		output.add(combined);
+		return combined;
+	}
+
+	/**
+	 * Reads the frames in the bytes, keeping a partial frame for the next call.
+	 */
+	void onBytes(ByteBuffer data) throws IOException {
+		while (data.hasRemaining()) {
+			int length = Math.min(input.remaining(), data.remaining());
+			int limit = data.limit();
+			data.limit(data.position() + length);
+			input.put(data);
+			data.limit(limit);
+
+			input.flip();
+			while (input.remaining() >= 9) {
+				int frameLength = ((input.get(input.position()) & 0xff) << 16)
+						| ((input.get(input.position() + 1) & 0xff) << 8) | (input.get(input.position() + 2) & 0xff);
+				if (frameLength > MAX_FRAME_SIZE)
+					throw new ProtocolException("HTTP/2 frame larger than allowed : " + frameLength);
+				if (input.remaining() < 9 + frameLength)
+					break;
+
+				input.getShort();
+				input.get();
+				int type = input.get() & 0xff;
+				int flags = input.get() & 0xff;
+				int streamId = input.getInt() & Integer.MAX_VALUE;
+				byte[] payload = new byte[frameLength];
+				input.get(payload);
+				onFrame(type, flags, streamId, payload);
+			}
+			input.compact();
+		}
+	}
+
+	private void onFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+		if (!confirmed && type != SETTINGS)
+			throw new ProtocolException("Server did not start with HTTP/2 settings.");
+		if (continuationStream != 0 && (type != CONTINUATION || streamId != continuationStream))
+			throw new ProtocolException("HTTP/2 header block was interrupted.");
+
+		switch (type) {
+		case DATA:
+			onData(flags, streamId, payload);
+			break;
+		case HEADERS:
+			int start = 0;
+			int end = payload.length;
+			if ((flags & FLAG_PADDED) != 0) {
+				checkLength(payload, 1, "HEADERS");
+				start = 1;
+				end -= payload[0] & 0xff;
+			}
+			if ((flags & FLAG_PRIORITY) != 0)
+				start += 5;
+			if (start > end)
+				throw new ProtocolException("Malformed HTTP/2 HEADERS frame.");
+			headerBlock = new ByteArrayOutputStream(end - start);
+			headerBlock.write(payload, start, end - start);
+			headerBlockEndsStream = (flags & FLAG_END_STREAM) != 0;
+			if ((flags & FLAG_END_HEADERS) != 0)
+				onHeaderBlock(streamId);
+			else
+				continuationStream = streamId;
+			break;
+		case CONTINUATION:
+			if (continuationStream == 0)
+				throw new ProtocolException("Unexpected HTTP/2 CONTINUATION frame.");
+			headerBlock.write(payload, 0, payload.length);
+			if ((flags & FLAG_END_HEADERS) != 0) {
+				continuationStream = 0;
+				onHeaderBlock(streamId);
+			}
+			break;
+		case PRIORITY:
+			break;
+		case RST_STREAM:
+			checkLength(payload, 4, "RST_STREAM");
+			Stream<T> reset = streams.get(streamId);
+			if (reset != null) {
+				int errorCode = ByteBuffer.wrap(payload).getInt();
+				removeStream(reset);
+				listener.onStreamFailed(reset.owner, new IOException("HTTP/2 stream was reset : " + errorCode), errorCode == REFUSED_STREAM);
+			}
+			break;
+		case SETTINGS:
+			if ((flags & FLAG_ACK) == 0)
+				onSettings(payload);
+			break;
+		case PUSH_PROMISE:
+			throw new ProtocolException("HTTP/2 server push was disabled.");
+		case PING:
+			if (payload.length != 8)
+				throw new ProtocolException("Malformed HTTP/2 PING frame.");
+			if ((flags & FLAG_ACK) == 0)
+				queue(frame(PING, FLAG_ACK, 0, 8).put(payload));
+			break;
+		case GOAWAY:
+			checkLength(payload, 8, "GOAWAY");
+			ByteBuffer goAway = ByteBuffer.wrap(payload);
+			int lastStreamId = goAway.getInt() & Integer.MAX_VALUE;
+			goingAway = true;
+			for (Stream<T> stream : new ArrayList<Stream<T>>(streams.values())) {
+				if (stream.id > lastStreamId) {
+					removeStream(stream);
+					listener.onStreamFailed(stream.owner, new IOException("HTTP/2 connection is going away."), true);
+				}
+			}
+			break;
+		case WINDOW_UPDATE:
+			if (payload.length != 4)
+				throw new ProtocolException("Malformed HTTP/2 WINDOW_UPDATE frame.");
+			int increment = ByteBuffer.wrap(payload).getInt() & Integer.MAX_VALUE;
+			if (streamId == 0) {
+				connectionSendWindow += increment;
+			} else {
+				Stream<T> stream = streams.get(streamId);
+				if (stream != null)
+					stream.sendWindow += increment;
+			}
+			sendData();
+			break;
+		default:
+			// Unknown frame types are ignored.
+		}
+	}
+
+	/**
+	 * Fails the connection on a frame too short for its fixed fields, rather than reading past its end.
+	 */
+	private static void checkLength(byte[] payload, int minimum, String type) throws ProtocolException {
+		if (payload.length < minimum)
+			throw new ProtocolException("Malformed HTTP/2 " + type + " frame.");
+	}
+
+	private void onSettings(byte[] payload) throws IOException {
+		if (payload.length % 6 != 0)
+			throw new ProtocolException("Malformed HTTP/2 SETTINGS frame.");
+
+		ByteBuffer settings = ByteBuffer.wrap(payload);
+		while (settings.hasRemaining()) {
+			int id = settings.getShort() & 0xffff;
+			int value = settings.getInt();
+			switch (id) {
+			case SETTINGS_HEADER_TABLE_SIZE:
+				encoder.setMaxTableSize(value);
+				break;
+			case SETTINGS_MAX_CONCURRENT_STREAMS:
+				maxConcurrentStreams = value;
+				break;
+			case SETTINGS_INITIAL_WINDOW_SIZE:
+				if (value < 0)
+					throw new ProtocolException("HTTP/2 window size too large.");
+				for (Stream<T> stream : streams.values())
+					stream.sendWindow += value - initialSendWindow;
+				initialSendWindow = value;
+				break;
+			case SETTINGS_MAX_FRAME_SIZE:
+				peerMaxFrameSize = Math.max(MAX_FRAME_SIZE, Math.min(value, 16 * 1024 * 1024 - 1));
+				break;
+			}
+		}
+		confirmed = true;
+		queue(frame(SETTINGS, FLAG_ACK, 0, 0));
+		sendData();
+	}
+
+	private void onHeaderBlock(int streamId) throws IOException {
+		// Every block has to be decoded to keep the HPACK table in step, even for streams already gone.
+		List<String[]> headers = decoder.decode(headerBlock.toByteArray());
+		headerBlock = null;
+		Stream<T> stream = streams.get(streamId);
+		if (stream == null)
+			return;
+
+		listener.onStreamActivity(stream.owner);
+		if (stream.response == null) {
+			int status = -1;
+			for (String[] header : headers) {
+				if (header[0].equals(":status")) {
+					try {
+						status = Integer.parseInt(header[1]);
+					} catch (NumberFormatException e) {
+						throw new ProtocolException("Malformed HTTP/2 status : " + header[1]);
+					}
+				}
+			}
+			if (status < 0)
+				throw new ProtocolException("HTTP/2 response without a status.");
+			if (status >= 100 && status < 200)
+				return;
+
+			String reason = EnglishReasonPhraseCatalog.INSTANCE.getReason(status, null);
+			stream.response = new BasicHttpResponse(new BasicStatusLine(HTTP_2, status, reason == null ? "" : reason));
+			for (String[] header : headers)
+				if (!header[0].startsWith(":"))
+					stream.response.addHeader(header[0], header[1]);
+			stream.headersAt = System.nanoTime();
+			stream.data = new ByteArrayOutputStream(4096);
+		}
+		// A second block is the trailers, which are not kept.
+		if (headerBlockEndsStream)
+			complete(stream);
+	}
+
+	private void onData(int flags, int streamId, byte[] payload) throws IOException {
+		connectionUnacknowledged += payload.length;
+		if (connectionUnacknowledged >= CONNECTION_WINDOW / 2) {
+			queue(frame(WINDOW_UPDATE, 0, 0, 4).putInt(connectionUnacknowledged));
+			connectionUnacknowledged = 0;
+		}
+
+		Stream<T> stream = streams.get(streamId);
+		if (stream == null)
+			return;
+		if (stream.response == null)
+			throw new ProtocolException("HTTP/2 data before the response headers.");
+
+		int start = 0;
+		int end = payload.length;
+		if ((flags & FLAG_PADDED) != 0) {
+			checkLength(payload, 1, "DATA");
+			start = 1;
+			end -= payload[0] & 0xff;
+			if (end < start)
+				throw new ProtocolException("Malformed HTTP/2 DATA frame.");
+		}
+		stream.data.write(payload, start, end - start);
+		listener.onStreamActivity(stream.owner);
+
+		if ((flags & FLAG_END_STREAM) != 0) {
+			complete(stream);
+			return;
+		}
+		stream.unacknowledged += payload.length;
+		if (stream.unacknowledged >= STREAM_WINDOW / 2) {
+			queue(frame(WINDOW_UPDATE, 0, stream.id, 4).putInt(stream.unacknowledged));
+			stream.unacknowledged = 0;
+		}
+	}
+
+	private void complete(Stream<T> stream) {
+		removeStream(stream);
+		if (!stream.endSent) {
+			// The server answered before taking the whole body.
+			queue(frame(RST_STREAM, 0, stream.id, 4).putInt(NO_ERROR));
+		}
+
+		ByteArrayEntity entity = new ByteArrayEntity(stream.data.toByteArray());
+		entity.setContentType(stream.response.getFirstHeader("Content-Type"));
+		entity.setContentEncoding(stream.response.getFirstHeader("Content-Encoding"));
+		stream.response.setEntity(entity);
+		listener.onResponse(stream.owner, stream.response, stream.headersAt);
+	}
+
+	/**
+	 * Sends as much of the waiting request bodies as the flow control windows allow.
+	 */
+	private void sendData() {
+		if (!confirmed)
+			return;
+
+		for (Stream<T> stream : streams.values()) {
+			while (!stream.endSent) {
+				int remaining = stream.body.length - stream.bodyOffset;
+				int length = (int) Math.min(Math.min(remaining, peerMaxFrameSize), Math.min(stream.sendWindow, connectionSendWindow));
+				if (length <= 0 && remaining > 0)
+					break;
+
+				boolean last = length == remaining;
+				ByteBuffer frame = frame(DATA, last ? FLAG_END_STREAM : 0, stream.id, length);
+				frame.put(stream.body, stream.bodyOffset, length);
+				queue(frame);
+				stream.bodyOffset += length;
+				stream.sendWindow -= length;
+				connectionSendWindow -= length;
+				if (last) {
+					stream.endSent = true;
+					stream.body = null;
+				}
+			}
+		}
+	}
+
+	private void removeStream(Stream<T> stream) {
+		streams.remove(stream.id);
+		streamsByOwner.remove(stream.owner);
+	}
+
+	private static ByteBuffer frame(int type, int flags, int streamId, int length) {
+		ByteBuffer frame = ByteBuffer.allocate(9 + length);
+		frame.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+		frame.put((byte) type).put((byte) flags).putInt(streamId);
+		return frame;
+	}
+
+	private void queue(ByteBuffer frame) {
+		frame.flip();
+		output.add(frame);
+	}
+}
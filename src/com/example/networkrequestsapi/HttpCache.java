@@ -0,0 +1,573 @@
+package com.example.networkrequestsapi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+/**
+ * A persistent HTTP cache for GET responses. Each response is stored as a metadata file and a body file named
+ * after the hash of its URL, and entries are evicted least recently used first once the byte budget is exceeded.
+ * Freshness follows Cache-Control, Expires and Vary; stale entries with an ETag or Last-Modified date can be
+ * revalidated with a conditional request.
+ *
+ * @author Saquib Hafiz
+ *
+ */
+class HttpCache {
+	private static final int VERSION = 1;
+	private static final String META = ".meta";
+	private static final String BODY = ".body";
+	private static final String TEMP = ".tmp";
+
+	private final File directory;
+	private final BufferPool bufferPool;
+	private long maxSize;
+	private long size = 0;
+	private final LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>(64, 0.75f, true);
+
+	HttpCache(File directory, long maxSize, BufferPool bufferPool) {
+		this.directory = directory;
+		this.bufferPool = bufferPool;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Rebuilds the index from the files on disk, oldest first so they are the first to be evicted.
+	 */
+	synchronized void open() {
+		if (!directory.exists() && !directory.mkdirs())
+			return;
+
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File lhs, File rhs) {
+				long difference = lhs.lastModified() - rhs.lastModified();
+				return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+			}
+		});
+
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(TEMP)) {
+				file.delete();
+			} else if (name.endsWith(META)) {
+				String key = name.substring(0, name.length() - META.length());
+				File body = new File(directory, key + BODY);
+				if (body.exists()) {
+					long entrySize = file.length() + body.length();
+					index.put(key, entrySize);
+					size += entrySize;
+				} else {
+					file.delete();
+				}
+			}
+		}
+		trimToSize(maxSize);
+	}
+
+	/**
+	 * @return The stored response for the URL if it matches the request headers it varies on, otherwise null.
+	 */
+	CacheEntry get(String url, Map<String, String> requestHeaders) {
+		String key = keyOf(url);
+		synchronized (this) {
+			if (index.get(key) == null)
+				return null;
+		}
+
+		CacheEntry entry;
+		try {
+			entry = readMeta(key);
+		} catch (IOException e) {
+			remove(key);
+			return null;
+		}
+
+		if (!url.equals(entry.url) || !entry.matchesVary(requestHeaders))
+			return null;
+		return entry;
+	}
+
+	/**
+	 * @return True if the response may be stored.
+	 */
+	static boolean isCacheable(HttpResponse response) {
+		if (response.getStatusLine().getStatusCode() != 200)
+			return false;
+
+		Map<String, String> directives = cacheControl(response.getFirstHeader("Cache-Control"));
+		if (directives.containsKey("no-store"))
+			return false;
+
+		Header vary = response.getFirstHeader("Vary");
+		if (vary != null && vary.getValue().trim().equals("*"))
+			return false;
+
+		return directives.containsKey("max-age") || directives.containsKey("no-cache")
+				|| response.containsHeader("Expires")
+				|| response.containsHeader("ETag")
+				|| response.containsHeader("Last-Modified");
+	}
+
+	/**
+	 * @return True if the request asked not to be served from or written to the cache.
+	 */
+	static boolean isNoStore(Map<String, String> requestHeaders) {
+		return cacheControl(findHeader(requestHeaders, "Cache-Control")).containsKey("no-store");
+	}
+
+	/**
+	 * @return True if the request asked for a stored response to be revalidated before it is used.
+	 */
+	static boolean isNoCache(Map<String, String> requestHeaders) {
+		Map<String, String> directives = cacheControl(findHeader(requestHeaders, "Cache-Control"));
+		return directives.containsKey("no-cache") || "0".equals(directives.get("max-age"));
+	}
+
+	/**
+	 * @return The metadata to store for a response to the request.
+	 */
+	static CacheEntry newEntry(String url, Map<String, String> requestHeaders, HttpResponse response) {
+		CacheEntry entry = new CacheEntry(url, System.currentTimeMillis(), headersOf(response));
+		Header vary = response.getFirstHeader("Vary");
+		if (vary != null)
+			for (String name : vary.getValue().split(","))
+				if (name.trim().length() > 0)
+					entry.varyHeaders.put(name.trim(), findHeader(requestHeaders, name.trim()));
+		return entry;
+	}
+
+	/**
+	 * Wraps the response body so that everything read through it is written to the cache. The entry is committed
+	 * when the body has been read to the end; closing the stream early reads the rest first.
+	 */
+	InputStream put(CacheEntry entry, InputStream body) {
+		try {
+			return new CacheWriter(entry, body);
+		} catch (IOException e) {
+			return body;
+		}
+	}
+
+	/**
+	 * Refreshes a stored entry with the headers of a 304 Not Modified response.
+	 */
+	void update(CacheEntry entry, HttpResponse notModified) {
+		for (Header header : notModified.getAllHeaders())
+			entry.responseHeaders.put(header.getName(), header.getValue());
+		entry.storedTime = System.currentTimeMillis();
+
+		String key = keyOf(entry.url);
+		File temp = new File(directory, key + META + TEMP);
+		try {
+			writeMeta(entry, temp);
+			synchronized (this) {
+				if (index.get(key) != null && temp.renameTo(new File(directory, key + META)))
+					return;
+			}
+		} catch (IOException e) {
+		}
+		temp.delete();
+	}
+
+	synchronized void remove(String key) {
+		Long entrySize = index.remove(key);
+		if (entrySize != null)
+			size -= entrySize;
+		new File(directory, key + META).delete();
+		new File(directory, key + BODY).delete();
+	}
+
+	synchronized void clear() {
+		trimToSize(0);
+	}
+
+	synchronized void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+		trimToSize(maxSize);
+	}
+
+	synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	synchronized long size() {
+		return size;
+	}
+
+	private synchronized void commit(String key, File meta, File body) {
+		Long old = index.remove(key);
+		if (old != null)
+			size -= old;
+
+		File metaFile = new File(directory, key + META);
+		File bodyFile = new File(directory, key + BODY);
+		if (!body.renameTo(bodyFile) || !meta.renameTo(metaFile)) {
+			meta.delete();
+			body.delete();
+			metaFile.delete();
+			bodyFile.delete();
+			return;
+		}
+
+		long entrySize = metaFile.length() + bodyFile.length();
+		index.put(key, entrySize);
+		size += entrySize;
+		trimToSize(maxSize);
+	}
+
+	private void trimToSize(long limit) {
+		Iterator<Entry<String, Long>> eldest = index.entrySet().iterator();
+		while (size > limit && eldest.hasNext()) {
+			Entry<String, Long> entry = eldest.next();
+			String key = entry.getKey();
+			size -= entry.getValue();
+			eldest.remove();
+			new File(directory, key + META).delete();
+			new File(directory, key + BODY).delete();
+		}
+	}
+
+	private CacheEntry readMeta(String key) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(directory, key + META))));
+		try {
+			if (in.readInt() != VERSION)
+				throw new IOException("Unknown cache entry version.");
+
+			CacheEntry entry = new CacheEntry(in.readUTF(), in.readLong(), new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER));
+			entry.body = new File(directory, key + BODY);
+			for (int i = in.readInt(); i > 0; i--)
+				entry.responseHeaders.put(in.readUTF(), in.readUTF());
+			for (int i = in.readInt(); i > 0; i--) {
+				String name = in.readUTF();
+				entry.varyHeaders.put(name, in.readBoolean() ? in.readUTF() : null);
+			}
+			return entry;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeMeta(CacheEntry entry, File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(VERSION);
+			out.writeUTF(entry.url);
+			out.writeLong(entry.storedTime);
+			out.writeInt(entry.responseHeaders.size());
+			for (Entry<String, String> header : entry.responseHeaders.entrySet()) {
+				out.writeUTF(header.getKey());
+				out.writeUTF(header.getValue());
+			}
+			out.writeInt(entry.varyHeaders.size());
+			for (Entry<String, String> header : entry.varyHeaders.entrySet()) {
+				out.writeUTF(header.getKey());
+				out.writeBoolean(header.getValue() != null);
+				if (header.getValue() != null)
+					out.writeUTF(header.getValue());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static TreeMap<String, String> headersOf(HttpResponse response) {
+		TreeMap<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		for (Header header : response.getAllHeaders()) {
+			String existing = headers.get(header.getName());
+			headers.put(header.getName(), existing == null ? header.getValue() : existing + ", " + header.getValue());
+		}
+		return headers;
+	}
+
+	private static String findHeader(Map<String, String> headers, String name) {
+		for (Entry<String, String> header : headers.entrySet())
+			if (header.getKey().equalsIgnoreCase(name))
+				return header.getValue();
+		return null;
+	}
+
+	private static Map<String, String> cacheControl(Header header) {
+		return cacheControl(header == null ? null : header.getValue());
+	}
+
+	private static Map<String, String> cacheControl(String value) {
+		Map<String, String> directives = new TreeMap<String, String>();
+		if (value == null)
+			return directives;
+
+		for (String directive : value.split(",")) {
+			int equals = directive.indexOf('=');
+			if (equals < 0)
+				directives.put(directive.trim().toLowerCase(), null);
+			else
+				directives.put(directive.substring(0, equals).trim().toLowerCase(), directive.substring(equals + 1).trim().replace("\"", ""));
+		}
+		return directives;
+	}
+
+	private static String keyOf(String url) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			byte[] hash = digest.digest(url.getBytes("UTF-8"));
+			StringBuilder key = new StringBuilder(hash.length * 2);
+			for (byte b : hash)
+				key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			return key.toString();
+		} catch (NoSuchAlgorithmException e) {
+			return Integer.toHexString(url.hashCode());
+		} catch (IOException e) {
+			return Integer.toHexString(url.hashCode());
+		}
+	}
+
+	/**
+	 * A stored response.
+	 */
+	static class CacheEntry {
+		private final String url;
+		private long storedTime;
+		private final TreeMap<String, String> responseHeaders;
+		private final TreeMap<String, String> varyHeaders = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		private File body;
+
+		private CacheEntry(String url, long storedTime, TreeMap<String, String> responseHeaders) {
+			this.url = url;
+			this.storedTime = storedTime;
+			this.responseHeaders = responseHeaders;
+		}
+
+		boolean matchesVary(Map<String, String> requestHeaders) {
+			for (Entry<String, String> vary : varyHeaders.entrySet()) {
+				String value = findHeader(requestHeaders, vary.getKey());
+				if (value == null ? vary.getValue() != null : !value.equals(vary.getValue()))
+					return false;
+			}
+			return true;
+		}
+
+		/**
+		 * @return True if the entry may be used without asking the server.
+		 */
+		boolean isFresh(long now) {
+			Map<String, String> directives = cacheControl(responseHeaders.get("Cache-Control"));
+			if (directives.containsKey("no-cache"))
+				return false;
+
+			long age = Math.max(0, now - storedTime) + parseSeconds(responseHeaders.get("Age")) * 1000;
+			return age < freshnessLifetime(directives);
+		}
+
+		private long freshnessLifetime(Map<String, String> directives) {
+			if (directives.containsKey("max-age"))
+				return parseSeconds(directives.get("max-age")) * 1000;
+
+			long date = parseDate(responseHeaders.get("Date"), storedTime);
+			if (responseHeaders.containsKey("Expires"))
+				return parseDate(responseHeaders.get("Expires"), 0) - date;
+
+			// Heuristic freshness of a tenth of the time since the resource was last changed.
+			if (responseHeaders.containsKey("Last-Modified") && !url.contains("?"))
+				return (date - parseDate(responseHeaders.get("Last-Modified"), date)) / 10;
+			return 0;
+		}
+
+		boolean hasValidators() {
+			return getETag() != null || getLastModified() != null;
+		}
+
+		String getETag() {
+			return responseHeaders.get("ETag");
+		}
+
+		String getLastModified() {
+			return responseHeaders.get("Last-Modified");
+		}
+
+		String getContentType() {
+			return responseHeaders.get("Content-Type");
+		}
+
+		InputStream openBody() throws IOException {
+			return new FileInputStream(body);
+		}
+
+		/**
+		 * @return The size of the stored body in bytes.
+		 */
+		long getBodyLength() {
+			return body == null ? -1 : body.length();
+		}
+
+		String getUrl() {
+			return url;
+		}
+
+		private static long parseSeconds(String value) {
+			if (value == null)
+				return 0;
+			try {
+				return Long.parseLong(value.trim());
+			} catch (NumberFormatException e) {
+				return 0;
+			}
+		}
+
+		private static long parseDate(String value, long fallback) {
+			if (value == null)
+				return fallback;
+			try {
+				Date date = DateUtils.parseDate(value);
+				return date.getTime();
+			} catch (DateParseException e) {
+				return fallback;
+			}
+		}
+	}
+
+	/**
+	 * Copies the body into a temporary file while it is read and commits it to the cache at the end of the stream.
+	 */
+	private class CacheWriter extends FilterInputStream {
+		private final CacheEntry entry;
+		private final String key;
+		private final File tempBody;
+		private final OutputStream out;
+		private boolean done = false;
+
+		private CacheWriter(CacheEntry entry, InputStream body) throws IOException {
+			super(body);
+			this.entry = entry;
+			this.key = keyOf(entry.url);
+			this.tempBody = new File(directory, key + BODY + "." + Thread.currentThread().getId() + TEMP);
+			this.out = new BufferedOutputStream(new FileOutputStream(tempBody));
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b == -1)
+				finish(true);
+			else if (!done)
+				write(b);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int read;
+			try {
+				read = in.read(buffer, offset, length);
+			} catch (IOException e) {
+				finish(false);
+				throw e;
+			}
+
+			if (read == -1)
+				finish(true);
+			else if (!done)
+				write(buffer, offset, read);
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// Skipped bytes would be missing from the stored body.
+			byte[] buffer = bufferPool.acquire((int) Math.min(n, 4096));
+			try {
+				int read = read(buffer, 0, (int) Math.min(n, buffer.length));
+				return read < 0 ? 0 : read;
+			} finally {
+				bufferPool.release(buffer);
+			}
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				// The rest of the body is read anyway to reuse the connection, so store it too.
+				byte[] buffer = bufferPool.acquire(4096);
+				try {
+					while (!done && read(buffer, 0, buffer.length) != -1);
+				} finally {
+					bufferPool.release(buffer);
+				}
+			} finally {
+				finish(false);
+				in.close();
+			}
+		}
+
+		private void write(int b) {
+			try {
+				out.write(b);
+			} catch (IOException e) {
+				finish(false);
+			}
+		}
+
+		private void write(byte[] buffer, int offset, int length) {
+			try {
+				out.write(buffer, offset, length);
+			} catch (IOException e) {
+				finish(false);
+			}
+		}
+
+		private void finish(boolean complete) {
+			if (done)
+				return;
+			done = true;
+
+			try {
+				out.close();
+			} catch (IOException e) {
+				complete = false;
+			}
+
+			File tempMeta = new File(directory, key + META + "." + Thread.currentThread().getId() + TEMP);
+			if (complete) {
+				try {
+					writeMeta(entry, tempMeta);
+					commit(key, tempMeta, tempBody);
+					return;
+				} catch (IOException e) {
+				}
+			}
+			tempMeta.delete();
+			tempBody.delete();
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package com.example.networkrequestsapi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in fixed buckets so recording is a few atomic adds and never allocates. Durations are kept
+ * in microseconds; below 16us every value has its own bucket, above that each power of two is split into four,
+ * so a percentile read from a bucket is within about 12% of the real value.
+ *
+ * @author Saquib Hafiz
+ *
+ */
+class LatencyHistogram {
+	private static final int LINEAR = 16;
+	private static final int SUB_BUCKETS = 4;
+	// Up to 2^36us, about 19 hours.
+	static final int BUCKETS = LINEAR + (36 - 4) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		counts.incrementAndGet(bucketOf(micros));
+		total.addAndGet(micros);
+
+		long current;
+		while (micros > (current = max.get()) && !max.compareAndSet(current, micros)) {
+		}
+	}
+
+	static int bucketOf(long micros) {
+		if (micros < LINEAR)
+			return (int) micros;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int sub = (int) (micros >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+		return Math.min(BUCKETS - 1, LINEAR + (exponent - 4) * SUB_BUCKETS + sub);
+	}
+
+	/**
+	 * @return The middle of the bucket in microseconds.
+	 */
+	static double valueOf(int bucket) {
+		if (bucket < LINEAR)
+			return bucket;
+
+		int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+		int sub = (bucket - LINEAR) % SUB_BUCKETS;
+		long width = 1L << (exponent - 2);
+		return (1L << exponent) + sub * width + width / 2.0;
+	}
+
+	/**
+	 * Adds the counts of this histogram to the given arrays.
+	 *
+	 * @param into The bucket counts.
+	 * @param summary The count, the total and the max in microseconds.
+	 */
+	void copyTo(long[] into, long[] summary) {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			long bucket = counts.get(i);
+			into[i] += bucket;
+			count += bucket;
+		}
+		summary[0] += count;
+		summary[1] += total.get();
+		summary[2] = Math.max(summary[2], max.get());
+	}
+}
@@ -1,6 +1,6 @@
 package com.example.networkrequestsapi;
 
-import java.io.InputStream;
+import java.io.File;
 
 import android.app.Activity;
 import android.content.ComponentName;
@@ -12,7 +12,7 @@ import android.os.IBinder;
 import android.util.Log;
 import android.widget.TextView;
 
-import com.example.networkrequestsapi.NetworkService.NetworkResponseListener;
+import com.example.networkrequestsapi.NetworkService.DownloadListener;
 
 public class MainActivity extends Activity {
 
@@ -33,6 +33,7 @@ public class MainActivity extends Activity {
     private ServiceConnection mConnection = new ServiceConnection() {
         public void onServiceConnected(ComponentName className, IBinder service) {
             mBoundService = ((NetworkService.NetworkBinder)service).getService();
+            mBoundService.setCallbackExecutor(RequestOptions.MAIN_THREAD);
             
             getFromLink("http://www.google.ca");
             getFromLink("http://www.facebook.com");
@@ -40,28 +41,27 @@ public class MainActivity extends Activity {
             getFromLink("http://www.allkpop.com");
             getFromLink("http://www.ssdfsdfasdfsdfsdf.com");
             getFromLink("http://www.reddit.com");
-            getFromLink("http://i.imgur.com/maVfxwi.gif");
+            downloadFromLink("http://i.imgur.com/maVfxwi.gif");
             
         }
 
-		public void getFromLink(final String url) {
-			mBoundService.get(url, new NetworkResponseListener() {
+		public void downloadFromLink(final String url) {
+			mBoundService.download(url, new File(getCacheDir(), "maVfxwi.gif"), new DownloadListener() {
 				
 				@Override
-				public void onSuccess(InputStream data) {
-					try {
-						final String dataString = NetworkService.inputStreamToString(data);
-						Log.d("MainActiivty", dataString);
-						runOnUiThread(new Runnable() {
-							
-							@Override
-							public void run() {
-								tv.setText(url + " worked.\n" + dataString);
-							}
-						});
-					} catch (Exception e) {
-						e.printStackTrace();
-					}
+				public void onProgress(long bytesDownloaded, long totalBytes) {
+					Log.d("MainActiivty", url + " downloaded " + bytesDownloaded + " of " + totalBytes);
+				}
+				
+				@Override
+				public void onSuccess(final File file) {
+					runOnUiThread(new Runnable() {
+						
+						@Override
+						public void run() {
+							tv.setText(url + " worked.\n" + file.length() + " bytes saved to " + file);
+						}
+					});
 				}
 				
 				@Override
@@ -77,6 +77,22 @@ public class MainActivity extends Activity {
 			});
 		}
 
+		public void getFromLink(final String url) {
+			mBoundService.get(url, new DecodedResponseListener<String>(ResponseDecoders.STRING) {
+				
+				@Override
+				public void onResult(String dataString) {
+					Log.d("MainActiivty", dataString);
+					tv.setText(url + " worked.\n" + dataString);
+				}
+				
+				@Override
+				public void onError(Exception error) {
+					tv.setText(url + " failed.\n" + error.getMessage());
+				}
+			});
+		}
+
         public void onServiceDisconnected(ComponentName className) {
             mBoundService = null;
         }
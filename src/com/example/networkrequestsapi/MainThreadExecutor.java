@@ -0,0 +1,53 @@
+package com.example.networkrequestsapi;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Runs callbacks on the main thread. Only one message is posted at a time; callbacks that arrive while it waits
+ * are run by the same message, so a burst of responses costs the main thread one message instead of one each.
+ * 
+ * @author Saquib Hafiz
+ *
+ */
+class MainThreadExecutor implements Executor {
+	private ArrayList<Runnable> pending = new ArrayList<Runnable>();
+	private ArrayList<Runnable> running = new ArrayList<Runnable>();
+	private Handler handler;
+	private boolean posted = false;
+	
+	private final Runnable drain = new Runnable() {
+		@Override
+		public void run() {
+			ArrayList<Runnable> batch;
+			synchronized (MainThreadExecutor.this) {
+				batch = pending;
+				pending = running;
+				running = batch;
+				posted = false;
+			}
+			
+			try {
+				for (int i = 0; i < batch.size(); i++)
+					batch.get(i).run();
+			} finally {
+				batch.clear();
+			}
+		}
+	};
+	
+	@Override
+	public synchronized void execute(Runnable command) {
+		pending.add(command);
+		if (posted)
+			return;
+		
+		if (handler == null)
+			handler = new Handler(Looper.getMainLooper());
+		posted = true;
+		handler.post(drain);
+	}
+}
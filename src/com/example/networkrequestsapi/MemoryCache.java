@@ -0,0 +1,88 @@
+package com.example.networkrequestsapi;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import com.example.networkrequestsapi.HttpCache.CacheEntry;
+
+/**
+ * An in-memory tier in front of the HttpCache for small responses that are read over and over, like config and
+ * feature flag endpoints. The budget is in bytes of response body and the least recently used entries are dropped
+ * first. Bodies are never copied; every listener reads the same array.
+ * 
+ * @author Saquib Hafiz
+ *
+ */
+class MemoryCache {
+	
+	static class MemoryEntry {
+		final CacheEntry metadata;
+		final byte[] body;
+		
+		MemoryEntry(CacheEntry metadata, byte[] body) {
+			this.metadata = metadata;
+			this.body = body;
+		}
+	}
+	
+	private final LinkedHashMap<String, MemoryEntry> entries = new LinkedHashMap<String, MemoryEntry>(32, 0.75f, true);
+	private long maxSize;
+	private long size = 0;
+	
+	MemoryCache(long maxSize) {
+		this.maxSize = maxSize;
+	}
+	
+	synchronized MemoryEntry get(String url) {
+		return entries.get(url);
+	}
+	
+	/**
+	 * Stores the body if it is small enough, replacing any older response for the same URL.
+	 */
+	synchronized void put(CacheEntry metadata, byte[] body) {
+		if (body.length > getMaxEntrySize())
+			return;
+		
+		MemoryEntry old = entries.put(metadata.getUrl(), new MemoryEntry(metadata, body));
+		if (old != null)
+			size -= old.body.length;
+		size += body.length;
+		trimToSize(maxSize);
+	}
+	
+	synchronized void remove(String url) {
+		MemoryEntry old = entries.remove(url);
+		if (old != null)
+			size -= old.body.length;
+	}
+	
+	/**
+	 * @return The largest body that is kept in memory, an eighth of the budget so one response cannot flush the rest.
+	 */
+	synchronized long getMaxEntrySize() {
+		return maxSize / 8;
+	}
+	
+	synchronized void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+		trimToSize(maxSize);
+	}
+	
+	synchronized long getMaxSize() {
+		return maxSize;
+	}
+	
+	synchronized long size() {
+		return size;
+	}
+	
+	synchronized void trimToSize(long limit) {
+		Iterator<Entry<String, MemoryEntry>> eldest = entries.entrySet().iterator();
+		while (size > limit && eldest.hasNext()) {
+			size -= eldest.next().getValue().body.length;
+			eldest.remove();
+		}
+	}
+}
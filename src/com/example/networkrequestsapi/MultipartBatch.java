@@ -0,0 +1,202 @@
+package com.example.networkrequestsapi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+
+/**
+ * Packs several HTTP requests into one multipart/mixed body of application/http parts and unpacks the
+ * multipart/mixed answer, as batch endpoints such as Google's and OData's expect.
+ *
+ * @author Saquib Hafiz
+ *
+ */
+final class MultipartBatch {
+	private static final Random random = new Random();
+
+	/**
+	 * One unpacked response.
+	 */
+	static class Part {
+		final int statusCode;
+		final String reasonPhrase;
+		final byte[] body;
+
+		private Part(int statusCode, String reasonPhrase, byte[] body) {
+			this.statusCode = statusCode;
+			this.reasonPhrase = reasonPhrase;
+			this.body = body;
+		}
+	}
+
+	private MultipartBatch() {
+	}
+
+	static String newBoundary() {
+		return "batch_" + Long.toHexString(random.nextLong() & Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param urls The url of each call with its parameters.
+	 */
+	static byte[] encode(List<RequestBatch.Call> calls, List<String> urls, String boundary) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < calls.size(); i++) {
+			RequestBatch.Call call = calls.get(i);
+			URI uri;
+			try {
+				uri = new URI(urls.get(i));
+			} catch (URISyntaxException e) {
+				throw new IOException("Invalid url in batch : " + urls.get(i));
+			}
+
+			String target = uri.getRawPath() == null || uri.getRawPath().length() == 0 ? "/" : uri.getRawPath();
+			if (uri.getRawQuery() != null)
+				target += "?" + uri.getRawQuery();
+
+			StringBuilder head = new StringBuilder();
+			head.append("--").append(boundary).append("\r\n");
+			head.append("Content-Type: application/http\r\n");
+			head.append("Content-Transfer-Encoding: binary\r\n");
+			head.append("Content-ID: <").append(i + 1).append(">\r\n\r\n");
+			head.append(call.method).append(' ').append(target).append(" HTTP/1.1\r\n");
+			head.append("Host: ").append(uri.getPort() == -1 ? uri.getHost() : uri.getHost() + ":" + uri.getPort()).append("\r\n");
+			for (Entry<String, String> header : call.headers.entrySet())
+				head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+			if (call.content != null)
+				head.append("Content-Length: ").append(call.content.length).append("\r\n");
+			head.append("\r\n");
+
+			out.write(head.toString().getBytes("UTF-8"));
+			if (call.content != null)
+				out.write(call.content);
+			out.write(ascii("\r\n"));
+		}
+		out.write(ascii("--" + boundary + "--\r\n"));
+		return out.toByteArray();
+	}
+
+	/**
+	 * Finds the boundary from the first delimiter line, since the listener does not see the response headers.
+	 *
+	 * @return The responses, in the order of the calls.
+	 */
+	static Part[] decode(byte[] body, int count) throws IOException {
+		int start = indexOf(body, ascii("--"), 0);
+		int lineEnd = start < 0 ? -1 : indexOf(body, ascii("\r\n"), start);
+		if (lineEnd < 0)
+			throw new IOException("Batch response is not multipart.");
+
+		byte[] delimiter = ascii("\r\n" + new String(body, start, lineEnd - start, "US-ASCII").trim());
+		Part[] parts = new Part[count];
+		List<Part> unnumbered = new ArrayList<Part>();
+
+		// Positions are of "\r\n--boundary", so step back two bytes for the first delimiter.
+		int position = start - 2;
+		while (true) {
+			int partStart = position + delimiter.length;
+			if (partStart + 2 <= body.length && body[partStart] == '-' && body[partStart + 1] == '-')
+				break;
+			int next = indexOf(body, delimiter, partStart);
+			if (next < 0)
+				break;
+
+			int headersEnd = indexOf(body, ascii("\r\n\r\n"), partStart);
+			if (headersEnd < 0 || headersEnd > next)
+				throw new IOException("Malformed part in batch response.");
+
+			String partHeaders = new String(body, partStart, headersEnd - partStart, "UTF-8");
+			Part part = parseResponse(body, headersEnd + 4, next);
+			int id = parseContentId(partHeaders);
+			if (id >= 1 && id <= count && parts[id - 1] == null)
+				parts[id - 1] = part;
+			else
+				unnumbered.add(part);
+			position = next;
+		}
+
+		int fill = 0;
+		for (Part part : unnumbered) {
+			while (fill < count && parts[fill] != null)
+				fill++;
+			if (fill < count)
+				parts[fill] = part;
+		}
+		return parts;
+	}
+
+	private static Part parseResponse(byte[] body, int from, int to) throws IOException {
+		int headersEnd = indexOf(body, ascii("\r\n\r\n"), from);
+		if (headersEnd < 0 || headersEnd > to)
+			headersEnd = to;
+
+		String head = new String(body, from, headersEnd - from, "UTF-8");
+		String statusLine = head.split("\r\n", 2)[0];
+		String[] status = statusLine.split(" ", 3);
+		if (status.length < 2 || !status[0].startsWith("HTTP/"))
+			throw new IOException("Malformed response in batch : " + statusLine);
+
+		int statusCode;
+		try {
+			statusCode = Integer.parseInt(status[1]);
+		} catch (NumberFormatException e) {
+			throw new IOException("Malformed response in batch : " + statusLine);
+		}
+
+		int bodyStart = Math.min(to, headersEnd + 4);
+		byte[] partBody = new byte[to - bodyStart];
+		System.arraycopy(body, bodyStart, partBody, 0, partBody.length);
+		return new Part(statusCode, status.length > 2 ? status[2] : "", partBody);
+	}
+
+	/**
+	 * @return The number in a Content-ID such as "&lt;response-3&gt;", or -1.
+	 */
+	private static int parseContentId(String headers) {
+		for (String line : headers.split("\r\n")) {
+			if (!line.toLowerCase().startsWith("content-id:"))
+				continue;
+
+			String value = line.substring(11).trim();
+			int end = value.length();
+			while (end > 0 && !Character.isDigit(value.charAt(end - 1)))
+				end--;
+			int begin = end;
+			while (begin > 0 && Character.isDigit(value.charAt(begin - 1)))
+				begin--;
+			if (begin == end)
+				return -1;
+			try {
+				return Integer.parseInt(value.substring(begin, end));
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	private static int indexOf(byte[] data, byte[] pattern, int from) {
+		outer:
+		for (int i = Math.max(0, from); i <= data.length - pattern.length; i++) {
+			for (int j = 0; j < pattern.length; j++)
+				if (data[i + j] != pattern[j])
+					continue outer;
+			return i;
+		}
+		return -1;
+	}
+
+	private static byte[] ascii(String value) {
+		try {
+			return value.getBytes("US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+}
@@ -1,19 +1,53 @@
 package com.example.networkrequestsapi;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.http.Header;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.methods.HttpDelete;
@@ -22,15 +56,44 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+import com.example.networkrequestsapi.BufferPool.PooledOutputStream;
+import com.example.networkrequestsapi.FileDownload.RangeHandler;
+import com.example.networkrequestsapi.HttpCache.CacheEntry;
+import com.example.networkrequestsapi.MemoryCache.MemoryEntry;
+import com.example.networkrequestsapi.NetworkStats.Phase;
+import com.example.networkrequestsapi.RequestOptions.Priority;
 
 import android.app.Service;
+import android.content.ComponentCallbacks2;
 import android.content.Intent;
-import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -39,16 +102,97 @@ import android.util.Log;
  */
 public class NetworkService extends Service {
     private final IBinder mBinder = new NetworkBinder();
-    private int MAX_NUM_OF_CALLS = 8;
-    private Queue<NetworkRequest> backlog;
-    private List<NetworkRequest> currentlyRequesting;
+    private volatile int MAX_NUM_OF_CALLS = 8;
+    private volatile ConcurrencyLimiter concurrencyLimiter;
+    private RequestScheduler<NetworkRequest> backlog;
+    private Set<NetworkRequest> currentlyRequesting;
 	private int readTimeoutTime = 20000;
 	private int connectTimeoutTime = 30000;
-	private int currentCallCount = 0;
+	private final AtomicInteger currentCallCount = new AtomicInteger();
+	private int workerPoolSize = MAX_NUM_OF_CALLS;
+	private ThreadPoolExecutor workerPool;
 	private boolean DEBUG = true;
+	private long idleConnectionTime = 30000;
+	private volatile DefaultHttpClient httpClient;
+	private volatile ThreadSafeClientConnManager connectionManager;
+	private final List<ThreadSafeClientConnManager> retiredConnectionManagers = new CopyOnWriteArrayList<ThreadSafeClientConnManager>();
+	private ConnPerRouteBean connectionsPerRoute;
+	private int connectionPoolSize;
+	private ScheduledExecutorService scheduler;
+	private final AtomicLong connectionsOpened = new AtomicLong();
+	private final AtomicLong connectionsReused = new AtomicLong();
+	private final AtomicLong connectionsPreconnected = new AtomicLong();
+	private final Set<Object> preconnected = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<Object, Boolean>()));
+	private final DnsCache dnsCache = new DnsCache(60000, 10000);
+	private SSLSocketFactory sslSocketFactory;
+	private final ConcurrentHashMap<String, NetworkRequest> coalescingRequests = new ConcurrentHashMap<String, NetworkRequest>();
+	private final AtomicLong coalescedRequests = new AtomicLong();
+	private long cacheSize = 10 * 1024 * 1024;
+	private HttpCache httpCache;
+	private ExecutorService cacheExecutor;
+	// Preconnects run apart from the workers, so warming up a screen never holds up a request.
+	private ThreadPoolExecutor preconnectExecutor;
+	private static final int PRECONNECT_THREADS = 2;
+	// Cache hits for listeners called on the worker thread, kept apart from the call slots so a hit never waits
+	// behind a blocked call.
+	private ThreadPoolExecutor hitExecutor;
+	private static final int HIT_THREADS = 2;
+	private final MemoryCache memoryCache = new MemoryCache(1024 * 1024);
+	private final AtomicLong memoryCacheHits = new AtomicLong();
+	private final BufferPool bufferPool = new BufferPool(1024 * 1024);
+	private final CompressionInterceptor compression = new CompressionInterceptor();
+	private int compressionThreshold = 1024;
+	private RetryPolicy retryPolicy = new RetryPolicy();
+	private final RetryBudget retryBudget = new RetryBudget(10, 0.1);
+	private Set<NetworkRequest> waitingRetries;
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong retriesDenied = new AtomicLong();
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong cacheMisses = new AtomicLong();
+	private final AtomicLong cacheRevalidations = new AtomicLong();
+	private final AtomicLong cacheNotModified = new AtomicLong();
+	private final NetworkStats.Recorder stats = new NetworkStats.Recorder();
+	private final ThreadLocal<NetworkRequest> executingRequest = new ThreadLocal<NetworkRequest>();
+	private static final NetworkEventListener[] NO_EVENT_LISTENERS = new NetworkEventListener[0];
+	private volatile NetworkEventListener[] eventListeners = NO_EVENT_LISTENERS;
+	private final AtomicLong requestIds = new AtomicLong();
+	private volatile Transport transport = Transport.BLOCKING;
+	private volatile NioTransport nioTransport;
+	private volatile Executor callbackExecutor;
+	private RequestJournal journal;
+	private ExecutorService journalExecutor;
+	private volatile ReplayListener replayListener;
+	// Read back from the journal and held until a ReplayListener is set, or null.
+	private List<RequestJournal.Request> unreplayed;
+	private volatile boolean deferBackground = false;
+	private volatile ConnectivitySource connectivitySource;
+	private volatile boolean connected = true;
+	private volatile boolean metered = false;
+	private volatile long radioTailTime = 10000;
+	private volatile long maxDeferralTime = 15 * 60 * 1000;
+	private volatile long maxDurableAge = 24 * 60 * 60 * 1000;
+	private volatile long radioActiveUntil = 0;
+	private ScheduledFuture<?> deferralCheck;
+	private long deferralCheckTime;
+	private final ConnectivitySource.Listener connectivityListener = new ConnectivitySource.Listener() {
+		@Override
+		public void onConnectivityChanged() {
+			// Another network may have another DNS server, and a host that did not resolve offline may now.
+			dnsCache.clear();
+			readConnectivity();
+			executeRequests();
+		}
+	};
 	
 	private enum RequestType { GET, POST, PUT, DELETE };
 	
+	/**
+	 * How requests are sent. BLOCKING holds a worker thread for each call from connect to the end of the body.
+	 * NIO runs every call on one selector thread and only takes a worker to handle the response. HTTP2 is NIO
+	 * with every request to an origin multiplexed on one HTTP/2 connection where the server speaks it.
+	 */
+	public enum Transport { BLOCKING, NIO, HTTP2 };
+	
 	public class NetworkBinder extends Binder {
 		public NetworkService getService() {
             return NetworkService.this;
@@ -58,8 +202,45 @@ public class NetworkService extends Service {
 	
 	@Override
     public void onCreate() {
-		backlog = new ConcurrentLinkedQueue<NetworkService.NetworkRequest>();
-		currentlyRequesting = new ArrayList<NetworkService.NetworkRequest>(MAX_NUM_OF_CALLS);
+		backlog = new RequestScheduler<NetworkService.NetworkRequest>(4);
+		currentlyRequesting = Collections.newSetFromMap(new ConcurrentHashMap<NetworkService.NetworkRequest, Boolean>());
+		waitingRetries = Collections.newSetFromMap(new ConcurrentHashMap<NetworkService.NetworkRequest, Boolean>());
+		workerPool = new ThreadPoolExecutor(workerPoolSize, workerPoolSize, idleConnectionTime, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory());
+		workerPool.allowCoreThreadTimeOut(true);
+		preconnectExecutor = new ThreadPoolExecutor(PRECONNECT_THREADS, PRECONNECT_THREADS, idleConnectionTime, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory());
+		preconnectExecutor.allowCoreThreadTimeOut(true);
+		hitExecutor = new ThreadPoolExecutor(HIT_THREADS, HIT_THREADS, idleConnectionTime, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory());
+		hitExecutor.allowCoreThreadTimeOut(true);
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+		httpClient = createHttpClient();
+		scheduler.scheduleWithFixedDelay(new IdleConnectionMonitor(), idleConnectionTime, idleConnectionTime, TimeUnit.MILLISECONDS);
+		httpCache = new HttpCache(new File(getCacheDir(), "http"), cacheSize, bufferPool);
+		bufferPool.setDebug(DEBUG);
+		cacheExecutor = Executors.newSingleThreadExecutor(new WorkerThreadFactory());
+		cacheExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				httpCache.open();
+			}
+		});
+		journalExecutor = Executors.newSingleThreadExecutor(new WorkerThreadFactory());
+		journal = new RequestJournal(new File(getFilesDir(), "requests.journal"), journalExecutor);
+		journalExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				List<RequestJournal.Request> stored = journal.open();
+				synchronized (NetworkService.this) {
+					if (replayListener == null) {
+						unreplayed = stored;
+						return;
+					}
+				}
+				replay(stored);
+			}
+		});
 		log("Created Network Service");
     }
 	
@@ -71,10 +252,43 @@ public class NetworkService extends Service {
 	
 	@Override
 	public void onDestroy() {
+		// Closed first, so the durable requests cancelled below are replayed when the service starts again.
+		journal.close();
+		if (connectivitySource != null)
+			connectivitySource.setListener(null);
 		clearAll();
+		if (nioTransport != null)
+			nioTransport.shutdown();
+		workerPool.shutdownNow();
+		preconnectExecutor.shutdownNow();
+		hitExecutor.shutdownNow();
+		cacheExecutor.shutdownNow();
+		journalExecutor.shutdown();
+		scheduler.shutdownNow();
+		connectionManager.shutdown();
+		for (ThreadSafeClientConnManager retired : retiredConnectionManagers)
+			retired.shutdown();
+		retiredConnectionManagers.clear();
 		log("Destroyed Network Service");
 	}
 
+	@Override
+	public void onTrimMemory(int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+			memoryCache.trimToSize(0);
+		else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+			memoryCache.trimToSize(memoryCache.getMaxSize() / 2);
+		bufferPool.trimToSize(0);
+		log("Trimmed memory cache to " + memoryCache.size() + " bytes.");
+	}
+
+	@Override
+	public void onLowMemory() {
+		memoryCache.trimToSize(0);
+		bufferPool.trimToSize(0);
+		log("Cleared memory cache.");
+	}
+
 	@Override
 	public IBinder onBind(Intent intent) {
 		log("Bound to Network Service");
@@ -88,542 +302,3542 @@ public class NetworkService extends Service {
 	 * @param headers A key-value map for headers.
 	 * @param parameters A key-value map for parameters.
 	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
 	 */
-	public void get(String url, 
+	public RequestHandle<Void> get(String url, 
 			Map<String, String> headers,
 			Map<String, String> parameters,
 			NetworkResponseListener listener) {
-		makeCall(new NetworkRequest(url, headers, parameters, null, listener, RequestType.GET));
+		return get(url, headers, parameters, new RequestOptions(), listener);
 	}
 
 	/**
-	 * HTTP POST call.
+	 * HTTP GET call.
 	 * 
 	 * @param url The URL string.
 	 * @param headers A key-value map for headers.
 	 * @param parameters A key-value map for parameters.
-	 * @param content The content you want to post/put in the request.
+	 * @param options The RequestOptions for this call, e.g. its priority.
 	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
 	 */
-	public void post(String url, 
+	public RequestHandle<Void> get(String url, 
 			Map<String, String> headers,
 			Map<String, String> parameters,
-			byte[] content,
+			RequestOptions options,
 			NetworkResponseListener listener) {
-		makeCall(new NetworkRequest(url, headers, parameters, content, listener, RequestType.POST));
+		return makeCall(new NetworkRequest(url, headers, parameters, (byte[]) null, options, listener, RequestType.GET), new RequestHandle<Void>());
 	}
 
 	/**
-	 * HTTP PUT call.
+	 * HTTP POST call.
 	 * 
 	 * @param url The URL string.
 	 * @param headers A key-value map for headers.
 	 * @param parameters A key-value map for parameters.
 	 * @param content The content you want to post/put in the request.
 	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
 	 */
-	public void put(String url, 
+	public RequestHandle<Void> post(String url, 
 			Map<String, String> headers,
 			Map<String, String> parameters,
 			byte[] content,
 			NetworkResponseListener listener) {
-		makeCall(new NetworkRequest(url, headers, parameters, content, listener, RequestType.PUT));
+		return post(url, headers, parameters, content, new RequestOptions(), listener);
 	}
-	
+
 	/**
-	 * HTTP DELETE call.
+	 * HTTP POST call.
 	 * 
 	 * @param url The URL string.
 	 * @param headers A key-value map for headers.
 	 * @param parameters A key-value map for parameters.
+	 * @param content The content you want to post/put in the request.
+	 * @param options The RequestOptions for this call, e.g. its priority.
 	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
 	 */
-	public void delete(String url, 
+	public RequestHandle<Void> post(String url, 
 			Map<String, String> headers,
 			Map<String, String> parameters,
+			byte[] content,
+			RequestOptions options,
 			NetworkResponseListener listener) {
-		makeCall(new NetworkRequest(url, headers, parameters, null, listener, RequestType.DELETE));
-	}
-	
-	private void makeCall(NetworkRequest request) {
-		backlog.add(request);
-		
-		if (currentCallCount < MAX_NUM_OF_CALLS)
-			executeRequest();
+		return makeCall(new NetworkRequest(url, headers, parameters, content, options, listener, RequestType.POST), new RequestHandle<Void>());
 	}
 
-	private void executeRequest() {
-		NetworkRequest nextRequest;
-		if ((nextRequest = backlog.poll()) != null) {
-			incCurrentCallCount();
-			currentlyRequesting.add(nextRequest);
-			nextRequest.execute();
-		}
-		
-		log("Executing a request from the backlog.");
-	}
-	
-	/*
-	 *		This is all the extended API for easier use
-	 */
-	
 	/**
-	 * HTTP GET call.
+	 * HTTP PUT call.
 	 * 
 	 * @param url The URL string.
 	 * @param headers A key-value map for headers.
+	 * @param parameters A key-value map for parameters.
+	 * @param content The content you want to post/put in the request.
 	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
 	 */
-	public void get(String url, 
+	public RequestHandle<Void> put(String url, 
 			Map<String, String> headers,
+			Map<String, String> parameters,
+			byte[] content,
 			NetworkResponseListener listener) {
-		get(url, headers, new HashMap<String, String>(), listener);
-	}
-
-	/**
-	 * HTTP GET call.
-	 * 
-	 * @param url The URL string.
-	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
-	 */
-	public void get(String url,
-		NetworkResponseListener listener) {
-		get(url,  new HashMap<String, String>(),  new HashMap<String, String>(), listener);
+		return put(url, headers, parameters, content, new RequestOptions(), listener);
 	}
 
 	/**
-	 * HTTP POST call.
+	 * HTTP PUT call.
 	 * 
 	 * @param url The URL string.
 	 * @param headers A key-value map for headers.
+	 * @param parameters A key-value map for parameters.
 	 * @param content The content you want to post/put in the request.
+	 * @param options The RequestOptions for this call, e.g. its priority.
 	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
 	 */
-	public void post(String url, 
+	public RequestHandle<Void> put(String url, 
 			Map<String, String> headers,
-			String content,
-			NetworkResponseListener listener) {
-		post(url, headers, new HashMap<String, String>(), content.getBytes(), listener);
-	}
-
-	/**
-	 * HTTP POST call.
-	 * 
-	 * @param url The URL string.
-	 * @param content The content you want to post/put in the request.
-	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
-	 */
-	public void post(String url, 
-			String content,
+			Map<String, String> parameters,
+			byte[] content,
+			RequestOptions options,
 			NetworkResponseListener listener) {
-		post(url, new HashMap<String, String>(), new HashMap<String, String>(), content.getBytes(), listener);
+		return makeCall(new NetworkRequest(url, headers, parameters, content, options, listener, RequestType.PUT), new RequestHandle<Void>());
 	}
 	
 	/**
-	 * HTTP POST call.
+	 * HTTP DELETE call.
 	 * 
 	 * @param url The URL string.
 	 * @param headers A key-value map for headers.
-	 * @param content The content you want to post/put in the request.
+	 * @param parameters A key-value map for parameters.
 	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
 	 */
-	public void post(String url, 
+	public RequestHandle<Void> delete(String url, 
 			Map<String, String> headers,
-			byte[] content,
+			Map<String, String> parameters,
 			NetworkResponseListener listener) {
-		post(url, headers, new HashMap<String, String>(), content, listener);
+		return delete(url, headers, parameters, new RequestOptions(), listener);
 	}
 
 	/**
-	 * HTTP POST call.
+	 * HTTP DELETE call.
 	 * 
 	 * @param url The URL string.
-	 * @param content The content you want to post/put in the request.
+	 * @param headers A key-value map for headers.
+	 * @param parameters A key-value map for parameters.
+	 * @param options The RequestOptions for this call, e.g. its priority.
 	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
 	 */
-	public void post(String url, 
-			byte[] content,
+	public RequestHandle<Void> delete(String url, 
+			Map<String, String> headers,
+			Map<String, String> parameters,
+			RequestOptions options,
 			NetworkResponseListener listener) {
-		post(url, new HashMap<String, String>(), new HashMap<String, String>(), content, listener);
+		return makeCall(new NetworkRequest(url, headers, parameters, (byte[]) null, options, listener, RequestType.DELETE), new RequestHandle<Void>());
 	}
-
+	
 	/**
-	 * HTTP POST call.
+	 * HTTP GET call whose response is decoded on the worker thread and handed to the returned RequestHandle.
 	 * 
 	 * @param url The URL string.
 	 * @param headers A key-value map for headers.
 	 * @param parameters A key-value map for parameters.
-	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @param options The RequestOptions for this call, e.g. its priority.
+	 * @param decoder The ResponseDecoder for the body, e.g. ResponseDecoders.JSON_OBJECT.(cannot be null).
+	 * @return The RequestHandle that completes with the decoded response.
 	 */
-	public void post(String url, 
+	public <T> RequestHandle<T> get(String url, 
 			Map<String, String> headers,
 			Map<String, String> parameters,
-			NetworkResponseListener listener) {
-		post(url, headers, parameters, new byte[0], listener);
+			RequestOptions options,
+			ResponseDecoder<T> decoder) {
+		return makeCall(url, headers, parameters, null, options, decoder, RequestType.GET);
 	}
-
+	
 	/**
-	 * HTTP POST call.
+	 * HTTP POST call whose response is decoded on the worker thread and handed to the returned RequestHandle.
 	 * 
 	 * @param url The URL string.
 	 * @param headers A key-value map for headers.
-	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @param parameters A key-value map for parameters.
+	 * @param content The content you want to post in the request.
+	 * @param options The RequestOptions for this call, e.g. its priority.
+	 * @param decoder The ResponseDecoder for the body, e.g. ResponseDecoders.JSON_OBJECT.(cannot be null).
+	 * @return The RequestHandle that completes with the decoded response.
 	 */
-	public void post(String url, 
+	public <T> RequestHandle<T> post(String url, 
 			Map<String, String> headers,
-			NetworkResponseListener listener) {
-		post(url, headers, new HashMap<String, String>(),  new byte[0], listener);
+			Map<String, String> parameters,
+			byte[] content,
+			RequestOptions options,
+			ResponseDecoder<T> decoder) {
+		return makeCall(url, headers, parameters, content, options, decoder, RequestType.POST);
 	}
-
+	
 	/**
-	 * HTTP POST call.
+	 * HTTP PUT call whose response is decoded on the worker thread and handed to the returned RequestHandle.
 	 * 
 	 * @param url The URL string.
-	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @param headers A key-value map for headers.
+	 * @param parameters A key-value map for parameters.
+	 * @param content The content you want to put in the request.
+	 * @param options The RequestOptions for this call, e.g. its priority.
+	 * @param decoder The ResponseDecoder for the body, e.g. ResponseDecoders.JSON_OBJECT.(cannot be null).
+	 * @return The RequestHandle that completes with the decoded response.
 	 */
-	public void post(String url,
-		NetworkResponseListener listener) {
-		post(url, new HashMap<String, String>(), new HashMap<String, String>(),  new byte[0], listener);
+	public <T> RequestHandle<T> put(String url, 
+			Map<String, String> headers,
+			Map<String, String> parameters,
+			byte[] content,
+			RequestOptions options,
+			ResponseDecoder<T> decoder) {
+		return makeCall(url, headers, parameters, content, options, decoder, RequestType.PUT);
 	}
 	
 	/**
-	 * HTTP POST call.
+	 * HTTP DELETE call whose response is decoded on the worker thread and handed to the returned RequestHandle.
 	 * 
 	 * @param url The URL string.
 	 * @param headers A key-value map for headers.
 	 * @param parameters A key-value map for parameters.
-	 * @param content The content you want to post/put in the request.
-	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @param options The RequestOptions for this call, e.g. its priority.
+	 * @param decoder The ResponseDecoder for the body, e.g. ResponseDecoders.JSON_OBJECT.(cannot be null).
+	 * @return The RequestHandle that completes with the decoded response.
 	 */
-	public void post(String url, 
+	public <T> RequestHandle<T> delete(String url, 
 			Map<String, String> headers,
 			Map<String, String> parameters,
-			String content,
-			NetworkResponseListener listener) {
-		post(url, headers, parameters, content.getBytes(), listener);
+			RequestOptions options,
+			ResponseDecoder<T> decoder) {
+		return makeCall(url, headers, parameters, null, options, decoder, RequestType.DELETE);
 	}
-
+	
 	/**
-	 * HTTP PUT call.
+	 * HTTP POST call that streams its content instead of holding it in memory.
 	 * 
 	 * @param url The URL string.
 	 * @param headers A key-value map for headers.
 	 * @param parameters A key-value map for parameters.
-	 * @param content The content you want to post/put in the request.
+	 * @param content The stream to send, it is closed once it has been sent.
+	 * @param length The number of bytes in the stream, or -1 to send it with chunked transfer encoding.
+	 * @param options The RequestOptions for this call, e.g. an upload progress listener.
 	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
 	 */
-	public void put(String url, 
+	public RequestHandle<Void> post(String url, 
 			Map<String, String> headers,
 			Map<String, String> parameters,
-			String content,
+			InputStream content,
+			long length,
+			RequestOptions options,
 			NetworkResponseListener listener) {
-		put(url, headers, parameters, content.getBytes(), listener);
+		return makeCall(new NetworkRequest(url, headers, parameters, RequestEntities.fromStream(content, length), options, listener, RequestType.POST), new RequestHandle<Void>());
 	}
 
 	/**
-	 * HTTP PUT call.
+	 * HTTP POST call that streams a file.
 	 * 
 	 * @param url The URL string.
 	 * @param headers A key-value map for headers.
-	 * @param content The content you want to post/put in the request.
+	 * @param parameters A key-value map for parameters.
+	 * @param content The file to send.
+	 * @param options The RequestOptions for this call, e.g. an upload progress listener.
 	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
 	 */
-	public void put(String url, 
+	public RequestHandle<Void> post(String url, 
 			Map<String, String> headers,
-			String content,
+			Map<String, String> parameters,
+			File content,
+			RequestOptions options,
 			NetworkResponseListener listener) {
-		put(url, headers, new HashMap<String, String>(), content.getBytes(), listener);
+		return makeCall(new NetworkRequest(url, headers, parameters, RequestEntities.fromFile(content), options, listener, RequestType.POST), new RequestHandle<Void>());
 	}
-	
+
 	/**
-	 * HTTP PUT call.
+	 * HTTP POST call whose content is written straight to the connection by a BodyWriter.
 	 * 
 	 * @param url The URL string.
 	 * @param headers A key-value map for headers.
-	 * @param content The content you want to post/put in the request.
+	 * @param parameters A key-value map for parameters.
+	 * @param content The BodyWriter that writes the content.
+	 * @param length The number of bytes the writer writes, or -1 to send it with chunked transfer encoding.
+	 * @param options The RequestOptions for this call, e.g. an upload progress listener.
 	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
 	 */
-	public void put(String url, 
+	public RequestHandle<Void> post(String url, 
 			Map<String, String> headers,
-			byte[] content,
+			Map<String, String> parameters,
+			BodyWriter content,
+			long length,
+			RequestOptions options,
 			NetworkResponseListener listener) {
-		put(url, headers, new HashMap<String, String>(), content, listener);
+		return makeCall(new NetworkRequest(url, headers, parameters, RequestEntities.fromWriter(content, length), options, listener, RequestType.POST), new RequestHandle<Void>());
 	}
 
 	/**
-	 * HTTP PUT call.
-	 * 
-	 * @param url The URL string.
-	 * @param content The content you want to post/put in the request.
-	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
-	 */
-	public void put(String url, 
-			String content,
-			NetworkResponseListener listener) {
-		put(url, new HashMap<String, String>(), new HashMap<String, String>(), content.getBytes(), listener);
-	}
-	
-	/**
-	 * HTTP PUT call.
+	 * HTTP PUT call that streams its content instead of holding it in memory.
 	 * 
 	 * @param url The URL string.
-	 * @param content The content you want to post/put in the request.
+	 * @param headers A key-value map for headers.
+	 * @param parameters A key-value map for parameters.
+	 * @param content The stream to send, it is closed once it has been sent.
+	 * @param length The number of bytes in the stream, or -1 to send it with chunked transfer encoding.
+	 * @param options The RequestOptions for this call, e.g. an upload progress listener.
 	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
 	 */
-	public void put(String url, 
-			byte[] content,
+	public RequestHandle<Void> put(String url, 
+			Map<String, String> headers,
+			Map<String, String> parameters,
+			InputStream content,
+			long length,
+			RequestOptions options,
 			NetworkResponseListener listener) {
-		put(url, new HashMap<String, String>(), new HashMap<String, String>(), content, listener);
+		return makeCall(new NetworkRequest(url, headers, parameters, RequestEntities.fromStream(content, length), options, listener, RequestType.PUT), new RequestHandle<Void>());
 	}
 
 	/**
-	 * HTTP PUT call.
+	 * HTTP PUT call that streams a file.
 	 * 
 	 * @param url The URL string.
 	 * @param headers A key-value map for headers.
 	 * @param parameters A key-value map for parameters.
+	 * @param content The file to send.
+	 * @param options The RequestOptions for this call, e.g. an upload progress listener.
 	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
 	 */
-	public void put(String url, 
+	public RequestHandle<Void> put(String url, 
 			Map<String, String> headers,
 			Map<String, String> parameters,
+			File content,
+			RequestOptions options,
 			NetworkResponseListener listener) {
-		put(url, headers, parameters, new byte[0], listener);
+		return makeCall(new NetworkRequest(url, headers, parameters, RequestEntities.fromFile(content), options, listener, RequestType.PUT), new RequestHandle<Void>());
 	}
 
 	/**
-	 * HTTP PUT call.
+	 * HTTP PUT call whose content is written straight to the connection by a BodyWriter.
 	 * 
 	 * @param url The URL string.
 	 * @param headers A key-value map for headers.
+	 * @param parameters A key-value map for parameters.
+	 * @param content The BodyWriter that writes the content.
+	 * @param length The number of bytes the writer writes, or -1 to send it with chunked transfer encoding.
+	 * @param options The RequestOptions for this call, e.g. an upload progress listener.
 	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
 	 */
-	public void put(String url, 
+	public RequestHandle<Void> put(String url, 
 			Map<String, String> headers,
+			Map<String, String> parameters,
+			BodyWriter content,
+			long length,
+			RequestOptions options,
 			NetworkResponseListener listener) {
-		put(url, headers, new HashMap<String, String>(),  new byte[0], listener);
+		return makeCall(new NetworkRequest(url, headers, parameters, RequestEntities.fromWriter(content, length), options, listener, RequestType.PUT), new RequestHandle<Void>());
 	}
-
+	
 	/**
-	 * HTTP PUT call.
+	 * Download a file straight to disk. If the download is interrupted it resumes where it left off, also when it is
+	 * started again after the app was restarted.
 	 * 
 	 * @param url The URL string.
-	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @param file The file to write to, it is only replaced once the download is complete.
+	 * @param listener The DownloadListener that gets told the progress and the outcome of the download.(cannot be null).
+	 * @return The RequestHandle to cancel the download with or to wait for the file.
 	 */
-	public void put(String url,
-		NetworkResponseListener listener) {
-		put(url, new HashMap<String, String>(), new HashMap<String, String>(),  new byte[0], listener);
+	public RequestHandle<File> download(String url, 
+			File file,
+			DownloadListener listener) {
+		return download(url, new HashMap<String, String>(), file, new RequestOptions(), listener);
 	}
 
 	/**
-	 * HTTP DELETE call.
+	 * Download a file straight to disk. If the download is interrupted it resumes where it left off. Large files can
+	 * be fetched as several byte ranges at once with RequestOptions.setParallelRanges().
 	 * 
 	 * @param url The URL string.
 	 * @param headers A key-value map for headers.
-	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @param file The file to write to, it is only replaced once the download is complete.
+	 * @param options The RequestOptions for this call, e.g. its priority.
+	 * @param listener The DownloadListener that gets told the progress and the outcome of the download.(cannot be null).
+	 * @return The RequestHandle to cancel the download with, which cancels the request of every range, or to wait
+	 *         for the file.
 	 */
-	public void delete(String url, 
-			Map<String, String> headers,
-			NetworkResponseListener listener) {
-		delete(url, headers, new HashMap<String, String>(), listener);
-	}
+	public RequestHandle<File> download(final String url, 
+			final Map<String, String> headers,
+			File file,
+			final RequestOptions options,
+			DownloadListener listener) {
+		// The ranges run on the worker thread, since they write the file, and only the DownloadListener is called
+		// where the caller asked for.
+		Executor executor = options.getCallbackExecutor() != null ? options.getCallbackExecutor() : callbackExecutor;
+		RequestHandle<File> handle = new RequestHandle<File>();
+		FileDownload download = new FileDownload(file, options.getParallelRanges(), listener, bufferPool,
+				executor == RequestOptions.WORKER_THREAD ? null : executor, handle);
+		download.start(new FileDownload.RangeRequester() {
+			@Override
+			public RequestHandle<?> request(final FileDownload.Range range) {
+				NetworkRequest request = new NetworkRequest(url, headers, new HashMap<String, String>(), (byte[]) null, options, new NetworkResponseListener() {
+					@Override
+					public void onSuccess(InputStream data) {
+					}
 
+					@Override
+					public void onError(Exception error) {
+						range.onError(error);
+					}
+				}, RequestType.GET);
+				request.rangeHandler = range;
+				request.requestCallbackExecutor = RequestOptions.WORKER_THREAD;
+				return makeCall(request, new RequestHandle<Void>());
+			}
+		});
+		return handle;
+	}
+	
 	/**
-	 * HTTP DELETE call.
+	 * Start a batch of requests that are queued together and reported with one callback.
 	 * 
-	 * @param url The URL string.
-	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return A new RequestBatch to add the calls to.
 	 */
-	public void delete(String url,
-		NetworkResponseListener listener) {
-		delete(url, new HashMap<String, String>(), new HashMap<String, String>(), listener);
+	public RequestBatch batch() {
+		return new RequestBatch(this);
 	}
 	
-	private class NetworkRequest extends AsyncTask<Void, Void, Void>{
-		private String url; 
-		private Map<String, String> headers;
-		private Map<String, String> parameters;
-		private byte[] content;
-		private NetworkResponseListener listener;
-		private RequestType requestType;
-				
-		private NetworkRequest(String url, 
-				Map<String, String> headers,
-				Map<String, String> parameters,
-				byte[] content,
-				NetworkResponseListener listener,
-				RequestType requestType) {
-			
-			this.url = url;
-			this.headers = headers;
-			this.parameters = parameters;
-			this.content = content;
+	RequestBatch.Execution executeBatch(RequestBatch batch, RequestBatch.BatchListener listener) {
+		List<RequestBatch.Call> calls = batch.getCalls();
+		if (batch.getBatchEndpoint() != null && !calls.isEmpty())
+			return new MultipartBatchExecution(batch, calls, listener);
+		
+		BatchExecution execution = new BatchExecution(batch, calls, listener);
+		List<NetworkRequest> requests = new ArrayList<NetworkRequest>(calls.size());
+		boolean cacheable = false;
+		for (NetworkRequest request : execution.requests) {
+			if (request.durable) {
+				// Goes out once it is in the journal, like any other durable request.
+				makeCall(request);
+				continue;
+			}
+			request.startDeadline();
+			requests.add(request);
+			cacheable |= request.isCacheable();
+		}
+		
+		// The cache is asked about every call first, so the misses are still queued together.
+		if (cacheable && cacheSize > 0)
+			cacheExecutor.execute(new CacheLookup(requests));
+		else
+			enqueueAll(requests);
+		return execution;
+	}
+	
+	/**
+	 * Collects the result of every call of a batch and calls the BatchListener once the last one is in.
+	 */
+	private class BatchExecution implements RequestBatch.Execution {
+		private final RequestBatch.BatchListener listener;
+		private final boolean allOrNothing;
+		private final List<NetworkRequest> requests;
+		private final RequestBatch.BatchResult[] results;
+		private int remaining;
+		private boolean failed = false;
+		
+		private BatchExecution(RequestBatch batch, List<RequestBatch.Call> calls, RequestBatch.BatchListener listener) {
 			this.listener = listener;
-			this.requestType = requestType;
+			this.allOrNothing = batch.isAllOrNothing();
+			this.requests = new ArrayList<NetworkRequest>(calls.size());
+			this.results = new RequestBatch.BatchResult[calls.size()];
+			this.remaining = calls.size();
 			
-		    url += getParameterString();
-		    
-		    log("Created new network request with the following attributes " + 
-		    		" url : " + url +
-		    		", headers : " + headers +
-		    		", parameters : " + parameters +
-		    		", content : " + content +
-		    		", requestType : " + requestType);
-		}
-
-		private String getParameterString() {
-			if(!url.endsWith("?"))
-		        url += "?";
+			for (int i = 0; i < calls.size(); i++) {
+				final RequestBatch.Call call = calls.get(i);
+				final int index = i;
+				RequestOptions options = call.options != null ? call.options : batch.getOptions();
+				NetworkResponseListener callListener = new NetworkResponseListener() {
+					@Override
+					public void onSuccess(InputStream data) {
+						try {
+							finish(new RequestBatch.BatchResult(index, ResponseDecoders.toByteArray(data, -1, bufferPool), null));
+						} catch (IOException e) {
+							finish(new RequestBatch.BatchResult(index, null, e));
+						}
+					}
 
-		    List<NameValuePair> params = new LinkedList<NameValuePair>();
-
-			for (Entry<String, String> parameter : parameters.entrySet())
-				params.add(new BasicNameValuePair(parameter.getKey(), parameter.getValue()));
-
-		    return URLEncodedUtils.format(params, "utf-8");
-		}
-
-		@Override
-		protected Void doInBackground(Void... params) {
-			log("Started executing request.");
-			
-			try {
-				HttpResponse response = (new DefaultHttpClient()).execute(getRequest());
-				
-				int responseCode = response.getStatusLine().getStatusCode();
-		        
-		        if (responseCode != 200) {
-		        	String reasonPhrase = response.getStatusLine().getReasonPhrase();
-					log("Successfully executed request however received bad response : " + responseCode + " - " + reasonPhrase);
-		        	listener.onError(new Exception(reasonPhrase));
-		        } else {
-		        	log("Successfully executed request.");
-		        	listener.onSuccess(response.getEntity().getContent());
-		        }
-			} catch (Exception e) {
-				log("Unsuccessfully executed request. Reason " + e.getMessage());
-				listener.onError(e);
+					@Override
+					public void onError(Exception error) {
+						finish(new RequestBatch.BatchResult(index, null, error));
+					}
+				};
+				requests.add(new NetworkRequest(call.url, call.headers, call.parameters, call.content, options,
+						callListener, RequestType.valueOf(call.method)));
 			}
-			log("Finished executing request.");
-			return null;
+			
+			if (remaining == 0)
+				listener.onComplete(new ArrayList<RequestBatch.BatchResult>());
 		}
 		
-		private HttpUriRequest getRequest() {
-			
-			switch(requestType) {
-			case GET:
-				HttpGet requestGet = new HttpGet(url);
-				for (Entry<String, String> header : headers.entrySet())
-					requestGet.setHeader(header.getKey(), header.getValue());
-				return requestGet;
-			case POST:
-				HttpPost requestPost = new HttpPost(url);
-				for (Entry<String, String> header : headers.entrySet())
-					requestPost.setHeader(header.getKey(), header.getValue());
-				requestPost.setEntity(new ByteArrayEntity(content));
-				return requestPost;
-			case PUT:
-				HttpPut requestPut = new HttpPut(url);
-				for (Entry<String, String> header : headers.entrySet())
-					requestPut.setHeader(header.getKey(), header.getValue());
-				requestPut.setEntity(new ByteArrayEntity(content));
-				return requestPut;
-			case DELETE:
-				HttpDelete requestDelete = new HttpDelete(url);
-				for (Entry<String, String> header : headers.entrySet())
-					requestDelete.setHeader(header.getKey(), header.getValue());
-				return requestDelete;
-			default:
-				HttpGet request = new HttpGet(url);
-				for (Entry<String, String> header : headers.entrySet())
-					request.setHeader(header.getKey(), header.getValue());
-				return request;
+		private void finish(RequestBatch.BatchResult result) {
+			boolean complete;
+			boolean firstFailure = false;
+			synchronized (this) {
+				if (results[result.getIndex()] != null)
+					return;
+				results[result.getIndex()] = result;
+				complete = --remaining == 0;
+				if (!result.isSuccessful() && !failed) {
+					failed = true;
+					firstFailure = true;
+				}
 			}
+			
+			if (firstFailure && allOrNothing)
+				cancel("Cancelled because another request in the batch failed.");
+			if (complete)
+				listener.onComplete(Arrays.asList(results));
 		}
-
+		
 		@Override
-		public void onPostExecute(Void params) {
-			log("On post request execution.");
-			currentlyRequesting.remove(this);
-			decCurrentCallCount();
-			executeRequest();
+		public void cancel(String reason) {
+			for (NetworkRequest request : requests)
+				cancelRequest(request, reason);
 		}
-		
 	}
 	
-	public interface NetworkResponseListener {
-		/**
-		 * Called when the request successfully returned with valid data.
-		 * 
-		 * @param data The InputStream containing the valid data.
-		 */
-		public void onSuccess(InputStream data);
+	/**
+	 * Sends a whole batch as one multipart/mixed POST and splits the answer into a result per call.
+	 */
+	private class MultipartBatchExecution implements RequestBatch.Execution, NetworkResponseListener {
+		private final List<RequestBatch.Call> calls;
+		private final RequestBatch.BatchListener listener;
+		private NetworkRequest request;
 		
-		/**
-		 * Called when there is an error in making the request or if the call returns with a bad status code (if it is not status code 200).
+		private MultipartBatchExecution(RequestBatch batch, List<RequestBatch.Call> calls, RequestBatch.BatchListener listener) {
+			this.calls = calls;
+			this.listener = listener;
+			
+			List<String> urls = new ArrayList<String>(calls.size());
+			for (RequestBatch.Call call : calls)
+				urls.add(withParameters(call.url, call.parameters));
+			
+			String boundary = MultipartBatch.newBoundary();
+			byte[] content;
+			try {
+				content = MultipartBatch.encode(calls, urls, boundary);
+			} catch (IOException e) {
+				onError(e);
+				return;
+			}
+			
+			Map<String, String> headers = new HashMap<String, String>();
+			headers.put("Content-Type", "multipart/mixed; boundary=" + boundary);
+			request = new NetworkRequest(batch.getBatchEndpoint(), headers, new HashMap<String, String>(), content,
+					batch.getOptions(), this, RequestType.POST);
+			makeCall(request);
+		}
+		
+		@Override
+		public void onSuccess(InputStream data) {
+			RequestBatch.BatchResult[] results = new RequestBatch.BatchResult[calls.size()];
+			try {
+				MultipartBatch.Part[] parts = MultipartBatch.decode(ResponseDecoders.toByteArray(data, -1, bufferPool), calls.size());
+				for (int i = 0; i < parts.length; i++) {
+					if (parts[i] == null)
+						results[i] = new RequestBatch.BatchResult(i, null, new Exception("No response for the request in the batch."));
+					else if (parts[i].statusCode != 200)
+						results[i] = new RequestBatch.BatchResult(i, null, new Exception(parts[i].reasonPhrase));
+					else
+						results[i] = new RequestBatch.BatchResult(i, parts[i].body, null);
+				}
+			} catch (IOException e) {
+				onError(e);
+				return;
+			}
+			listener.onComplete(Arrays.asList(results));
+		}
+		
+		@Override
+		public void onError(Exception error) {
+			List<RequestBatch.BatchResult> results = new ArrayList<RequestBatch.BatchResult>(calls.size());
+			for (int i = 0; i < calls.size(); i++)
+				results.add(new RequestBatch.BatchResult(i, null, error));
+			listener.onComplete(results);
+		}
+		
+		@Override
+		public void cancel(String reason) {
+			if (request != null)
+				cancelRequest(request, reason);
+		}
+	}
+	
+	/**
+	 * Fails the request wherever it is. Out of the backlog or a retry wait it never takes a call slot again;
+	 * on the network its connection is aborted so the worker and the slot are freed at once.
+	 */
+	private boolean cancelRequest(NetworkRequest request, String reason) {
+		boolean cancelled = request.cancel(reason);
+		backlog.remove(request);
+		waitingRetries.remove(request);
+		return cancelled;
+	}
+	
+	private <T> RequestHandle<T> makeCall(String url, Map<String, String> headers, Map<String, String> parameters,
+			byte[] content, RequestOptions options, ResponseDecoder<T> decoder, RequestType requestType) {
+		final RequestHandle<T> handle = new RequestHandle<T>();
+		NetworkResponseListener listener = new DecodedResponseListener<T>(decoder) {
+			@Override
+			public void onResult(T result) {
+				handle.setResult(result);
+			}
+
+			@Override
+			public void onError(Exception error) {
+				handle.setError(error);
+			}
+		};
+		return makeCall(new NetworkRequest(url, headers, parameters, content, options, listener, requestType), handle);
+	}
+	
+	private <T> RequestHandle<T> makeCall(NetworkRequest request, RequestHandle<T> handle) {
+		request.attach(handle);
+		makeCall(request);
+		return handle;
+	}
+	
+	private void makeCall(final NetworkRequest request) {
+		if (request.durable && request.journalRequest == null) {
+			request.journalRequest = new RequestJournal.Request(request.getMethod(), request.url, request.headers, request.content,
+					request.priority, request.tag instanceof String ? (String) request.tag : null, request.compressContent);
+			journal.append(request.journalRequest, new Runnable() {
+				@Override
+				public void run() {
+					if (!request.finished.get())
+						makeCall(request);
+				}
+			});
+			return;
+		}
+		
+		request.startDeadline();
+		
+		if (request.isCacheable() && cacheSize > 0) {
+			cacheExecutor.execute(new CacheLookup(request));
+			return;
+		}
+		
+		enqueue(request);
+	}
+	
+	private void replay(List<RequestJournal.Request> stored) {
+		for (RequestJournal.Request request : stored)
+			replay(request);
+	}
+	
+	/**
+	 * Sends a durable request again that was read back from the journal.
+	 */
+	private void replay(RequestJournal.Request stored) {
+		RequestOptions options = new RequestOptions()
+				.setPriority(stored.priority)
+				.setTag(stored.tag)
+				.setCompressContent(stored.compressContent)
+				.setDurable(true);
+		ReplayedResponseListener listener = new ReplayedResponseListener();
+		NetworkRequest request = new NetworkRequest(stored.url, stored.headers, new HashMap<String, String>(), stored.content,
+				options, listener, RequestType.valueOf(stored.method));
+		request.journalRequest = stored;
+		listener.request = request;
+		
+		long age = System.currentTimeMillis() - stored.createdAt;
+		if (age > maxDurableAge) {
+			// It kept failing for too long to be worth sending any more.
+			journal.complete(stored);
+			request.deliverError(new Exception("Durable request gave up after " + age + "ms."));
+			return;
+		}
+		if (DEBUG)
+			log("Replaying durable request : " + stored.method + " " + stored.url);
+		makeCall(request);
+	}
+	
+	/**
+	 * Passes the outcome of a replayed request on to the ReplayListener set at the time.
+	 */
+	private class ReplayedResponseListener implements NetworkResponseListener {
+		private NetworkRequest request;
+		
+		@Override
+		public void onSuccess(InputStream data) {
+			ReplayListener replayed = replayListener;
+			if (replayed != null)
+				replayed.onSuccess(request, data);
+			else if (DEBUG)
+				log("Replayed request succeeded : " + request.url);
+		}
+		
+		@Override
+		public void onError(Exception error) {
+			ReplayListener replayed = replayListener;
+			if (replayed != null)
+				replayed.onError(request, error);
+			else if (DEBUG)
+				log("Replayed request failed : " + request.url + ", " + error.getMessage());
+		}
+	}
+	
+	/**
+	 * Cancels the request of a RequestHandle. A request that joined an identical one in flight only leaves it, and
+	 * one that others joined keeps running for them while its own listener is told it was cancelled.
+	 * 
+	 * @return True if the handle was cancelled.
+	 */
+	private boolean cancelHandle(NetworkRequest request) {
+		NetworkRequest leader = request.leader;
+		boolean cancelled;
+		if (leader != null)
+			cancelled = leader.removeFollower(request) && request.deliverError(new Exception("Cancelled request."), true);
+		else
+			cancelled = request.detach() || cancelRequest(request, "Cancelled request.");
+		
+		if (cancelled && DEBUG)
+			log("Cancelled request : " + request.url);
+		return cancelled;
+	}
+	
+	private void enqueue(NetworkRequest request) {
+		enqueueAll(Collections.singletonList(request));
+	}
+	
+	/**
+	 * Queues the requests under one lock of the backlog, leaving out those that finished or joined one in flight.
+	 */
+	private void enqueueAll(List<NetworkRequest> requests) {
+		List<NetworkRequest> queued = new ArrayList<NetworkRequest>(requests.size());
+		for (NetworkRequest request : requests) {
+			if (request.finished.get() || coalesce(request))
+				continue;
+			request.enqueuedAt = System.nanoTime();
+			request.queued();
+			queued.add(request);
+		}
+		
+		backlog.addAll(queued);
+		executeRequests();
+	}
+	
+	/**
+	 * Answers GETs from the disk cache without taking a call slot, and queues the rest together, as conditional
+	 * requests when the stored response is stale but can be revalidated.
+	 */
+	private class CacheLookup implements Runnable {
+		private final List<NetworkRequest> requests;
+		
+		private CacheLookup(NetworkRequest request) {
+			this(Collections.singletonList(request));
+		}
+		
+		private CacheLookup(List<NetworkRequest> requests) {
+			this.requests = requests;
+		}
+		
+		@Override
+		public void run() {
+			List<NetworkRequest> misses = new ArrayList<NetworkRequest>(requests.size());
+			for (NetworkRequest request : requests) {
+				if (!request.isCacheable() || !serveFromCache(request))
+					misses.add(request);
+			}
+			enqueueAll(misses);
+		}
+		
+		/**
+		 * @return True if the request was answered from the cache.
+		 */
+		private boolean serveFromCache(NetworkRequest request) {
+			boolean noCache = HttpCache.isNoCache(request.headers);
+			long now = System.currentTimeMillis();
+			
+			MemoryEntry hot = memoryCache.get(request.url);
+			if (hot != null && !noCache && hot.metadata.matchesVary(request.headers) && hot.metadata.isFresh(now)) {
+				cacheHits.incrementAndGet();
+				memoryCacheHits.incrementAndGet();
+				if (DEBUG)
+					log("Served request from the memory cache : " + request.url);
+				deliverHit(request, hot, null);
+				return true;
+			}
+			
+			CacheEntry entry = httpCache.get(request.url, request.headers);
+			if (entry != null && !noCache && entry.isFresh(now)) {
+				cacheHits.incrementAndGet();
+				if (DEBUG)
+					log("Served request from the cache : " + request.url);
+				deliverHit(request, null, entry);
+				return true;
+			}
+			
+			if (entry != null && entry.hasValidators()) {
+				request.cachedEntry = entry;
+				cacheRevalidations.incrementAndGet();
+			} else {
+				cacheMisses.incrementAndGet();
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Delivers a response from the memory cache or the disk cache. A listener called on the worker thread is called
+	 * on a hit thread, so it does not hold up the lookups behind it on the single cache thread, nor wait for a
+	 * worker that a call holds.
+	 */
+	private void deliverHit(final NetworkRequest request, final MemoryEntry hot, final CacheEntry entry) {
+		Runnable delivery = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (hot != null)
+						request.deliverSuccess(hot.body, hot.metadata.getContentType());
+					else
+						deliverCached(request, entry);
+					request.stopDeadline();
+				} catch (IOException e) {
+					if (DEBUG)
+						log("Could not read cached response. Reason " + e.getMessage());
+					// It was counted as a hit when it was looked up.
+					cacheHits.decrementAndGet();
+					cacheMisses.incrementAndGet();
+					enqueue(request);
+				}
+			}
+		};
+		
+		if (request.getCallbackExecutor() == null) {
+			try {
+				hitExecutor.execute(delivery);
+				return;
+			} catch (RejectedExecutionException e) {
+				// The service is shutting down.
+			}
+		}
+		delivery.run();
+	}
+	
+	/**
+	 * Delivers the body of a stored response, keeping it in the memory cache if it is small enough.
+	 */
+	private void deliverCached(NetworkRequest request, CacheEntry entry) throws IOException {
+		long length = entry.getBodyLength();
+		InputStream body = entry.openBody();
+		try {
+			if (length >= 0 && length <= memoryCache.getMaxEntrySize()) {
+				byte[] bytes = ResponseDecoders.toByteArray(body, length, bufferPool);
+				memoryCache.put(entry, bytes);
+				request.deliverSuccess(bytes, entry.getContentType());
+			} else {
+				request.deliverSuccess(body, entry.getContentType(), length);
+			}
+		} finally {
+			body.close();
+		}
+	}
+
+	/**
+	 * Attaches the request's listener to an identical GET that is already queued or executing instead of sending it again.
+	 * 
+	 * @return True if the request was coalesced and must not be queued.
+	 */
+	private boolean coalesce(NetworkRequest request) {
+		// A request with a deadline can not wait on one without, nor fail the listeners that joined it.
+		if (request.requestType != RequestType.GET || request.rangeHandler != null || request.timeout > 0)
+			return false;
+		
+		String key = request.getCoalescingKey();
+		while (true) {
+			NetworkRequest existing = coalescingRequests.putIfAbsent(key, request);
+			if (existing == null) {
+				request.coalescingKey = key;
+				return false;
+			}
+			
+			if (existing.addFollower(request)) {
+				coalescedRequests.incrementAndGet();
+				if (DEBUG)
+					log("Coalesced request with one already in flight : " + key);
+				
+				// A foreground caller should not wait behind the background request it joined.
+				if (request.priority.compareTo(existing.priority) < 0 && backlog.remove(existing)) {
+					existing.priority = request.priority;
+					backlog.add(existing);
+				}
+				return true;
+			}
+			
+			// The existing request already has its response, so it no longer takes followers.
+			coalescingRequests.remove(key, existing);
+		}
+	}
+
+	/**
+	 * Move every queued request with the given tag to another priority, e.g. when a screen comes back to the foreground.
+	 * Requests that are already executing are not affected.
+	 * 
+	 * @param tag The tag set through RequestOptions.setTag().
+	 * @param priority The new priority.
+	 * @return The number of queued requests that were moved.
+	 */
+	public int setPriority(Object tag, Priority priority) {
+		int moved = backlog.reprioritize(tag, priority);
+		if (DEBUG)
+			log("Moved " + moved + " queued requests to " + priority + " priority.");
+		return moved;
+	}
+
+	/**
+	 * Moves requests from the backlog to the worker pool until every call slot is taken or nothing more can be
+	 * dispatched. A slot is claimed before a request is polled so concurrent callers can never over-admit, and it
+	 * is handed back if the backlog had nothing for it.
+	 */
+	private void executeRequests() {
+		while (true) {
+			int count = currentCallCount.get();
+			if (count >= MAX_NUM_OF_CALLS)
+				return;
+			
+			if (!currentCallCount.compareAndSet(count, count + 1))
+				continue;
+			
+			updateDeferral();
+			int version = backlog.getVersion();
+			NetworkRequest nextRequest = backlog.poll();
+			if (nextRequest == null) {
+				currentCallCount.decrementAndGet();
+				// Another thread may have queued a request or freed a host slot after our poll but seen every call slot taken.
+				if (backlog.getVersion() == version) {
+					scheduleDeferralCheck();
+					return;
+				}
+				continue;
+			}
+			
+			radioActive();
+			currentlyRequesting.add(nextRequest);
+			nextRequest.dispatched();
+			if (DEBUG)
+				log("Executing a request from the backlog. Current Call Count is " + (count + 1));
+			workerPool.execute(nextRequest);
+		}
+	}
+	
+	/**
+	 * Holds BACKGROUND and PREFETCH requests in the backlog while deferral is on and the network is down, or is
+	 * metered and no recent call has the radio awake. Once a foreground call wakes the radio the held requests go
+	 * out behind it in one burst, instead of each waking it on their own.
+	 */
+	private void updateDeferral() {
+		if (!deferBackground) {
+			backlog.setDeferring(false, 0);
+			return;
+		}
+		
+		boolean hold = !connected || (metered && SystemClock.elapsedRealtime() >= radioActiveUntil);
+		// Sent while offline they would only fail, so then they wait however long it takes.
+		backlog.setDeferring(hold, connected ? maxDeferralTime : 0);
+	}
+	
+	/**
+	 * Notes that the radio is in use, so it stays in its high power state for the tail time after.
+	 */
+	private void radioActive() {
+		if (deferBackground)
+			radioActiveUntil = SystemClock.elapsedRealtime() + radioTailTime;
+	}
+	
+	/**
+	 * Looks at the backlog again once the longest held request has waited the maximum deferral time.
+	 */
+	private synchronized void scheduleDeferralCheck() {
+		long oldest = backlog.getOldestDeferredTime();
+		if (oldest < 0 || !connected || maxDeferralTime <= 0)
+			return;
+		
+		final long time = oldest + maxDeferralTime;
+		// A check that comes no later is already scheduled.
+		if (deferralCheck != null && deferralCheckTime <= time)
+			return;
+		if (deferralCheck != null)
+			deferralCheck.cancel(false);
+		deferralCheckTime = time;
+		deferralCheck = scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (NetworkService.this) {
+					if (deferralCheckTime == time)
+						deferralCheck = null;
+				}
+				executeRequests();
+			}
+		}, Math.max(0, time - SystemClock.elapsedRealtime()), TimeUnit.MILLISECONDS);
+	}
+	
+	private void readConnectivity() {
+		ConnectivitySource source = connectivitySource;
+		if (source == null)
+			return;
+		connected = source.isConnected();
+		metered = source.isMetered();
+		if (DEBUG)
+			log("Network is " + (connected ? (metered ? "up and metered." : "up and unmetered.") : "down."));
+	}
+	
+	/**
+	 * Feeds the latency of a call to the adaptive limiter, if there is one, and applies its new limit. The call
+	 * still holds its slot, so finishing it dispatches from the backlog against the new limit.
+	 */
+	private void sampleConcurrency(long sent, boolean dropped) {
+		ConcurrencyLimiter limiter = concurrencyLimiter;
+		if (limiter == null)
+			return;
+		
+		int limit = limiter.onSample(System.nanoTime() - sent, currentCallCount.get(), dropped);
+		if (limit != MAX_NUM_OF_CALLS && limiter == concurrencyLimiter) {
+			MAX_NUM_OF_CALLS = limit;
+			if (DEBUG)
+				log("Adaptive max number of calls is now " + limit + ".");
+		}
+	}
+	
+	private void finishRequest(NetworkRequest request) {
+		radioActive();
+		backlog.release(request);
+		currentlyRequesting.remove(request);
+		decCurrentCallCount();
+		executeRequests();
+	}
+	
+	/**
+	 * Queues the request again once its backoff has passed. It holds no call slot while it waits.
+	 */
+	private void scheduleRetry(final NetworkRequest request, long delay) {
+		waitingRetries.add(request);
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (waitingRetries.remove(request) && !request.finished.get()) {
+					request.enqueuedAt = System.nanoTime();
+					request.queued();
+					backlog.add(request);
+					executeRequests();
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+	
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger threadCount = new AtomicInteger();
+		
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			return new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					runnable.run();
+				}
+			}, "NetworkService #" + threadCount.incrementAndGet());
+		}
+	}
+
+	private DefaultHttpClient createHttpClient() {
+		HttpParams params = new BasicHttpParams();
+		ConcurrencyLimiter limiter = concurrencyLimiter;
+		connectionPoolSize = limiter != null ? limiter.getMaxLimit() : MAX_NUM_OF_CALLS;
+		connectionsPerRoute = new ConnPerRouteBean(connectionPoolSize);
+		ConnManagerParams.setMaxTotalConnections(params, connectionPoolSize);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, connectionsPerRoute);
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+		HttpConnectionParams.setConnectionTimeout(params, connectTimeoutTime);
+		HttpConnectionParams.setSoTimeout(params, readTimeoutTime);
+		ConnManagerParams.setTimeout(params, connectTimeoutTime);
+		HttpProtocolParams.setUseExpectContinue(params, false);
+
+		SchemeRegistry schemeRegistry = new SchemeRegistry();
+		schemeRegistry.register(new Scheme("http", new PlainSocketFactory(dnsCache), 80));
+		schemeRegistry.register(new Scheme("https", getSslSocketFactory(), 443));
+
+		connectionManager = new ThreadSafeClientConnManager(params, schemeRegistry);
+		DefaultHttpClient client = new DefaultHttpClient(connectionManager, params);
+		// The built-in handler resends even a POST that got no response, behind the RetryPolicy's back.
+		client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+		client.addRequestInterceptor(new ConnectionReuseCounter());
+		client.addRequestInterceptor(compression);
+		client.addResponseInterceptor(compression);
+		return client;
+	}
+	
+	/**
+	 * The TLS socket factory of every client the service creates, so they share one TLS session cache. Host names
+	 * are resolved through the DnsCache.
+	 */
+	private synchronized SSLSocketFactory getSslSocketFactory() {
+		if (sslSocketFactory == null) {
+			try {
+				sslSocketFactory = new SSLSocketFactory(SSLSocketFactory.TLS, null, null, null, null, dnsCache);
+			} catch (GeneralSecurityException e) {
+				log("Could not create a TLS socket factory : " + e.getMessage());
+				return SSLSocketFactory.getSocketFactory();
+			}
+		}
+		return sslSocketFactory;
+	}
+	
+	/**
+	 * Counts whether each request went out on a fresh connection or on one kept alive from an earlier request.
+	 */
+	private class ConnectionReuseCounter implements HttpRequestInterceptor {
+		@Override
+		public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+			HttpConnection connection = (HttpConnection) context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+			if (connection == null)
+				return;
+			
+			boolean reused = connection.getMetrics().getRequestCount() > 0;
+			// A connection that preconnect() opened was ready before the request, like a kept-alive one.
+			if (!reused && preconnected.remove(connection.getMetrics()))
+				reused = true;
+			if (reused)
+				connectionsReused.incrementAndGet();
+			else
+				connectionsOpened.incrementAndGet();
+			
+			NetworkRequest executing = executingRequest.get();
+			if (executing != null)
+				executing.connected(reused);
+		}
+	}
+	
+	/**
+	 * The pool's total limit is fixed when it is created, so growing it means swapping in a new client.
+	 * The old pool is drained and shut down by the IdleConnectionMonitor once its requests finish.
+	 */
+	private void resizeConnectionPool() {
+		ThreadSafeClientConnManager old = connectionManager;
+		httpClient = createHttpClient();
+		retiredConnectionManagers.add(old);
+		log("Resized connection pool to " + connectionPoolSize + " connections.");
+	}
+	
+	/**
+	 * Evicts pooled connections that were closed by the server or have sat idle for too long.
+	 */
+	private class IdleConnectionMonitor implements Runnable {
+		@Override
+		public void run() {
+			connectionManager.closeExpiredConnections();
+			connectionManager.closeIdleConnections(idleConnectionTime, TimeUnit.MILLISECONDS);
+			
+			for (ThreadSafeClientConnManager retired : retiredConnectionManagers) {
+				retired.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+				if (retired.getConnectionsInPool() == 0) {
+					retired.shutdown();
+					retiredConnectionManagers.remove(retired);
+				}
+			}
+		}
+	}
+	
+	/*
+	 *		This is all the extended API for easier use
+	 */
+	
+	/**
+	 * HTTP GET call.
+	 * 
+	 * @param url The URL string.
+	 * @param headers A key-value map for headers.
+	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
+	 */
+	public RequestHandle<Void> get(String url, 
+			Map<String, String> headers,
+			NetworkResponseListener listener) {
+		return get(url, headers, new HashMap<String, String>(), listener);
+	}
+
+	/**
+	 * HTTP GET call.
+	 * 
+	 * @param url The URL string.
+	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
+	 */
+	public RequestHandle<Void> get(String url,
+		NetworkResponseListener listener) {
+		return get(url,  new HashMap<String, String>(),  new HashMap<String, String>(), listener);
+	}
+
+	/**
+	 * HTTP POST call.
+	 * 
+	 * @param url The URL string.
+	 * @param headers A key-value map for headers.
+	 * @param content The content you want to post/put in the request.
+	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
+	 */
+	public RequestHandle<Void> post(String url, 
+			Map<String, String> headers,
+			String content,
+			NetworkResponseListener listener) {
+		return post(url, headers, new HashMap<String, String>(), content.getBytes(), listener);
+	}
+
+	/**
+	 * HTTP POST call.
+	 * 
+	 * @param url The URL string.
+	 * @param content The content you want to post/put in the request.
+	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
+	 */
+	public RequestHandle<Void> post(String url, 
+			String content,
+			NetworkResponseListener listener) {
+		return post(url, new HashMap<String, String>(), new HashMap<String, String>(), content.getBytes(), listener);
+	}
+	
+	/**
+	 * HTTP POST call.
+	 * 
+	 * @param url The URL string.
+	 * @param headers A key-value map for headers.
+	 * @param content The content you want to post/put in the request.
+	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
+	 */
+	public RequestHandle<Void> post(String url, 
+			Map<String, String> headers,
+			byte[] content,
+			NetworkResponseListener listener) {
+		return post(url, headers, new HashMap<String, String>(), content, listener);
+	}
+
+	/**
+	 * HTTP POST call.
+	 * 
+	 * @param url The URL string.
+	 * @param content The content you want to post/put in the request.
+	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
+	 */
+	public RequestHandle<Void> post(String url, 
+			byte[] content,
+			NetworkResponseListener listener) {
+		return post(url, new HashMap<String, String>(), new HashMap<String, String>(), content, listener);
+	}
+
+	/**
+	 * HTTP POST call.
+	 * 
+	 * @param url The URL string.
+	 * @param headers A key-value map for headers.
+	 * @param parameters A key-value map for parameters.
+	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
+	 */
+	public RequestHandle<Void> post(String url, 
+			Map<String, String> headers,
+			Map<String, String> parameters,
+			NetworkResponseListener listener) {
+		return post(url, headers, parameters, new byte[0], listener);
+	}
+
+	/**
+	 * HTTP POST call.
+	 * 
+	 * @param url The URL string.
+	 * @param headers A key-value map for headers.
+	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
+	 */
+	public RequestHandle<Void> post(String url, 
+			Map<String, String> headers,
+			NetworkResponseListener listener) {
+		return post(url, headers, new HashMap<String, String>(),  new byte[0], listener);
+	}
+
+	/**
+	 * HTTP POST call.
+	 * 
+	 * @param url The URL string.
+	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
+	 */
+	public RequestHandle<Void> post(String url,
+		NetworkResponseListener listener) {
+		return post(url, new HashMap<String, String>(), new HashMap<String, String>(),  new byte[0], listener);
+	}
+	
+	/**
+	 * HTTP POST call.
+	 * 
+	 * @param url The URL string.
+	 * @param headers A key-value map for headers.
+	 * @param parameters A key-value map for parameters.
+	 * @param content The content you want to post/put in the request.
+	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
+	 */
+	public RequestHandle<Void> post(String url, 
+			Map<String, String> headers,
+			Map<String, String> parameters,
+			String content,
+			NetworkResponseListener listener) {
+		return post(url, headers, parameters, content.getBytes(), listener);
+	}
+
+	/**
+	 * HTTP PUT call.
+	 * 
+	 * @param url The URL string.
+	 * @param headers A key-value map for headers.
+	 * @param parameters A key-value map for parameters.
+	 * @param content The content you want to post/put in the request.
+	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
+	 */
+	public RequestHandle<Void> put(String url, 
+			Map<String, String> headers,
+			Map<String, String> parameters,
+			String content,
+			NetworkResponseListener listener) {
+		return put(url, headers, parameters, content.getBytes(), listener);
+	}
+
+	/**
+	 * HTTP PUT call.
+	 * 
+	 * @param url The URL string.
+	 * @param headers A key-value map for headers.
+	 * @param content The content you want to post/put in the request.
+	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
+	 */
+	public RequestHandle<Void> put(String url, 
+			Map<String, String> headers,
+			String content,
+			NetworkResponseListener listener) {
+		return put(url, headers, new HashMap<String, String>(), content.getBytes(), listener);
+	}
+	
+	/**
+	 * HTTP PUT call.
+	 * 
+	 * @param url The URL string.
+	 * @param headers A key-value map for headers.
+	 * @param content The content you want to post/put in the request.
+	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
+	 */
+	public RequestHandle<Void> put(String url, 
+			Map<String, String> headers,
+			byte[] content,
+			NetworkResponseListener listener) {
+		return put(url, headers, new HashMap<String, String>(), content, listener);
+	}
+
+	/**
+	 * HTTP PUT call.
+	 * 
+	 * @param url The URL string.
+	 * @param content The content you want to post/put in the request.
+	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
+	 */
+	public RequestHandle<Void> put(String url, 
+			String content,
+			NetworkResponseListener listener) {
+		return put(url, new HashMap<String, String>(), new HashMap<String, String>(), content.getBytes(), listener);
+	}
+	
+	/**
+	 * HTTP PUT call.
+	 * 
+	 * @param url The URL string.
+	 * @param content The content you want to post/put in the request.
+	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
+	 */
+	public RequestHandle<Void> put(String url, 
+			byte[] content,
+			NetworkResponseListener listener) {
+		return put(url, new HashMap<String, String>(), new HashMap<String, String>(), content, listener);
+	}
+
+	/**
+	 * HTTP PUT call.
+	 * 
+	 * @param url The URL string.
+	 * @param headers A key-value map for headers.
+	 * @param parameters A key-value map for parameters.
+	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
+	 */
+	public RequestHandle<Void> put(String url, 
+			Map<String, String> headers,
+			Map<String, String> parameters,
+			NetworkResponseListener listener) {
+		return put(url, headers, parameters, new byte[0], listener);
+	}
+
+	/**
+	 * HTTP PUT call.
+	 * 
+	 * @param url The URL string.
+	 * @param headers A key-value map for headers.
+	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
+	 */
+	public RequestHandle<Void> put(String url, 
+			Map<String, String> headers,
+			NetworkResponseListener listener) {
+		return put(url, headers, new HashMap<String, String>(),  new byte[0], listener);
+	}
+
+	/**
+	 * HTTP PUT call.
+	 * 
+	 * @param url The URL string.
+	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
+	 */
+	public RequestHandle<Void> put(String url,
+		NetworkResponseListener listener) {
+		return put(url, new HashMap<String, String>(), new HashMap<String, String>(),  new byte[0], listener);
+	}
+
+	/**
+	 * HTTP DELETE call.
+	 * 
+	 * @param url The URL string.
+	 * @param headers A key-value map for headers.
+	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
+	 */
+	public RequestHandle<Void> delete(String url, 
+			Map<String, String> headers,
+			NetworkResponseListener listener) {
+		return delete(url, headers, new HashMap<String, String>(), listener);
+	}
+
+	/**
+	 * HTTP DELETE call.
+	 * 
+	 * @param url The URL string.
+	 * @param listener The NetworkResponseListener that gets called post execution of the request.(cannot be null).
+	 * @return The RequestHandle to cancel the call with or to wait for it.
+	 */
+	public RequestHandle<Void> delete(String url,
+		NetworkResponseListener listener) {
+		return delete(url, new HashMap<String, String>(), new HashMap<String, String>(), listener);
+	}
+	
+	private class NetworkRequest implements Runnable, RequestScheduler.Schedulable, RequestInfo {
+		private String url; 
+		private Map<String, String> headers;
+		private Map<String, String> parameters;
+		private byte[] content;
+		private NetworkResponseListener listener;
+		private RequestType requestType;
+		private volatile Priority priority;
+		private final Object tag;
+		private final long queuedTime = SystemClock.elapsedRealtime();
+		private String host;
+		private final AtomicBoolean finished = new AtomicBoolean();
+		private String coalescingKey;
+		private List<NetworkRequest> followers;
+		private boolean acceptsFollowers = true;
+		private volatile NetworkRequest leader;
+		private volatile boolean detached = false;
+		private volatile RequestHandle<?> handle = new RequestHandle<Void>();
+		private volatile CacheEntry cachedEntry;
+		private final boolean compressContent;
+		private final UploadProgressListener uploadProgressListener;
+		private HttpEntity streamingContent;
+		private RangeHandler rangeHandler;
+		private final RetryPolicy requestRetryPolicy;
+		private int attempts = 0;
+		private long retryDelay = -1;
+		private final long timeout;
+		private Executor requestCallbackExecutor;
+		private boolean durable;
+		private RequestJournal.Request journalRequest;
+		private int responseCode = -1;
+		private ScheduledFuture<?> deadlineTimer;
+		private volatile HttpUriRequest currentRequest;
+		private volatile NioTransport.Exchange exchange;
+		private final long createdAt = System.nanoTime();
+		private final long id = requestIds.incrementAndGet();
+		private long enqueuedAt;
+		private long sentAt;
+		private long connectedAt;
+		private long headersAt;
+				
+		private NetworkRequest(String url, 
+				Map<String, String> headers,
+				Map<String, String> parameters,
+				byte[] content,
+				RequestOptions options,
+				NetworkResponseListener listener,
+				RequestType requestType) {
+			
+			this.url = url;
+			this.headers = headers;
+			this.parameters = parameters;
+			this.content = content;
+			this.listener = listener;
+			this.requestType = requestType;
+			this.priority = options.getPriority();
+			this.tag = options.getTag();
+			this.compressContent = options.isCompressContent();
+			this.uploadProgressListener = options.getUploadProgressListener();
+			this.requestRetryPolicy = options.getRetryPolicy();
+			this.timeout = options.getTimeout();
+			this.requestCallbackExecutor = options.getCallbackExecutor();
+			this.durable = options.isDurable() && requestType != RequestType.GET;
+			
+		    this.url = withParameters(url, parameters);
+		    
+		    if (DEBUG)
+		    	log("Created new network request with the following attributes " + 
+		    			" url : " + url +
+		    			", headers : " + headers +
+		    			", parameters : " + parameters +
+		    			", content : " + (content == null ? "none" : content.length + " bytes") +
+		    			", requestType : " + requestType +
+		    			", priority : " + priority);
+		}
+
+		private NetworkRequest(String url, 
+				Map<String, String> headers,
+				Map<String, String> parameters,
+				HttpEntity streamingContent,
+				RequestOptions options,
+				NetworkResponseListener listener,
+				RequestType requestType) {
+			this(url, headers, parameters, (byte[]) null, options, listener, requestType);
+			this.streamingContent = streamingContent;
+			// A stream can not be read again after a restart.
+			this.durable = false;
+		}
+
+		@Override
+		public Priority getPriority() {
+			return priority;
+		}
+
+		@Override
+		public void setPriority(Priority priority) {
+			this.priority = priority;
+		}
+
+		@Override
+		public long getQueuedTime() {
+			return queuedTime;
+		}
+
+		@Override
+		public Object getTag() {
+			return tag;
+		}
+
+		@Override
+		public String getHost() {
+			if (host == null)
+				host = hostOf(url);
+			return host;
+		}
+
+		@Override
+		public long getId() {
+			return id;
+		}
+
+		@Override
+		public String getMethod() {
+			return requestType.name();
+		}
+
+		@Override
+		public String getUrl() {
+			return url;
+		}
+
+		@Override
+		public int getAttempt() {
+			return attempts;
+		}
+
+		/**
+		 * The method, the URL with its scheme and host lower cased and its query parameters sorted, and the headers
+		 * sorted by lower cased name. Two requests with the same key get the same response.
+		 */
+		private String getCoalescingKey() {
+			StringBuilder key = new StringBuilder(url.length() + 64);
+			key.append(requestType).append(' ');
+			
+			URI uri;
+			try {
+				uri = new URI(url);
+			} catch (URISyntaxException e) {
+				uri = null;
+			}
+			
+			if (uri == null || uri.getScheme() == null || uri.getHost() == null) {
+				key.append(url);
+			} else {
+				key.append(uri.getScheme().toLowerCase(Locale.ROOT)).append("://").append(uri.getHost().toLowerCase(Locale.ROOT));
+				if (uri.getPort() != -1)
+					key.append(':').append(uri.getPort());
+				key.append(uri.getRawPath() == null || uri.getRawPath().length() == 0 ? "/" : uri.getRawPath());
+				
+				String query = uri.getRawQuery();
+				if (query != null && query.length() > 0) {
+					String[] pairs = query.split("&");
+					Arrays.sort(pairs);
+					key.append('?');
+					for (int i = 0; i < pairs.length; i++)
+						key.append(i == 0 ? "" : "&").append(pairs[i]);
+				}
+			}
+			
+			TreeMap<String, String> sortedHeaders = new TreeMap<String, String>();
+			for (Entry<String, String> header : headers.entrySet())
+				sortedHeaders.put(header.getKey().toLowerCase(Locale.ROOT), header.getValue());
+			key.append(' ').append(sortedHeaders);
+			
+			return key.toString();
+		}
+		
+		private boolean isCacheable() {
+			return requestType == RequestType.GET && rangeHandler == null && !HttpCache.isNoStore(headers);
+		}
+		
+		/**
+		 * The handle is attached before the request is queued, so it sees every step.
+		 */
+		private void attach(RequestHandle<?> handle) {
+			this.handle = handle;
+			handle.setCanceller(new RequestHandle.Canceller() {
+				@Override
+				public boolean cancel() {
+					return cancelHandle(NetworkRequest.this);
+				}
+			});
+		}
+		
+		/**
+		 * @return False if the response is already being delivered and the follower has to make its own request.
+		 */
+		private synchronized boolean addFollower(NetworkRequest follower) {
+			if (!acceptsFollowers)
+				return false;
+			
+			if (followers == null)
+				followers = new ArrayList<NetworkRequest>(2);
+			followers.add(follower);
+			follower.leader = this;
+			follower.handle.setStatus(currentlyRequesting.contains(this) ? RequestHandle.Status.RUNNING : RequestHandle.Status.QUEUED);
+			return true;
+		}
+		
+		/**
+		 * @return False if the response is already being delivered to the follower.
+		 */
+		private synchronized boolean removeFollower(NetworkRequest follower) {
+			return followers != null && followers.remove(follower);
+		}
+		
+		/**
+		 * Tells the listener the request was cancelled but keeps it running for the requests that joined it.
+		 * 
+		 * @return False if nobody joined it, or if the response is already being delivered.
+		 */
+		private boolean detach() {
+			synchronized (this) {
+				if (!acceptsFollowers || followers == null || followers.isEmpty() || detached)
+					return false;
+				detached = true;
+			}
+			
+			final Exception error = new Exception("Cancelled request.");
+			handle.finish(error, true);
+			dispatch(new Runnable() {
+				@Override
+				public void run() {
+					listener.onError(error);
+				}
+			});
+			return true;
+		}
+		
+		/**
+		 * Stops new requests from coalescing with this one.
+		 * 
+		 * @return The requests that joined it.
+		 */
+		private synchronized List<NetworkRequest> closeFollowers() {
+			acceptsFollowers = false;
+			if (coalescingKey != null)
+				coalescingRequests.remove(coalescingKey, this);
+			
+			List<NetworkRequest> joined = followers;
+			followers = null;
+			return joined;
+		}
+
+		@Override
+		public void run() {
+			NioTransport nio = nioTransport;
+			if (!finished.get() && nio != null && transport != Transport.BLOCKING && streamingContent == null && rangeHandler == null) {
+				executeAsync(nio);
+				return;
+			}
+			
+			try {
+				if (!finished.get())
+					execute();
+			} finally {
+				finishAttempt();
+			}
+		}
+		
+		/**
+		 * Releases the call slot, or schedules the retry the attempt asked for.
+		 */
+		private void finishAttempt() {
+			long delay = retryDelay;
+			retryDelay = -1;
+			if (delay < 0)
+				stopDeadline();
+			finishRequest(this);
+			
+			if (delay >= 0)
+				scheduleRetry(this, delay);
+		}
+		
+		private synchronized void startDeadline() {
+			if (timeout <= 0 || deadlineTimer != null)
+				return;
+			
+			long remaining = timeout - (SystemClock.elapsedRealtime() - queuedTime);
+			deadlineTimer = scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					expire();
+				}
+			}, Math.max(0, remaining), TimeUnit.MILLISECONDS);
+		}
+		
+		private synchronized void stopDeadline() {
+			if (deadlineTimer != null)
+				deadlineTimer.cancel(false);
+		}
+		
+		private void expire() {
+			if (DEBUG)
+				log("Request passed its deadline of " + timeout + "ms : " + url);
+			cancelRequest(this, "Request did not finish within " + timeout + "ms.");
+		}
+		
+		/**
+		 * @return The time left until the deadline in milliseconds, or Long.MAX_VALUE if there is none.
+		 */
+		private long getRemainingTime() {
+			if (timeout <= 0)
+				return Long.MAX_VALUE;
+			return timeout - (SystemClock.elapsedRealtime() - queuedTime);
+		}
+		
+		private void execute() {
+			HttpEntity entity = null;
+			try {
+				HttpUriRequest request = prepare();
+				
+				HttpResponse response;
+				executingRequest.set(this);
+				try {
+					response = httpClient.execute(request);
+				} catch (IOException e) {
+					if (onSendFailed(e))
+						return;
+					throw e;
+				} finally {
+					executingRequest.set(null);
+				}
+				entity = response.getEntity();
+				handleResponse(response, System.nanoTime());
+			} catch (Exception e) {
+				if (DEBUG)
+					log("Unsuccessfully executed request. Reason " + e.getMessage());
+				deliverError(e);
+			} finally {
+				endExchange(entity);
+			}
+		}
+		
+		/**
+		 * Sends the request on the NioTransport and returns, so the worker is free while the server is slow. The
+		 * call slot stays taken until the response has been handled on a worker again.
+		 */
+		private void executeAsync(NioTransport nio) {
+			HttpUriRequest request;
+			byte[] body;
+			try {
+				request = prepare();
+				body = getBody(request);
+				compression.process(request, null);
+			} catch (Exception e) {
+				if (DEBUG)
+					log("Unsuccessfully executed request. Reason " + e.getMessage());
+				deliverError(e);
+				endExchange(null);
+				finishAttempt();
+				return;
+			}
+			
+			long remaining = getRemainingTime();
+			NioTransport.Exchange started;
+			try {
+				started = nio.execute(request, body, boundTimeout(connectTimeoutTime, remaining),
+						boundTimeout(readTimeoutTime, remaining), new NioTransport.Callback() {
+					@Override
+					public void onConnected(boolean reused) {
+						if (reused)
+							connectionsReused.incrementAndGet();
+						else
+							connectionsOpened.incrementAndGet();
+						connected(reused);
+					}
+					
+					@Override
+					public void onResponse(HttpResponse response, long receivedAt) {
+						completeLater(response, receivedAt, null);
+					}
+					
+					@Override
+					public void onError(IOException error) {
+						completeLater(null, 0, error);
+					}
+				});
+			} catch (IOException e) {
+				completeAsync(null, 0, e);
+				return;
+			}
+			
+			exchange = started;
+			if (finished.get())
+				started.abort();
+		}
+		
+		/**
+		 * Moves the response off the selector thread, since handling it may block on the cache and the listener.
+		 */
+		private void completeLater(final HttpResponse response, final long receivedAt, final IOException error) {
+			try {
+				workerPool.execute(new Runnable() {
+					@Override
+					public void run() {
+						completeAsync(response, receivedAt, error);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// The service is being destroyed.
+			}
+		}
+		
+		private void completeAsync(HttpResponse response, long receivedAt, IOException error) {
+			HttpEntity entity = null;
+			try {
+				if (error != null) {
+					if (onSendFailed(error))
+						return;
+					throw error;
+				}
+				compression.process(response, null);
+				entity = response.getEntity();
+				handleResponse(response, receivedAt);
+			} catch (Exception e) {
+				if (DEBUG)
+					log("Unsuccessfully executed request. Reason " + e.getMessage());
+				deliverError(e);
+			} finally {
+				exchange = null;
+				endExchange(entity);
+				finishAttempt();
+			}
+		}
+		
+		private HttpUriRequest prepare() throws IOException {
+			log("Started executing request.");
+			attempts++;
+			record(Phase.BACKLOG, System.nanoTime() - enqueuedAt);
+			connectedAt = 0;
+			headersAt = 0;
+			
+			HttpUriRequest request = getRequest();
+			if (rangeHandler != null)
+				rangeHandler.prepare(request);
+			
+			// Publish the request before checking for a cancel, so a concurrent cancel either sees it or is seen.
+			currentRequest = request;
+			if (finished.get())
+				request.abort();
+			sentAt = System.nanoTime();
+			return request;
+		}
+		
+		/**
+		 * The NioTransport takes the body as bytes, with the headers HttpClient would have set from the entity.
+		 */
+		private byte[] getBody(HttpUriRequest request) throws IOException {
+			if (!(request instanceof HttpEntityEnclosingRequest))
+				return null;
+			HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+			if (entity == null)
+				return null;
+			
+			if (entity.getContentType() != null && !request.containsHeader("Content-Type"))
+				request.setHeader(entity.getContentType());
+			PooledOutputStream out = new PooledOutputStream(bufferPool, entity.getContentLength());
+			try {
+				entity.writeTo(out);
+				return out.toByteArray();
+			} finally {
+				out.close();
+			}
+		}
+		
+		/**
+		 * @return True if a retry was scheduled.
+		 */
+		private boolean onSendFailed(IOException error) {
+			if (finished.get())
+				return false;
+			// Only a timeout says the network or the server is overloaded. A refused connection or an unknown host
+			// has nothing to do with how many calls are in flight.
+			if (error instanceof InterruptedIOException)
+				sampleConcurrency(sentAt, true);
+			return shouldRetry(-1, null);
+		}
+		
+		/**
+		 * @param receivedAt When the response headers arrived, in System.nanoTime().
+		 */
+		private void handleResponse(HttpResponse response, long receivedAt) throws Exception {
+			headersAt = receivedAt;
+			if (connectedAt != 0)
+				record(Phase.TIME_TO_FIRST_BYTE, headersAt - connectedAt);
+			record(Phase.SEND_TO_FIRST_BYTE, headersAt - sentAt);
+			HttpEntity entity = response.getEntity();
+			
+			int responseCode = response.getStatusLine().getStatusCode();
+			this.responseCode = responseCode;
+			NetworkEventListener[] events = eventListeners;
+			for (int i = 0; i < events.length; i++)
+				events[i].onResponseHeaders(this, responseCode);
+			sampleConcurrency(sentAt, responseCode == 429 || responseCode == 503);
+			if (shouldRetry(responseCode, response.getFirstHeader("Retry-After")))
+				return;
+			if (responseCode < 500 && responseCode != 429)
+				retryBudget.onSuccess();
+	        
+			if (rangeHandler != null) {
+				if (DEBUG)
+					log("Writing downloaded range : " + responseCode);
+				rangeHandler.onResponse(response);
+				// The download already dealt with the response, so only the request itself is completed here.
+				if (finished.compareAndSet(false, true)) {
+					Exception error = responseCode >= 400 ? new Exception(response.getStatusLine().getReasonPhrase()) : null;
+					called(System.nanoTime(), error, false);
+					delivered(error, false);
+				}
+			} else if (responseCode == 304 && cachedEntry != null) {
+				log("Cached response was not modified.");
+				cacheNotModified.incrementAndGet();
+				httpCache.update(cachedEntry, response);
+				deliverCached(this, cachedEntry);
+			} else if (responseCode != 200) {
+	        	String reasonPhrase = response.getStatusLine().getReasonPhrase();
+				if (DEBUG)
+					log("Successfully executed request however received bad response : " + responseCode + " - " + reasonPhrase);
+	        	deliverError(new Exception(reasonPhrase));
+	        } else {
+	        	log("Successfully executed request.");
+	        	InputStream content = entity.getContent();
+	        	long length = entity.getContentLength();
+	        	Header contentType = entity.getContentType();
+	        	String type = contentType == null ? null : contentType.getValue();
+	        	if (!isCacheable() || cacheSize <= 0 || !HttpCache.isCacheable(response)) {
+	        		deliverSuccess(content, type, length);
+	        	} else if (length >= 0 && length <= memoryCache.getMaxEntrySize()) {
+	        		CacheEntry stored = HttpCache.newEntry(url, headers, response);
+	        		byte[] bytes = ResponseDecoders.toByteArray(content, length, bufferPool);
+	        		httpCache.put(stored, new ByteArrayInputStream(bytes)).close();
+	        		memoryCache.put(stored, bytes);
+	        		deliverSuccess(bytes, type);
+	        	} else {
+	        		InputStream body = httpCache.put(HttpCache.newEntry(url, headers, response), content);
+	        		try {
+	        			deliverSuccess(body, type, length);
+	        		} finally {
+	        			body.close();
+	        		}
+	        	}
+	        }
+		}
+		
+		private void endExchange(HttpEntity entity) {
+			releaseConnection(entity);
+			currentRequest = null;
+			if (headersAt != 0)
+				record(Phase.BODY, System.nanoTime() - headersAt);
+			log("Finished executing request.");
+		}
+		
+		/**
+		 * Called on the worker thread once the connection for the request is ready to send on.
+		 */
+		private void connected(boolean reused) {
+			connectedAt = System.nanoTime();
+			record(reused ? Phase.CONNECT_REUSED : Phase.CONNECT_NEW, connectedAt - sentAt);
+			NetworkEventListener[] events = eventListeners;
+			for (int i = 0; i < events.length; i++)
+				events[i].onConnected(this, reused);
+		}
+		
+		private void queued() {
+			handle.setStatus(RequestHandle.Status.QUEUED);
+			NetworkEventListener[] events = eventListeners;
+			for (int i = 0; i < events.length; i++)
+				events[i].onQueued(this);
+		}
+		
+		private void dispatched() {
+			handle.setStatus(RequestHandle.Status.RUNNING);
+			synchronized (this) {
+				if (followers != null)
+					for (NetworkRequest follower : followers)
+						follower.handle.setStatus(RequestHandle.Status.RUNNING);
+			}
+			NetworkEventListener[] events = eventListeners;
+			for (int i = 0; i < events.length; i++)
+				events[i].onDispatched(this);
+		}
+		
+		private void record(Phase phase, long nanos) {
+			stats.record(getHost(), requestType.name(), phase, nanos);
+		}
+		
+		/**
+		 * Completes the handle once the listener returned, since a decoding listener leaves its result in it. Runs
+		 * on the listener's thread.
+		 */
+		private void called(long callbackStart, Exception error, boolean cancelled) {
+			record(Phase.CALLBACK, System.nanoTime() - callbackStart);
+			handle.finish(error, cancelled);
+		}
+		
+		/**
+		 * Runs on the thread that has the outcome once it was handed to the listener, so a busy callback thread
+		 * does not hold up the bookkeeping.
+		 * 
+		 * @param error The error the listeners were told, or null if they got the response.
+		 */
+		private void delivered(Exception error, boolean cancelled) {
+			record(Phase.TOTAL, System.nanoTime() - createdAt);
+			
+			if (journalRequest != null && (error == null || cancelled || !isRetryable()))
+				journal.complete(journalRequest);
+			NetworkEventListener[] events = eventListeners;
+			for (int i = 0; i < events.length; i++) {
+				if (error == null)
+					events[i].onCompleted(this);
+				else if (cancelled)
+					events[i].onCancelled(this, error);
+				else
+					events[i].onFailed(this, error);
+			}
+		}
+		
+		/**
+		 * @return True if the server never answered the last attempt, or answered with a status worth retrying.
+		 */
+		private boolean isRetryable() {
+			return responseCode == -1 || getRetryPolicy().isRetryStatusCode(responseCode);
+		}
+		
+		private RetryPolicy getRetryPolicy() {
+			return requestRetryPolicy != null ? requestRetryPolicy : retryPolicy;
+		}
+		
+		/**
+		 * Decides whether a failed attempt is sent again and after how long. Only idempotent methods are retried
+		 * unless the policy allows POST, content that can not be sent twice is never retried, and every retry has
+		 * to fit in the service's retry budget.
+		 * 
+		 * @param responseCode The status code, or -1 if the request failed with an IOException.
+		 * @return True if a retry was scheduled and the attempt must not be reported to the listener.
+		 */
+		private boolean shouldRetry(int responseCode, Header retryAfter) {
+			RetryPolicy policy = getRetryPolicy();
+			if (finished.get() || attempts > policy.getMaxRetries())
+				return false;
+			if (responseCode != -1 && !policy.isRetryStatusCode(responseCode))
+				return false;
+			if (requestType == RequestType.POST && !policy.isRetryPost())
+				return false;
+			if (streamingContent != null && !streamingContent.isRepeatable())
+				return false;
+			
+			long delay = policy.getBackoff(attempts);
+			if (retryAfter != null) {
+				long serverDelay = parseRetryAfter(retryAfter.getValue());
+				if (serverDelay > policy.getMaxBackoff())
+					return false;
+				delay = Math.max(delay, serverDelay);
+			}
+			if (delay >= getRemainingTime())
+				return false;
+			
+			if (!retryBudget.tryAcquire()) {
+				retriesDenied.incrementAndGet();
+				log("Retry budget exhausted, not retrying request.");
+				return false;
+			}
+			
+			retries.incrementAndGet();
+			retryDelay = delay;
+			NetworkEventListener[] events = eventListeners;
+			for (int i = 0; i < events.length; i++)
+				events[i].onRetry(this, delay);
+			if (DEBUG)
+				log("Retrying request in " + delay + "ms after " + (responseCode == -1 ? "an error" : "status " + responseCode) + ".");
+			return true;
+		}
+		
+		/**
+		 * @return The delay asked for in a Retry-After header, as seconds or an HTTP date, in milliseconds.
+		 */
+		private long parseRetryAfter(String value) {
+			try {
+				return Math.max(0, Long.parseLong(value.trim()) * 1000);
+			} catch (NumberFormatException e) {
+				try {
+					return Math.max(0, DateUtils.parseDate(value).getTime() - System.currentTimeMillis());
+				} catch (DateParseException ex) {
+					return 0;
+				}
+			}
+		}
+		
+		/**
+		 * Streams the body to the listener, or reads it once and hands the same bytes to every coalesced listener.
+		 */
+		private void deliverSuccess(InputStream data, String contentType, long length) throws IOException {
+			if (!finished.compareAndSet(false, true))
+				return;
+			
+			List<NetworkRequest> joined = closeFollowers();
+			if (joined == null && getCallbackExecutor() == null) {
+				long start = System.nanoTime();
+				try {
+					if (!detached)
+						notifySuccess(listener, data, contentType, length);
+				} finally {
+					called(start, null, false);
+					delivered(null, false);
+				}
+				return;
+			}
+			
+			// The body is read now so the connection and the worker are free before any listener runs.
+			deliverToAll(ResponseDecoders.toByteArray(data, length, bufferPool), contentType, joined);
+		}
+		
+		/**
+		 * Hands every listener its own stream over the same body.
+		 */
+		private void deliverSuccess(byte[] body, String contentType) {
+			if (finished.compareAndSet(false, true))
+				deliverToAll(body, contentType, closeFollowers());
+		}
+		
+		private void deliverToAll(byte[] body, String contentType, List<NetworkRequest> joined) {
+			try {
+				if (detached) {
+					called(System.nanoTime(), null, false);
+				} else {
+					final Runnable callback = prepareSuccess(listener, body, contentType);
+					dispatch(new Runnable() {
+						@Override
+						public void run() {
+							long start = System.nanoTime();
+							try {
+								callback.run();
+							} finally {
+								called(start, null, false);
+							}
+						}
+					});
+				}
+			} finally {
+				delivered(null, false);
+			}
+			
+			if (joined != null)
+				for (final NetworkRequest follower : joined) {
+					final Runnable callback = prepareSuccess(follower.listener, body, contentType);
+					follower.dispatch(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								callback.run();
+							} finally {
+								follower.handle.finish(null, false);
+							}
+						}
+					});
+				}
+		}
+		
+		/**
+		 * Reports an error to the listeners unless they already heard back, e.g. when a cancel races a response.
+		 */
+		private void deliverError(Exception error) {
+			deliverError(error, false);
+		}
+		
+		/**
+		 * @return False if the listeners already heard back.
+		 */
+		private boolean deliverError(final Exception error, final boolean cancelled) {
+			if (!finished.compareAndSet(false, true))
+				return false;
+			
+			List<NetworkRequest> joined = closeFollowers();
+			if (cancelled) {
+				// The handles are cancelled at once, even if their listeners are told later on another thread.
+				handle.finish(error, true);
+				if (joined != null)
+					for (NetworkRequest follower : joined)
+						follower.handle.finish(error, true);
+			}
+			
+			try {
+				if (detached) {
+					called(System.nanoTime(), error, cancelled);
+				} else {
+					dispatch(new Runnable() {
+						@Override
+						public void run() {
+							long start = System.nanoTime();
+							try {
+								listener.onError(error);
+							} finally {
+								called(start, error, cancelled);
+							}
+						}
+					});
+				}
+			} finally {
+				delivered(error, cancelled);
+			}
+			
+			if (joined != null)
+				for (final NetworkRequest follower : joined) {
+					follower.dispatch(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								follower.listener.onError(error);
+							} finally {
+								follower.handle.finish(error, cancelled);
+							}
+						}
+					});
+				}
+			return true;
+		}
+		
+		/**
+		 * @return The Executor the listener is called on, or null to call it on the thread that has the response.
+		 */
+		private Executor getCallbackExecutor() {
+			Executor executor = requestCallbackExecutor != null ? requestCallbackExecutor : callbackExecutor;
+			return executor == RequestOptions.WORKER_THREAD ? null : executor;
+		}
+		
+		/**
+		 * Runs a listener callback on the listener's Executor, or right here if it has none or the Executor refuses it.
+		 */
+		private void dispatch(Runnable callback) {
+			Executor executor = getCallbackExecutor();
+			if (executor != null) {
+				try {
+					executor.execute(callback);
+					return;
+				} catch (RejectedExecutionException e) {
+					if (DEBUG)
+						log("Callback executor rejected the callback, calling the listener on this thread.");
+				}
+			}
+			callback.run();
+		}
+		
+		/**
+		 * Reports the error and aborts the connection if the request is on the network, which makes the blocked
+		 * worker return at once. A cancelled request still runs through the worker so its call slot is released
+		 * in one place.
+		 * 
+		 * @return False if the listeners already heard back.
+		 */
+		private boolean cancel(String reason) {
+			boolean cancelled = deliverError(new Exception(reason), true);
+			
+			HttpUriRequest request = currentRequest;
+			if (request != null)
+				request.abort();
+			NioTransport.Exchange running = exchange;
+			if (running != null)
+				running.abort();
+			return cancelled;
+		}
+		
+		/**
+		 * Streaming content is sent as is. Byte content is gzipped if the caller opted in and it is large enough for
+		 * compression to pay off.
+		 */
+		private HttpEntity getContentEntity(HttpUriRequest request) throws IOException {
+			if (streamingContent != null)
+				return RequestEntities.withProgress(streamingContent, uploadProgressListener, compression);
+			
+			byte[] body = content;
+			if (compressContent && content.length >= compressionThreshold) {
+				body = CompressionInterceptor.gzip(content);
+				request.setHeader("Content-Encoding", "gzip");
+			}
+			
+			compression.countSent(content.length, body.length);
+			AbstractHttpEntity entity = new ByteArrayEntity(body);
+			return uploadProgressListener == null ? entity : RequestEntities.withProgress(entity, uploadProgressListener, null);
+		}
+		
+		private HttpUriRequest getRequest() throws IOException {
+			HttpUriRequest request = createRequest();
+			
+			// Read per request so changed timeouts apply to pooled connections too, and never wait past the deadline.
+			long remaining = getRemainingTime();
+			HttpParams params = request.getParams();
+			HttpConnectionParams.setConnectionTimeout(params, boundTimeout(connectTimeoutTime, remaining));
+			HttpConnectionParams.setSoTimeout(params, boundTimeout(readTimeoutTime, remaining));
+			ConnManagerParams.setTimeout(params, boundTimeout(connectTimeoutTime, remaining));
+			return request;
+		}
+		
+		/**
+		 * @param timeout A timeout in milliseconds, or 0 for none.
+		 * @param remaining The time left until the deadline, or Long.MAX_VALUE if there is none.
+		 * @return The timeout cut to the deadline, or 0 for none if there is neither a timeout nor a deadline.
+		 */
+		private int boundTimeout(int timeout, long remaining) {
+			if (remaining == Long.MAX_VALUE)
+				return Math.max(0, timeout);
+			long bounded = timeout > 0 ? Math.min(timeout, remaining) : Math.min(Integer.MAX_VALUE, remaining);
+			return (int) Math.max(1, bounded);
+		}
+		
+		private HttpUriRequest createRequest() throws IOException {
+			switch(requestType) {
+			case GET:
+				HttpGet requestGet = new HttpGet(url);
+				for (Entry<String, String> header : headers.entrySet())
+					requestGet.setHeader(header.getKey(), header.getValue());
+				if (cachedEntry != null) {
+					if (cachedEntry.getETag() != null)
+						requestGet.setHeader("If-None-Match", cachedEntry.getETag());
+					if (cachedEntry.getLastModified() != null)
+						requestGet.setHeader("If-Modified-Since", cachedEntry.getLastModified());
+				}
+				return requestGet;
+			case POST:
+				HttpPost requestPost = new HttpPost(url);
+				for (Entry<String, String> header : headers.entrySet())
+					requestPost.setHeader(header.getKey(), header.getValue());
+				requestPost.setEntity(getContentEntity(requestPost));
+				return requestPost;
+			case PUT:
+				HttpPut requestPut = new HttpPut(url);
+				for (Entry<String, String> header : headers.entrySet())
+					requestPut.setHeader(header.getKey(), header.getValue());
+				requestPut.setEntity(getContentEntity(requestPut));
+				return requestPut;
+			case DELETE:
+				HttpDelete requestDelete = new HttpDelete(url);
+				for (Entry<String, String> header : headers.entrySet())
+					requestDelete.setHeader(header.getKey(), header.getValue());
+				return requestDelete;
+			default:
+				HttpGet request = new HttpGet(url);
+				for (Entry<String, String> header : headers.entrySet())
+					request.setHeader(header.getKey(), header.getValue());
+				return request;
+			}
+		}
+
+		/**
+		 * Drains whatever the listener left unread so the connection can go back to the pool.
+		 */
+		private void releaseConnection(HttpEntity entity) {
+			if (entity == null)
+				return;
+			
+			try {
+				entity.consumeContent();
+			} catch (IOException e) {
+				if (DEBUG)
+					log("Could not release connection. Reason " + e.getMessage());
+			}
+		}
+
+	}
+	
+	/**
+	 * Told the progress and the outcome of a download.
+	 */
+	public interface DownloadListener {
+		/**
+		 * Called after each block written to the file. Blocks written while a call waits for the callback Executor
+		 * are reported by that call.
+		 * 
+		 * @param bytesDownloaded The number of bytes in the file so far, including those from before a resume.
+		 * @param totalBytes The size of the file, or -1 if it is unknown.
+		 */
+		public void onProgress(long bytesDownloaded, long totalBytes);
+		
+		/**
+		 * Called when the whole file has been downloaded.
+		 * 
+		 * @param file The downloaded file.
+		 */
+		public void onSuccess(File file);
+		
+		/**
+		 * Called when the download failed after its retries or was cancelled.
+		 * 
+		 * @param error The Exception that contains the error message.
+		 */
+		public void onError(Exception error);
+	}
+	
+	/**
+	 * Writes the content of a request straight to the connection.
+	 */
+	public interface BodyWriter {
+		/**
+		 * Called on a worker thread when the request is sent. It may be called again if the request is retried.
+		 * 
+		 * @param out The stream to write the content to, do not close it.
+		 * @throws IOException
+		 */
+		public void writeTo(OutputStream out) throws IOException;
+	}
+	
+	/**
+	 * Told how much of a request's content has been sent.
+	 */
+	public interface UploadProgressListener {
+		/**
+		 * Called on the worker thread after every write to the connection, so keep it short.
+		 * 
+		 * @param bytesWritten The number of bytes sent so far.
+		 * @param totalBytes The size of the content, or -1 if it is unknown.
+		 */
+		public void onProgress(long bytesWritten, long totalBytes);
+	}
+	
+	/**
+	 * A change to the adaptive max number of calls.
+	 */
+	public static class LimitChange {
+		private final long time;
+		private final int limit;
+		
+		LimitChange(long time, int limit) {
+			this.time = time;
+			this.limit = limit;
+		}
+		
+		/**
+		 * @return When the limit changed, in milliseconds since the epoch.
+		 */
+		public long getTime() {
+			return time;
+		}
+		
+		/**
+		 * @return The max number of calls from then on.
+		 */
+		public int getLimit() {
+			return limit;
+		}
+		
+		@Override
+		public String toString() {
+			return limit + " at " + time;
+		}
+	}
+	
+	/**
+	 * What a NetworkEventListener is told about the request an event is for. It is the live request, so read
+	 * what you need during the call.
+	 */
+	public interface RequestInfo {
+		/**
+		 * @return A number that identifies the request for as long as the service runs.
+		 */
+		public long getId();
+		
+		/**
+		 * @return The method, e.g. "GET".
+		 */
+		public String getMethod();
+		
+		public String getUrl();
+		
+		public String getHost();
+		
+		public Priority getPriority();
+		
+		public Object getTag();
+		
+		/**
+		 * @return The number of times the request was sent so far.
+		 */
+		public int getAttempt();
+	}
+	
+	/**
+	 * Told about every step of every request, e.g. for tracing or metrics. Events arrive on whatever thread the
+	 * step happened on, so they must return quickly and must not block.
+	 */
+	public interface NetworkEventListener {
+		/**
+		 * Called when the request is put in the backlog, and again when a retry is.
+		 */
+		public void onQueued(RequestInfo request);
+		
+		/**
+		 * Called when the request takes a call slot and is handed to a worker.
+		 */
+		public void onDispatched(RequestInfo request);
+		
+		/**
+		 * Called when the request has a connection to be sent on.
+		 * 
+		 * @param reused True if the connection was kept alive from an earlier request.
+		 */
+		public void onConnected(RequestInfo request, boolean reused);
+		
+		public void onResponseHeaders(RequestInfo request, int statusCode);
+		
+		/**
+		 * Called when an attempt failed and the request will be sent again.
+		 * 
+		 * @param delay The time until it is queued again in milliseconds.
+		 */
+		public void onRetry(RequestInfo request, long delay);
+		
+		/**
+		 * Called once the response was handed to the listener of the request. With a callback Executor the
+		 * listener may not have run yet.
+		 */
+		public void onCompleted(RequestInfo request);
+		
+		/**
+		 * Called once the error was handed to the listener of the request.
+		 */
+		public void onFailed(RequestInfo request, Exception error);
+		
+		/**
+		 * Called once the listener of the request was handed the news that it was cancelled or passed its deadline.
+		 */
+		public void onCancelled(RequestInfo request, Exception reason);
+	}
+	
+	public interface NetworkResponseListener {
+		/**
+		 * Called when the request successfully returned with valid data.
+		 * 
+		 * @param data The InputStream containing the valid data.
+		 */
+		public void onSuccess(InputStream data);
+		
+		/**
+		 * Called when there is an error in making the request or if the call returns with a bad status code (if it is not status code 200).
 		 * 
 		 * @param error The Exception that contains the error message.
 		 */
 		public void onError(Exception error);
 	}
-	
+	
+	/**
+	 * Told how the durable requests replayed from the journal after a restart went, since the listeners they were
+	 * made with are gone. Calls come on the service's callback Executor.
+	 */
+	public interface ReplayListener {
+		/**
+		 * @param request The replayed request. Its tag is the String tag it was made with, if any.
+		 * @param data The InputStream containing the valid data.
+		 */
+		public void onSuccess(RequestInfo request, InputStream data);
+		
+		public void onError(RequestInfo request, Exception error);
+	}
+	
+	/**
+	 * Tells the NetworkService whether the device is online and whether the network costs money, for deferring
+	 * BACKGROUND requests. Set a fake one with setConnectivitySource() to drive the service in tests.
+	 */
+	public interface ConnectivitySource {
+		/**
+		 * Told whenever the network may have changed.
+		 */
+		public interface Listener {
+			public void onConnectivityChanged();
+		}
+		
+		public boolean isConnected();
+		
+		/**
+		 * @return True if data is billed or limited, e.g. on a cellular network.
+		 */
+		public boolean isMetered();
+		
+		/**
+		 * @param listener The Listener to tell about changes, or null to stop telling one.
+		 */
+		public void setListener(Listener listener);
+	}
+	
+	/**
+	 * Reads the stream as UTF-8 text. A DecodedResponseListener with ResponseDecoders.STRING uses the charset of the response instead.
+	 * 
+	 * @param stream
+	 * @return The string value from the inputstream.
+	 * @throws IOException
+	 * @throws UnsupportedEncodingException
+	 */
+	public static String inputStreamToString(InputStream stream)
+			throws IOException, UnsupportedEncodingException {
+		try {
+			return ResponseDecoders.readString(stream, "UTF-8", -1);
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Gives a DecodedResponseListener the headers it decodes with, and any other listener the stream.
+	 */
+	private void notifySuccess(NetworkResponseListener listener, InputStream data, String contentType, long length) {
+		if (listener instanceof DecodedResponseListener)
+			((DecodedResponseListener<?>) listener).onSuccess(data, contentType, length, bufferPool);
+		else
+			listener.onSuccess(data);
+	}
+
+	/**
+	 * @return The callback that gives the listener the body. A DecodedResponseListener's body is decoded now, so
+	 * only its callback is left for the listener's thread.
+	 */
+	private Runnable prepareSuccess(final NetworkResponseListener listener, final byte[] body, String contentType) {
+		if (listener instanceof DecodedResponseListener)
+			return ((DecodedResponseListener<?>) listener).decode(new ByteArrayInputStream(body), contentType, body.length, bufferPool);
+		
+		return new Runnable() {
+			@Override
+			public void run() {
+				listener.onSuccess(new ByteArrayInputStream(body));
+			}
+		};
+	}
+
+	private static String withParameters(String url, Map<String, String> parameters) {
+		if (parameters.isEmpty())
+			return url;
+		
+	    List<NameValuePair> params = new LinkedList<NameValuePair>();
+
+		for (Entry<String, String> parameter : parameters.entrySet())
+			params.add(new BasicNameValuePair(parameter.getKey(), parameter.getValue()));
+
+	    return url + (url.contains("?") ? "&" : "?") + URLEncodedUtils.format(params, "utf-8");
+	}
+
+	/**
+	 * @return The lower cased host of the URL, or an empty string if it has none.
+	 */
+	private static String hostOf(String url) {
+		try {
+			String host = new URI(url).getHost();
+			return host == null ? "" : host.toLowerCase();
+		} catch (URISyntaxException e) {
+			return "";
+		}
+	}
+
+	private void decCurrentCallCount() {
+		int count = currentCallCount.decrementAndGet();
+		if (DEBUG)
+			log("Decremented Current Call Count to " + count);
+	}
+
+	/**
+	 * @return Get the number of calls currently being executed.
+	 */
+	public int getCurrentCallCount() {
+		return currentCallCount.get();
+	}
+	
+	/**
+	 * @return Get the max number of calls the service can make.
+	 */
+	public int getMaxNumOfCalls() {
+		return MAX_NUM_OF_CALLS;
+	}
+
+	/**
+	 * Set the max number of calls the service can make (default 8). This turns adaptive mode off.
+	 * 
+	 * @param maxNumOfCalls The number of max calls.
+	 */
+	public void setMaxNumOfCalls(int maxNumOfCalls) {
+		concurrencyLimiter = null;
+		MAX_NUM_OF_CALLS = maxNumOfCalls;
+		
+		if (httpClient == null)
+			return;
+		
+		if (maxNumOfCalls > connectionPoolSize)
+			resizeConnectionPool();
+		else
+			connectionsPerRoute.setDefaultMaxPerRoute(maxNumOfCalls);
+		
+		executeRequests();
+	}
+
+	/**
+	 * Let the service find the max number of calls itself from the latency and errors it sees. The limit grows
+	 * while more calls do not slow responses down, shrinks when they do, and is cut when calls fail or the server
+	 * answers 429 or 503. It starts from the current max number of calls. Use getMaxNumOfCalls() to read it.
+	 * Neither bound goes above the worker pool size, since calls beyond it only wait for a worker.
+	 * 
+	 * @param minNumOfCalls The lowest the max number of calls may go.
+	 * @param maxNumOfCalls The highest the max number of calls may go.
+	 */
+	public void setAdaptiveMaxNumOfCalls(int minNumOfCalls, int maxNumOfCalls) {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(Math.min(minNumOfCalls, workerPoolSize),
+				Math.min(maxNumOfCalls, workerPoolSize), MAX_NUM_OF_CALLS);
+		concurrencyLimiter = limiter;
+		MAX_NUM_OF_CALLS = limiter.getLimit();
+		
+		if (httpClient == null)
+			return;
+		
+		if (limiter.getMaxLimit() > connectionPoolSize)
+			resizeConnectionPool();
+		else
+			connectionsPerRoute.setDefaultMaxPerRoute(limiter.getMaxLimit());
+		
+		executeRequests();
+	}
+	
+	/**
+	 * @return True if the max number of calls is adjusted by the service.
+	 */
+	public boolean isAdaptiveMaxNumOfCalls() {
+		return concurrencyLimiter != null;
+	}
+	
+	/**
+	 * @return The most recent changes to the adaptive max number of calls, oldest first, or an empty list if it is
+	 * not adaptive.
+	 */
+	public List<LimitChange> getMaxNumOfCallsHistory() {
+		ConcurrencyLimiter limiter = concurrencyLimiter;
+		if (limiter == null)
+			return Collections.emptyList();
+		return limiter.getHistory();
+	}
+
+	/**
+	 * @return The number of worker threads requests are executed on.
+	 */
+	public int getWorkerPoolSize() {
+		return workerPoolSize;
+	}
+
+	/**
+	 * Set the number of worker threads requests are executed on (default 8).
+	 * If it is lower than the max number of calls, admitted requests wait for a free worker. An adaptive max number
+	 * of calls is lowered to it, and is not raised again if the pool grows later.
+	 * 
+	 * @param workerPoolSize The number of worker threads.
+	 */
+	public void setWorkerPoolSize(int workerPoolSize) {
+		this.workerPoolSize = workerPoolSize;
+		ConcurrencyLimiter limiter = concurrencyLimiter;
+		if (limiter != null && limiter.getMaxLimit() > workerPoolSize)
+			setAdaptiveMaxNumOfCalls(limiter.getMinLimit(), workerPoolSize);
+		
+		if (workerPool == null)
+			return;
+		
+		if (workerPoolSize > workerPool.getMaximumPoolSize()) {
+			workerPool.setMaximumPoolSize(workerPoolSize);
+			workerPool.setCorePoolSize(workerPoolSize);
+		} else {
+			workerPool.setCorePoolSize(workerPoolSize);
+			workerPool.setMaximumPoolSize(workerPoolSize);
+		}
+	}
+
+	/**
+	 * @return The number of requests that had to open a new connection.
+	 */
+	public long getConnectionsOpened() {
+		return connectionsOpened.get();
+	}
+
+	/**
+	 * @return The number of requests that were sent on a kept-alive connection.
+	 */
+	public long getConnectionsReused() {
+		return connectionsReused.get();
+	}
+
+	/**
+	 * @return The number of connections opened ahead of time by preconnect() and warmUp().
+	 */
+	public long getConnectionsPreconnected() {
+		return connectionsPreconnected.get();
+	}
+
+	/**
+	 * Resolve a host and open a connection to it ahead of time, e.g. as the screen that talks to it is opened, so
+	 * the first request skips the DNS lookup, the connect and the TLS handshake. It runs in the background and the
+	 * connection waits in the pool for up to the idle connection time. The NIO transports only warm the DNS cache.
+	 * 
+	 * @param host A URL or origin such as "https://api.example.com", or a host name to reach over https.
+	 */
+	public void preconnect(String host) {
+		preconnect(host, 1);
+	}
+
+	/**
+	 * Resolve a host and open several connections to it ahead of time, for a screen that sends requests to it in
+	 * parallel. At most the connection pool size is opened.
+	 * 
+	 * @param host A URL or origin such as "https://api.example.com", or a host name to reach over https.
+	 * @param connections The number of connections to have ready.
+	 */
+	public void preconnect(String host, final int connections) {
+		final HttpHost target;
+		try {
+			target = originOf(host);
+		} catch (URISyntaxException e) {
+			log("Could not preconnect to " + host + " : " + e.getMessage());
+			return;
+		}
+		
+		try {
+			preconnectExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					openConnections(target, connections);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// The service is shutting down.
+		}
+	}
+
+	/**
+	 * Preconnect to every origin of the URLs a screen is about to request, one connection each.
+	 * 
+	 * @param urls The URLs.
+	 */
+	public void warmUp(Collection<String> urls) {
+		Set<String> origins = new LinkedHashSet<String>();
+		for (String url : urls) {
+			try {
+				origins.add(originOf(url).toURI());
+			} catch (URISyntaxException e) {
+				log("Could not warm up " + url + " : " + e.getMessage());
+			}
+		}
+		
+		for (String origin : origins)
+			preconnect(origin);
+	}
+
+	/**
+	 * @param host A URL, or a host name taken to be https.
+	 * @return The target HttpHost, built the way DefaultHttpClient builds it for a request so a connection opened
+	 * for it lands in the same route of the pool.
+	 */
+	private static HttpHost originOf(String host) throws URISyntaxException {
+		URI uri = new URI(host.contains("://") ? host : "https://" + host);
+		if (uri.getHost() == null)
+			throw new URISyntaxException(host, "No host");
+		return new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme());
+	}
+
+	/**
+	 * Resolves the host and, on the blocking transport, opens connections to it that are handed back to the pool.
+	 */
+	private void openConnections(HttpHost target, int count) {
+		try {
+			dnsCache.lookup(target.getHostName());
+			if (transport != Transport.BLOCKING)
+				return;
+			
+			HttpRoute route = new HttpRoute(target, null, target.getSchemeName().equalsIgnoreCase("https"));
+			ThreadSafeClientConnManager manager = connectionManager;
+			DefaultHttpClient client = httpClient;
+			List<ManagedClientConnection> taken = new ArrayList<ManagedClientConnection>(count);
+			try {
+				// Every connection is held until all are open, or the pool would hand the same one back each time.
+				for (int i = 0; i < Math.min(count, connectionPoolSize); i++) {
+					ManagedClientConnection connection = manager.requestConnection(route, null).getConnection(connectTimeoutTime, TimeUnit.MILLISECONDS);
+					taken.add(connection);
+					if (!connection.isOpen()) {
+						connection.open(route, new BasicHttpContext(), client.getParams());
+						preconnected.add(connection.getMetrics());
+						connectionsPreconnected.incrementAndGet();
+					}
+					connection.markReusable();
+				}
+			} finally {
+				for (ManagedClientConnection connection : taken)
+					manager.releaseConnection(connection, idleConnectionTime, TimeUnit.MILLISECONDS);
+			}
+			if (DEBUG)
+				log("Preconnected to " + target.toURI());
+		} catch (Exception e) {
+			log("Could not preconnect to " + target.toURI() + " : " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return How long a resolved host name is kept in milliseconds.
+	 */
+	public long getDnsCacheTtl() {
+		return dnsCache.getTtl();
+	}
+
+	/**
+	 * Set how long a resolved host name is kept (default 60000ms). The DNS cache is cleared when the network
+	 * changes, if deferral is watching it.
+	 * 
+	 * @param ttl The time in milliseconds, or 0 to resolve every new connection again.
+	 */
+	public void setDnsCacheTtl(long ttl) {
+		dnsCache.setTtl(ttl);
+	}
+
+	/**
+	 * @return How long a host name that did not resolve is remembered in milliseconds.
+	 */
+	public long getDnsNegativeCacheTtl() {
+		return dnsCache.getNegativeTtl();
+	}
+
+	/**
+	 * Set how long a host name that did not resolve is remembered (default 10000ms), so the requests to it fail
+	 * without another lookup.
+	 * 
+	 * @param negativeTtl The time in milliseconds, or 0 to look up again every time.
+	 */
+	public void setDnsNegativeCacheTtl(long negativeTtl) {
+		dnsCache.setNegativeTtl(negativeTtl);
+	}
+
+	/**
+	 * @return The number of host name lookups answered from the DNS cache.
+	 */
+	public long getDnsCacheHitCount() {
+		return dnsCache.getHitCount();
+	}
+
+	/**
+	 * @return The number of host name lookups that went to DNS.
+	 */
+	public long getDnsCacheMissCount() {
+		return dnsCache.getMissCount();
+	}
+
+	/**
+	 * @return The number of GET calls that were answered by an identical request already in flight.
+	 */
+	public long getCoalescedRequestCount() {
+		return coalescedRequests.get();
+	}
+
+	/**
+	 * @return The number of GET calls answered from the cache without a network request.
+	 */
+	public long getCacheHitCount() {
+		return cacheHits.get();
+	}
+
+	/**
+	 * @return The number of cacheable GET calls that had no usable cached response.
+	 */
+	public long getCacheMissCount() {
+		return cacheMisses.get();
+	}
+
+	/**
+	 * @return The number of GET calls sent as conditional requests to revalidate a stale cached response.
+	 */
+	public long getCacheRevalidationCount() {
+		return cacheRevalidations.get();
+	}
+
+	/**
+	 * @return The number of revalidations the server answered with 304 Not Modified.
+	 */
+	public long getCacheNotModifiedCount() {
+		return cacheNotModified.get();
+	}
+
 	/**
-	 * @param stream
-	 * @return The string value from the inputstream.
-	 * @throws IOException
-	 * @throws UnsupportedEncodingException
+	 * @return The number of cache hits that were answered from memory.
 	 */
-	public static String inputStreamToString(InputStream stream)
-			throws IOException, UnsupportedEncodingException {
-		BufferedReader br = null;
-		StringBuilder sb = new StringBuilder();
- 
-		String line;
-		try {
-			br = new BufferedReader(new InputStreamReader(stream));
-			while ((line = br.readLine()) != null) {
-				sb.append(line);
-			}
-		} finally {
-			if (br != null) {
-				br.close();
+	public long getMemoryCacheHitCount() {
+		return memoryCacheHits.get();
+	}
+
+	/**
+	 * @return The maximum number of bytes of response bodies kept in memory.
+	 */
+	public long getMemoryCacheSize() {
+		return memoryCache.getMaxSize();
+	}
+
+	/**
+	 * Set the maximum number of bytes of response bodies kept in memory (default 1MB). Only responses up to an eighth
+	 * of this size are kept. The memory cache shrinks on its own when the system is low on memory.
+	 * 
+	 * @param memoryCacheSize The memory cache size in bytes.
+	 */
+	public void setMemoryCacheSize(long memoryCacheSize) {
+		memoryCache.setMaxSize(memoryCacheSize);
+	}
+
+	/**
+	 * @return The number of body buffers that were reused from the buffer pool.
+	 */
+	public long getBufferPoolHitCount() {
+		return bufferPool.getHitCount();
+	}
+
+	/**
+	 * @return The number of body buffers that had to be freshly allocated.
+	 */
+	public long getBufferAllocationCount() {
+		return bufferPool.getAllocationCount();
+	}
+
+	/**
+	 * @return The number of pooled buffers that were garbage collected without being returned. Only counted in debug mode.
+	 */
+	public long getBufferLeakCount() {
+		return bufferPool.getLeakCount();
+	}
+
+	/**
+	 * @return The maximum number of bytes of idle body buffers kept for reuse.
+	 */
+	public long getBufferPoolSize() {
+		return bufferPool.getMaxSize();
+	}
+
+	/**
+	 * Set the maximum number of bytes of idle body buffers kept for reuse (default 1MB). Buffers from 4KB to 256KB
+	 * are pooled; larger bodies are always allocated. The pool is emptied when the system is low on memory.
+	 * 
+	 * @param bufferPoolSize The buffer pool size in bytes.
+	 */
+	public void setBufferPoolSize(long bufferPoolSize) {
+		bufferPool.setMaxSize(bufferPoolSize);
+	}
+
+	/**
+	 * @return The maximum number of bytes the response cache keeps on disk.
+	 */
+	public long getCacheSize() {
+		return cacheSize;
+	}
+
+	/**
+	 * Set the maximum number of bytes the response cache keeps on disk (default 10MB). Set it to 0 to turn caching off.
+	 * 
+	 * @param cacheSize The cache size in bytes.
+	 */
+	public void setCacheSize(final long cacheSize) {
+		this.cacheSize = cacheSize;
+		
+		if (httpCache != null)
+			cacheExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					httpCache.setMaxSize(cacheSize);
+				}
+			});
+	}
+
+	/**
+	 * Delete every response in the cache.
+	 */
+	public void clearCache() {
+		memoryCache.trimToSize(0);
+		if (httpCache != null)
+			cacheExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					httpCache.clear();
+				}
+			});
+	}
+
+	/**
+	 * @return The number of request body bytes sent on the wire, after compression.
+	 */
+	public long getBytesSent() {
+		return compression.getBytesSent();
+	}
+
+	/**
+	 * @return The number of request body bytes sent, before compression.
+	 */
+	public long getBytesSentUncompressed() {
+		return compression.getBytesSentUncompressed();
+	}
+
+	/**
+	 * @return The number of response body bytes received on the wire, before decompression.
+	 */
+	public long getBytesReceived() {
+		return compression.getBytesReceived();
+	}
+
+	/**
+	 * @return The number of response body bytes read by listeners, after decompression.
+	 */
+	public long getBytesReceivedDecompressed() {
+		return compression.getBytesReceivedDecompressed();
+	}
+
+	/**
+	 * @return The smallest content that is gzipped for requests that opted in.
+	 */
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * Set the smallest POST/PUT content that is gzipped when a request opts in with RequestOptions.setCompressContent() (default 1024 bytes).
+	 * 
+	 * @param compressionThreshold The threshold in bytes.
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * @return The RetryPolicy used by requests that do not set their own.
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * Set the RetryPolicy used by requests that do not set their own (default 2 retries of GET, PUT and DELETE).
+	 * 
+	 * @param retryPolicy The RetryPolicy, RetryPolicy.none() to never retry.
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Set how many retries the whole service may make (default a burst of 10 plus 0.1 per successful request).
+	 * 
+	 * @param burst The number of retries allowed before any request succeeded.
+	 * @param ratio The number of retries each successful request earns.
+	 */
+	public void setRetryBudget(int burst, double ratio) {
+		retryBudget.set(burst, ratio);
+	}
+
+	/**
+	 * @return The number of retries sent.
+	 */
+	public long getRetryCount() {
+		return retries.get();
+	}
+
+	/**
+	 * @return The number of retries that were not sent because the retry budget was used up.
+	 */
+	public long getRetryBudgetExhaustedCount() {
+		return retriesDenied.get();
+	}
+
+	/**
+	 * @return The time an unused connection is kept in the pool.
+	 */
+	public long getIdleConnectionTime() {
+		return idleConnectionTime;
+	}
+
+	/**
+	 * Set how long an unused connection is kept in the pool before it is closed (default 30000ms).
+	 * 
+	 * @param idleConnectionTime The idle time in milliseconds.
+	 */
+	public void setIdleConnectionTime(long idleConnectionTime) {
+		this.idleConnectionTime = idleConnectionTime;
+		if (nioTransport != null)
+			nioTransport.setIdleConnectionTime(idleConnectionTime);
+	}
+
+	/**
+	 * @return The Executor listeners are called on unless their RequestOptions say otherwise, or null for the worker thread.
+	 */
+	public Executor getCallbackExecutor() {
+		return callbackExecutor;
+	}
+
+	/**
+	 * Set where listeners are called unless their RequestOptions say otherwise (default the worker thread). With
+	 * RequestOptions.MAIN_THREAD a burst of responses is delivered in one main thread message. Off the worker, the
+	 * body is read, and decoded for a DecodedResponseListener, before the listener is called, so a slow listener
+	 * does not hold a worker or a connection.
+	 * 
+	 * @param callbackExecutor The Executor, e.g. RequestOptions.MAIN_THREAD, or null for the worker thread.
+	 */
+	public void setCallbackExecutor(Executor callbackExecutor) {
+		this.callbackExecutor = callbackExecutor;
+	}
+
+	/**
+	 * @return The listener told about replayed durable requests, or null.
+	 */
+	public ReplayListener getReplayListener() {
+		return replayListener;
+	}
+
+	/**
+	 * Set the listener told about durable requests replayed after a restart. The requests read back from the
+	 * journal are held until the first ReplayListener is set, so none of their outcomes is missed.
+	 * 
+	 * @param replayListener The ReplayListener, or null.
+	 */
+	public void setReplayListener(ReplayListener replayListener) {
+		List<RequestJournal.Request> stored;
+		synchronized (this) {
+			this.replayListener = replayListener;
+			if (replayListener == null || unreplayed == null)
+				return;
+			stored = unreplayed;
+			unreplayed = null;
+		}
+		replay(stored);
+	}
+
+	/**
+	 * @return The time after which a durable request that did not complete is given up on, in milliseconds.
+	 */
+	public long getMaxDurableAge() {
+		return maxDurableAge;
+	}
+
+	/**
+	 * Set how long a durable request is replayed after restarts before it is given up on (default 24 hours). A
+	 * request given up on is reported to the ReplayListener as an error.
+	 * 
+	 * @param maxDurableAge The time since the request was made, in milliseconds.
+	 */
+	public void setMaxDurableAge(long maxDurableAge) {
+		this.maxDurableAge = maxDurableAge;
+	}
+
+	/**
+	 * @return The number of durable requests kept on disk that have not completed.
+	 */
+	public int getDurableRequestCount() {
+		return journal.size();
+	}
+
+	/**
+	 * @return True if BACKGROUND and PREFETCH requests wait for a good moment to go out.
+	 */
+	public boolean isDeferBackgroundRequests() {
+		return deferBackground;
+	}
+
+	/**
+	 * Let BACKGROUND and PREFETCH requests wait for a good moment to go out (default false). They are held while
+	 * the device is offline, and on a metered network until a foreground call has woken the radio or they have
+	 * waited the maximum deferral time. Held requests go out together, and go at once on an unmetered network.
+	 * Uses the Android ConnectivityManager unless another ConnectivitySource was set, which needs the
+	 * ACCESS_NETWORK_STATE permission.
+	 * 
+	 * @param deferBackground True to defer them.
+	 */
+	public void setDeferBackgroundRequests(boolean deferBackground) {
+		if (deferBackground && connectivitySource == null)
+			setConnectivitySource(new AndroidConnectivitySource(this));
+		this.deferBackground = deferBackground;
+		executeRequests();
+	}
+
+	/**
+	 * @return The ConnectivitySource deferral is decided with, or null if none has been needed yet.
+	 */
+	public ConnectivitySource getConnectivitySource() {
+		return connectivitySource;
+	}
+
+	/**
+	 * Set where the service learns about the network, instead of the Android ConnectivityManager.
+	 * 
+	 * @param connectivitySource The ConnectivitySource.(cannot be null)
+	 */
+	public void setConnectivitySource(ConnectivitySource connectivitySource) {
+		ConnectivitySource previous = this.connectivitySource;
+		if (previous != null)
+			previous.setListener(null);
+		this.connectivitySource = connectivitySource;
+		connectivitySource.setListener(connectivityListener);
+		readConnectivity();
+		executeRequests();
+	}
+
+	/**
+	 * @return How long the radio is taken to stay awake after a call in milliseconds.
+	 */
+	public long getRadioTailTime() {
+		return radioTailTime;
+	}
+
+	/**
+	 * Set how long the radio is taken to stay in its high power state after a call (default 10000ms). Held
+	 * requests go out while it is, since sending them then costs little extra power.
+	 * 
+	 * @param radioTailTime The tail time in milliseconds.
+	 */
+	public void setRadioTailTime(long radioTailTime) {
+		this.radioTailTime = radioTailTime;
+	}
+
+	/**
+	 * @return The longest a deferred request waits on a connected network in milliseconds.
+	 */
+	public long getMaxDeferralTime() {
+		return maxDeferralTime;
+	}
+
+	/**
+	 * Set the longest a deferred request waits on a metered network before it goes anyway (default 15 minutes).
+	 * Offline requests wait for the network however long it takes.
+	 * 
+	 * @param maxDeferralTime The time in milliseconds, or 0 to wait for an unmetered network or a foreground call.
+	 */
+	public void setMaxDeferralTime(long maxDeferralTime) {
+		this.maxDeferralTime = maxDeferralTime;
+		executeRequests();
+	}
+
+	/**
+	 * @return The number of BACKGROUND and PREFETCH requests being held back.
+	 */
+	public int getDeferredRequestCount() {
+		return backlog.getDeferredCount();
+	}
+
+	/**
+	 * @return How requests are sent.
+	 */
+	public Transport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Set how requests are sent (default BLOCKING). With NIO a call that is waiting on the server holds no
+	 * thread, only a call slot, so setMaxNumOfCalls() and setMaxNumOfCallsPerHost() can be raised well past the
+	 * number of threads for long polls and slow servers. Responses are read into memory before the listener is
+	 * told, so downloads and streamed request content are still sent the blocking way.
+	 * 
+	 * HTTP2 negotiates HTTP/2 with ALPN over https where the platform supports it (Android 10 and up), and
+	 * tries it with prior knowledge over http. Origins that answer with HTTP/1.1 are remembered and get NIO
+	 * connections instead.
+	 * 
+	 * @param transport The Transport.
+	 */
+	public synchronized void setTransport(Transport transport) {
+		if (transport != Transport.BLOCKING && nioTransport == null) {
+			try {
+				nioTransport = new NioTransport(1, idleConnectionTime, dnsCache);
+			} catch (IOException e) {
+				log("Could not start the NIO transport : " + e.getMessage());
+				return;
 			}
 		}
- 
-		return sb.toString();
+		if (nioTransport != null)
+			nioTransport.setHttp2Enabled(transport == Transport.HTTP2);
+		this.transport = transport;
 	}
 
-	private void decCurrentCallCount() {
-		currentCallCount--;
-		log("Decremented Current Call Count to " + currentCallCount);
+	/**
+	 * @return The number of connections the NIO transport has open.
+	 */
+	public int getNioConnectionCount() {
+		NioTransport nio = nioTransport;
+		return nio == null ? 0 : nio.getOpenConnectionCount();
 	}
 
-	private void incCurrentCallCount() {
-		currentCallCount++;
-		log("Incremented Current Call Count to " + currentCallCount);
+	/**
+	 * @return The time a queued request waits before it is treated as one priority class higher.
+	 */
+	public long getPriorityAgingTime() {
+		return backlog.getAgingTime();
 	}
 
 	/**
-	 * @return Get the number of calls currently being executed.
+	 * Set the time a queued request waits before it is treated as one priority class higher (default 5000ms).
+	 * Set it to 0 to dispatch strictly by priority.
+	 * 
+	 * @param priorityAgingTime The aging time in milliseconds.
 	 */
-	public int getCurrentCallCount() {
-		return currentCallCount;
+	public void setPriorityAgingTime(long priorityAgingTime) {
+		backlog.setAgingTime(priorityAgingTime);
 	}
-	
+
 	/**
-	 * @return Get the max number of calls the service can make.
+	 * @return The max number of calls the service makes to one host at a time, unless the host has its own limit.
 	 */
-	public int getMaxNumOfCalls() {
-		return MAX_NUM_OF_CALLS;
+	public int getMaxNumOfCallsPerHost() {
+		return backlog.getDefaultHostLimit();
 	}
 
 	/**
-	 * Set the max number of calls the service can make (default 6).
+	 * Set the max number of calls the service makes to one host at a time (default 4), so one slow host can not
+	 * hold every call slot.
 	 * 
-	 * @param maxNumOfCalls The number of max calls.
+	 * @param maxNumOfCallsPerHost The number of max calls per host.
 	 */
-	public void setMaxNumOfCalls(int maxNumOfCalls) {
-		MAX_NUM_OF_CALLS = maxNumOfCalls;
+	public void setMaxNumOfCallsPerHost(int maxNumOfCallsPerHost) {
+		backlog.setDefaultHostLimit(maxNumOfCallsPerHost);
+		executeRequests();
+	}
+
+	/**
+	 * @param host The host name, e.g. "api.example.com".
+	 * @return The max number of calls the service makes to the host at a time.
+	 */
+	public int getMaxNumOfCallsForHost(String host) {
+		return backlog.getHostLimit(host.toLowerCase());
+	}
+
+	/**
+	 * Set the max number of calls the service makes to one host at a time, overriding the per host default.
+	 * 
+	 * @param host The host name, e.g. "api.example.com".
+	 * @param maxNumOfCalls The number of max calls, or -1 to use the per host default again.
+	 */
+	public void setMaxNumOfCallsForHost(String host, int maxNumOfCalls) {
+		backlog.setHostLimit(host.toLowerCase(), maxNumOfCalls);
+		executeRequests();
+	}
+
+	/**
+	 * @return The hosts that currently have requests queued or being executed.
+	 */
+	public Set<String> getActiveHosts() {
+		return backlog.getHosts();
+	}
+
+	/**
+	 * @param host The host name, e.g. "api.example.com".
+	 * @return The number of requests to the host waiting in the backlog.
+	 */
+	public int getQueueDepth(String host) {
+		return backlog.getQueueDepth(host.toLowerCase());
+	}
+
+	/**
+	 * @param host The host name, e.g. "api.example.com".
+	 * @return The number of requests to the host currently being executed.
+	 */
+	public int getCurrentCallCount(String host) {
+		return backlog.getInFlight(host.toLowerCase());
+	}
+
+	/**
+	 * @return How long requests spent waiting in the backlog, getting a connection, waiting for the first byte,
+	 * reading the body and in the listener, per host and method, since the service started or resetStats().
+	 */
+	public NetworkStats getStats() {
+		return stats.snapshot();
+	}
+
+	/**
+	 * Start the stats returned by getStats() over.
+	 */
+	public void resetStats() {
+		stats.reset();
+	}
+
+	/**
+	 * Add a listener told about every step of every request. When none is added the service does no extra work.
+	 * 
+	 * @param listener The NetworkEventListener, e.g. a NetworkTracer.
+	 */
+	public synchronized void addNetworkEventListener(NetworkEventListener listener) {
+		NetworkEventListener[] listeners = Arrays.copyOf(eventListeners, eventListeners.length + 1);
+		listeners[listeners.length - 1] = listener;
+		eventListeners = listeners;
+	}
+
+	/**
+	 * @param listener The NetworkEventListener to stop telling.
+	 */
+	public synchronized void removeNetworkEventListener(NetworkEventListener listener) {
+		List<NetworkEventListener> listeners = new ArrayList<NetworkEventListener>(Arrays.asList(eventListeners));
+		listeners.remove(listener);
+		eventListeners = listeners.toArray(NO_EVENT_LISTENERS);
 	}
 
 	/**
@@ -634,9 +3848,10 @@ public class NetworkService extends Service {
 	}
 
 	/**
-	 * Set the read timeout time (default 20000ms).
+	 * Set the read timeout time (default 20000ms). A call fails if the server sends nothing for this long.
 	 * 
-	 * @param readTimeoutTime The read timeout time in milliseconds.
+	 * @param readTimeoutTime The read timeout time in milliseconds, or 0 to wait for as long as it takes, e.g. for
+	 * a long-poll. A request's deadline still applies.
 	 */
 	public void setReadTimeoutTime(int readTimeoutTime) {
 		this.readTimeoutTime = readTimeoutTime;
@@ -650,9 +3865,9 @@ public class NetworkService extends Service {
 	}
 
 	/**
-	 * Set the connect timeout time (default 30000ms).
+	 * Set the connect timeout time (default 30000ms). It also bounds the wait for a pooled connection.
 	 * 
-	 * @param connectTimeoutTime The connect timeout time in milliseconds.
+	 * @param connectTimeoutTime The connect timeout time in milliseconds, or 0 for none.
 	 */
 	public void setConnectTimeoutTime(int connectTimeoutTime) {
 		this.connectTimeoutTime = connectTimeoutTime;
@@ -670,6 +3885,7 @@ public class NetworkService extends Service {
 	 */
 	public void setDebug(boolean debug) {
 		DEBUG = debug;
+		bufferPool.setDebug(debug);
 	}
 	
 	/**
@@ -684,17 +3900,14 @@ public class NetworkService extends Service {
 	}
 
 	/**
-	 * Clear all the currently executing requests.
+	 * Clear all the currently executing requests. Their connections are aborted, so the call slots free up at once.
 	 */
 	public void clearCurrentRequests() {
 		if (currentlyRequesting != null) {
 			for (NetworkRequest request : currentlyRequesting) {
-				request.cancel(true);
-				request.listener.onError(new Exception("Cancelled request mid execution."));
+				request.cancel("Cancelled request mid execution.");
 				log("Cancelled request mid execution.");
 			}
-			
-			currentlyRequesting.clear();
 		}
 	}
 
@@ -703,13 +3916,15 @@ public class NetworkService extends Service {
 	 */
 	public void clearBackLog() {
 		if (backlog != null) {
-			synchronized (backlog) {
-				for (NetworkRequest request : backlog) {
-					request.cancel(true);
-					request.listener.onError(new Exception("Cancelled request before execution."));
-					log("Cancelled request before execution.");
-				}
-				backlog.clear();
+			for (NetworkRequest request : backlog.drain()) {
+				request.cancel("Cancelled request before execution.");
+				log("Cancelled request before execution.");
+			}
+			
+			for (NetworkRequest request : waitingRetries) {
+				waitingRetries.remove(request);
+				request.cancel("Cancelled request while waiting to retry.");
+				log("Cancelled request while waiting to retry.");
 			}
 		}
 	}
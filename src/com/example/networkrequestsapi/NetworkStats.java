@@ -0,0 +1,255 @@
+package com.example.networkrequestsapi;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A snapshot of how long requests spent in each phase, per host and method, taken by NetworkService.getStats().
+ *
+ * @author Saquib Hafiz
+ *
+ */
+public class NetworkStats {
+	/**
+	 * The phases a request is timed in. A listener that reads the response as a stream receives the body inside
+	 * its callback, so for it BODY and CALLBACK overlap.
+	 */
+	public enum Phase {
+		/** Waiting in the backlog for a call slot, counted again for every retry. */
+		BACKLOG,
+		/** Getting a connection that had to be opened, including the connect and the TLS handshake. */
+		CONNECT_NEW,
+		/** Getting a connection kept alive from an earlier request. */
+		CONNECT_REUSED,
+		/** From the connection being ready to the response headers, including sending the request. */
+		TIME_TO_FIRST_BYTE,
+		/** From the attempt starting to the response headers, including the DNS lookup, connect and TLS handshake. */
+		SEND_TO_FIRST_BYTE,
+		/** From the response headers to the end of the body. */
+		BODY,
+		/** In the listener's onSuccess() or onError(). */
+		CALLBACK,
+		/** From the call to the outcome being handed to the listener, including retries. */
+		TOTAL
+	};
+
+	/**
+	 * The distribution of one phase's durations, in milliseconds.
+	 */
+	public static class Timing {
+		private final long[] counts;
+		private final long count;
+		private final long total;
+		private final long max;
+
+		Timing(long[] counts, long[] summary) {
+			this.counts = counts;
+			this.count = summary[0];
+			this.total = summary[1];
+			this.max = summary[2];
+		}
+
+		/**
+		 * @return The number of durations recorded.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return The mean duration, or 0 if none were recorded.
+		 */
+		public double getMean() {
+			return count == 0 ? 0 : total / 1000.0 / count;
+		}
+
+		/**
+		 * @return The longest duration.
+		 */
+		public double getMax() {
+			return max / 1000.0;
+		}
+
+		/**
+		 * @param percentile The percentile, e.g. 99.
+		 * @return The duration that many percent of the recorded durations were at or below, or 0 if none were recorded.
+		 */
+		public double getPercentile(double percentile) {
+			if (count == 0)
+				return 0;
+
+			long rank = (long) Math.ceil(percentile / 100 * count);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank && counts[i] > 0)
+					return Math.min(max, LatencyHistogram.valueOf(i)) / 1000.0;
+			}
+			return getMax();
+		}
+
+		public double getP50() {
+			return getPercentile(50);
+		}
+
+		public double getP90() {
+			return getPercentile(90);
+		}
+
+		public double getP99() {
+			return getPercentile(99);
+		}
+
+		private void addTo(long[] into, long[] summary) {
+			for (int i = 0; i < counts.length; i++)
+				into[i] += counts[i];
+			summary[0] += count;
+			summary[1] += total;
+			summary[2] = Math.max(summary[2], max);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("n=%d p50=%.1fms p90=%.1fms p99=%.1fms max=%.1fms", count, getP50(), getP90(), getP99(), getMax());
+		}
+	}
+
+	private final Map<String, Map<String, Timing[]>> timings;
+	private final long since;
+
+	NetworkStats(Map<String, Map<String, Timing[]>> timings, long since) {
+		this.timings = timings;
+		this.since = since;
+	}
+
+	/**
+	 * @return When the stats were last reset, in milliseconds since the epoch.
+	 */
+	public long getSince() {
+		return since;
+	}
+
+	/**
+	 * @return The hosts that requests were made to.
+	 */
+	public Set<String> getHosts() {
+		return new TreeSet<String>(timings.keySet());
+	}
+
+	/**
+	 * @param host The host name.
+	 * @return The methods used with the host, e.g. "GET".
+	 */
+	public Set<String> getMethods(String host) {
+		Map<String, Timing[]> methods = timings.get(host);
+		if (methods == null)
+			return Collections.emptySet();
+		return new TreeSet<String>(methods.keySet());
+	}
+
+	/**
+	 * @param host The host name, or null for every host.
+	 * @param method The method, e.g. "GET", or null for every method.
+	 * @param phase The phase.
+	 * @return The durations of the phase.
+	 */
+	public Timing getTiming(String host, String method, Phase phase) {
+		long[] counts = new long[LatencyHistogram.BUCKETS];
+		long[] summary = new long[3];
+		for (Map.Entry<String, Map<String, Timing[]>> hostEntry : timings.entrySet()) {
+			if (host != null && !host.equals(hostEntry.getKey()))
+				continue;
+
+			for (Map.Entry<String, Timing[]> methodEntry : hostEntry.getValue().entrySet()) {
+				if (method == null || method.equals(methodEntry.getKey()))
+					methodEntry.getValue()[phase.ordinal()].addTo(counts, summary);
+			}
+		}
+		return new Timing(counts, summary);
+	}
+
+	/**
+	 * @param phase The phase.
+	 * @return The durations of the phase across every host and method.
+	 */
+	public Timing getTiming(Phase phase) {
+		return getTiming(null, null, phase);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (String host : getHosts()) {
+			for (String method : getMethods(host)) {
+				builder.append(method).append(' ').append(host).append('\n');
+				for (Phase phase : Phase.values())
+					builder.append("  ").append(phase).append(' ').append(getTiming(host, method, phase)).append('\n');
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Records phase durations into live histograms, per host and method, that snapshots are copied from.
+	 */
+	static class Recorder {
+		private volatile ConcurrentHashMap<String, ConcurrentHashMap<String, LatencyHistogram[]>> histograms =
+				new ConcurrentHashMap<String, ConcurrentHashMap<String, LatencyHistogram[]>>();
+		private volatile long since = System.currentTimeMillis();
+
+		/**
+		 * Allocates only the first time a host and method are seen.
+		 */
+		void record(String host, String method, Phase phase, long nanos) {
+			ConcurrentHashMap<String, ConcurrentHashMap<String, LatencyHistogram[]>> current = histograms;
+			ConcurrentHashMap<String, LatencyHistogram[]> methods = current.get(host);
+			if (methods == null) {
+				methods = new ConcurrentHashMap<String, LatencyHistogram[]>();
+				ConcurrentHashMap<String, LatencyHistogram[]> existing = current.putIfAbsent(host, methods);
+				if (existing != null)
+					methods = existing;
+			}
+
+			LatencyHistogram[] phases = methods.get(method);
+			if (phases == null) {
+				phases = new LatencyHistogram[Phase.values().length];
+				for (int i = 0; i < phases.length; i++)
+					phases[i] = new LatencyHistogram();
+				LatencyHistogram[] existing = methods.putIfAbsent(method, phases);
+				if (existing != null)
+					phases = existing;
+			}
+
+			phases[phase.ordinal()].record(nanos);
+		}
+
+		NetworkStats snapshot() {
+			Map<String, Map<String, Timing[]>> copy = new HashMap<String, Map<String, Timing[]>>();
+			for (Map.Entry<String, ConcurrentHashMap<String, LatencyHistogram[]>> hostEntry : histograms.entrySet()) {
+				Map<String, Timing[]> methods = new HashMap<String, Timing[]>();
+				for (Map.Entry<String, LatencyHistogram[]> methodEntry : hostEntry.getValue().entrySet()) {
+					LatencyHistogram[] phases = methodEntry.getValue();
+					Timing[] frozen = new Timing[phases.length];
+					for (int i = 0; i < phases.length; i++) {
+						long[] counts = new long[LatencyHistogram.BUCKETS];
+						long[] summary = new long[3];
+						phases[i].copyTo(counts, summary);
+						frozen[i] = new Timing(counts, summary);
+					}
+					methods.put(methodEntry.getKey(), frozen);
+				}
+				copy.put(hostEntry.getKey(), methods);
+			}
+			return new NetworkStats(copy, since);
+		}
+
+		void reset() {
+			histograms = new ConcurrentHashMap<String, ConcurrentHashMap<String, LatencyHistogram[]>>();
+			since = System.currentTimeMillis();
+		}
+	}
+}
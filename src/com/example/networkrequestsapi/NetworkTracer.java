@@ -0,0 +1,248 @@
+package com.example.networkrequestsapi;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import com.example.networkrequestsapi.NetworkService.NetworkEventListener;
+import com.example.networkrequestsapi.NetworkService.RequestInfo;
+
+/**
+ * Writes the events of a sample of requests to a file, one tab separated line per event:
+ *
+ * <pre>
+ * micros	id	event	detail
+ * </pre>
+ *
+ * where micros is a monotonic clock, and detail is "method url" for queued, the reuse flag for connected, the
+ * status code for headers, the delay for retry and the message for failed and cancelled. A request is either
+ * traced completely or not at all. The thread that reports an event only queues its line; one background thread
+ * writes the lines out whenever 64KB have built up, so call flush() before reading the file, and close() when done.
+ *
+ * <pre>
+ * NetworkTracer tracer = new NetworkTracer(new File(getCacheDir(), "network.trace"), 0.05);
+ * networkService.addNetworkEventListener(tracer);
+ * </pre>
+ *
+ * @author Saquib Hafiz
+ *
+ */
+public class NetworkTracer implements NetworkEventListener {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final OutputStream out;
+	private final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "NetworkTracer");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	});
+	private final long sampleThreshold;
+	private final long maxSize;
+	private List<String> pending = new ArrayList<String>();
+	private boolean drainScheduled = false;
+	// Set once the file is closed or full, so events stop being formatted.
+	private volatile boolean stopped = false;
+
+	// Only touched on the writer thread.
+	private long written = 0;
+
+	/**
+	 * @param file The file the trace is appended to.
+	 * @param sampleRate The share of requests to trace, from 0 to 1.
+	 * @throws IOException If the file can not be opened.
+	 */
+	public NetworkTracer(File file, double sampleRate) throws IOException {
+		this(file, sampleRate, 10 * 1024 * 1024);
+	}
+
+	/**
+	 * @param file The file the trace is appended to.
+	 * @param sampleRate The share of requests to trace, from 0 to 1.
+	 * @param maxSize The number of bytes after which tracing stops.
+	 * @throws IOException If the file can not be opened.
+	 */
+	public NetworkTracer(File file, double sampleRate, long maxSize) throws IOException {
+		this.out = new BufferedOutputStream(new FileOutputStream(file, true), BUFFER_SIZE);
+		this.sampleThreshold = (long) (Math.max(0, Math.min(1, sampleRate)) * (1L << 53));
+		this.maxSize = maxSize + file.length();
+		this.written = file.length();
+	}
+
+	/**
+	 * Spreads consecutive ids over the range so every request has the same chance, then keeps the low share.
+	 */
+	private boolean isSampled(RequestInfo request) {
+		return (request.getId() * 0x9E3779B97F4A7C15L) >>> 11 < sampleThreshold;
+	}
+
+	/**
+	 * Queues the line for the writer thread.
+	 */
+	private void write(RequestInfo request, String event, String detail) {
+		if (stopped)
+			return;
+
+		StringBuilder line = new StringBuilder(48 + event.length() + detail.length());
+		line.append(System.nanoTime() / 1000).append('\t').append(request.getId()).append('\t')
+				.append(event).append('\t').append(detail).append('\n');
+		synchronized (this) {
+			pending.add(line.toString());
+			if (drainScheduled)
+				return;
+			drainScheduled = true;
+		}
+		try {
+			writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					drain();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Closed in the meantime.
+		}
+	}
+
+	/**
+	 * Writes the queued lines into the buffer. Runs on the writer thread.
+	 */
+	private void drain() {
+		List<String> lines;
+		synchronized (this) {
+			drainScheduled = false;
+			lines = pending;
+			pending = new ArrayList<String>();
+		}
+		if (stopped)
+			return;
+
+		try {
+			for (String line : lines) {
+				byte[] bytes = line.getBytes("UTF-8");
+				out.write(bytes);
+				written += bytes.length;
+				if (written >= maxSize) {
+					stopped = true;
+					return;
+				}
+			}
+		} catch (IOException e) {
+			stopped = true;
+		}
+	}
+
+	@Override
+	public void onQueued(RequestInfo request) {
+		if (isSampled(request))
+			write(request, "queued", request.getMethod() + " " + request.getUrl());
+	}
+
+	@Override
+	public void onDispatched(RequestInfo request) {
+		if (isSampled(request))
+			write(request, "dispatched", String.valueOf(request.getAttempt() + 1));
+	}
+
+	@Override
+	public void onConnected(RequestInfo request, boolean reused) {
+		if (isSampled(request))
+			write(request, "connected", reused ? "reused" : "new");
+	}
+
+	@Override
+	public void onResponseHeaders(RequestInfo request, int statusCode) {
+		if (isSampled(request))
+			write(request, "headers", String.valueOf(statusCode));
+	}
+
+	@Override
+	public void onRetry(RequestInfo request, long delay) {
+		if (isSampled(request))
+			write(request, "retry", String.valueOf(delay));
+	}
+
+	@Override
+	public void onCompleted(RequestInfo request) {
+		if (isSampled(request))
+			write(request, "completed", "");
+	}
+
+	@Override
+	public void onFailed(RequestInfo request, Exception error) {
+		if (isSampled(request))
+			write(request, "failed", String.valueOf(error.getMessage()).replace('\n', ' '));
+	}
+
+	@Override
+	public void onCancelled(RequestInfo request, Exception reason) {
+		if (isSampled(request))
+			write(request, "cancelled", String.valueOf(reason.getMessage()).replace('\n', ' '));
+	}
+
+	/**
+	 * Writes out the queued and buffered lines, and waits until they are in the file.
+	 */
+	public void flush() throws IOException {
+		runOnWriter(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				drain();
+				out.flush();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Writes out the queued and buffered lines and closes the file. Later events are dropped.
+	 */
+	public void close() throws IOException {
+		runOnWriter(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				drain();
+				stopped = true;
+				out.close();
+				return null;
+			}
+		});
+		writer.shutdown();
+	}
+
+	private void runOnWriter(Callable<Void> task) throws IOException {
+		Future<Void> done;
+		try {
+			done = writer.submit(task);
+		} catch (RejectedExecutionException e) {
+			// Already closed.
+			return;
+		}
+
+		try {
+			done.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing the trace.");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+}
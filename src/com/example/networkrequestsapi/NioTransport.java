@@ -0,0 +1,1344 @@
+package com.example.networkrequestsapi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Runs HTTP requests on non-blocking SocketChannels driven by a few selector threads, so a request that is
+ * waiting on the server holds no thread at all. Request bodies are written as the socket takes them, response
+ * headers are parsed as they arrive, and bodies framed by Content-Length, chunked encoding or the end of the
+ * connection are collected into memory. Connections are kept alive and reused per scheme, host and port.
+ *
+ * With HTTP/2 enabled, each origin gets one connection that carries every request to it as a concurrent
+ * stream. It is negotiated with ALPN over TLS, and spoken with prior knowledge (h2c) over plain http. An
+ * origin that turns out not to speak it is remembered and gets HTTP/1.1 connections instead.
+ *
+ * Host names are resolved on the calling thread through the service's DnsCache, and callbacks run on a selector thread, so they must hand
+ * off any real work.
+ *
+ * @author Saquib Hafiz
+ *
+ */
+class NioTransport {
+
+	interface Callback {
+		void onConnected(boolean reused);
+		void onResponse(HttpResponse response, long headersAt);
+		void onError(IOException error);
+	}
+
+	interface Exchange {
+		void abort();
+	}
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+	private static final long SELECT_TIMEOUT = 250;
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	private static final String[] ALPN_PROTOCOLS = { "h2", "http/1.1" };
+	private static final Set<String> CONNECTION_HEADERS = new HashSet<String>(Arrays.asList(
+			"connection", "host", "keep-alive", "proxy-connection", "te", "transfer-encoding", "upgrade"));
+
+	// ALPN is only in the platform from Android 10, so it is looked up rather than linked against.
+	private static final Method SET_APPLICATION_PROTOCOLS = findMethod(SSLParameters.class, "setApplicationProtocols", String[].class);
+	private static final Method GET_APPLICATION_PROTOCOL = findMethod(SSLEngine.class, "getApplicationProtocol");
+
+	private static final int HTTP_1 = 0;
+	private static final int NEGOTIATING = 1;
+	private static final int HTTP_2 = 2;
+
+	private final Loop[] loops;
+	private final DnsCache dnsCache;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	private final ConcurrentHashMap<String, ConcurrentLinkedQueue<Connection>> idleConnections =
+			new ConcurrentHashMap<String, ConcurrentLinkedQueue<Connection>>();
+	private final ConcurrentHashMap<String, Connection> sessions = new ConcurrentHashMap<String, Connection>();
+	private final Set<String> http1Routes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final AtomicInteger openConnections = new AtomicInteger();
+	private volatile long idleConnectionTime;
+	private volatile boolean http2Enabled = false;
+	private volatile boolean shutdown = false;
+
+	NioTransport(int threads, long idleConnectionTime, DnsCache dnsCache) throws IOException {
+		this.idleConnectionTime = idleConnectionTime;
+		this.dnsCache = dnsCache;
+		loops = new Loop[Math.max(1, threads)];
+		for (int i = 0; i < loops.length; i++)
+			loops[i] = new Loop(i + 1);
+	}
+
+	private static Method findMethod(Class<?> type, String name, Class<?>... parameters) {
+		try {
+			return type.getMethod(name, parameters);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Starts the request and returns at once.
+	 *
+	 * @param body The request body, or null.
+	 */
+	Exchange execute(HttpUriRequest request, byte[] body, int connectTimeout, int readTimeout, Callback callback) throws IOException {
+		URI uri = request.getURI();
+		String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase();
+		if (!scheme.equals("https") && !scheme.equals("http"))
+			throw new IOException("Unsupported scheme : " + scheme);
+		if (uri.getHost() == null)
+			throw new UnknownHostException("No host in " + uri);
+
+		Call call = new Call(request, scheme, body, connectTimeout, readTimeout, callback);
+		dispatch(call);
+		return call;
+	}
+
+	/**
+	 * Hands the call to the origin's HTTP/2 connection, an idle HTTP/1.1 connection or a new connection.
+	 */
+	private void dispatch(Call call) throws IOException {
+		if (shutdown)
+			throw new IOException("Transport was shut down.");
+
+		Connection connection = null;
+		if (http2Enabled && !http1Routes.contains(call.route)) {
+			while (connection == null) {
+				Connection existing = sessions.get(call.route);
+				if (existing != null && existing.acceptsStreams()) {
+					connection = existing;
+				} else {
+					Connection created = newConnection(call, NEGOTIATING);
+					boolean added = existing == null
+							? sessions.putIfAbsent(call.route, created) == null : sessions.replace(call.route, existing, created);
+					if (added)
+						connection = created;
+				}
+			}
+		} else {
+			connection = takeIdle(call.route);
+			if (connection == null)
+				connection = newConnection(call, HTTP_1);
+		}
+
+		call.loop = connection.loop;
+		connection.loop.start(connection, call);
+	}
+
+	private Connection newConnection(Call call, int mode) throws IOException {
+		if (call.address == null) {
+			call.address = new InetSocketAddress(dnsCache.resolve(call.host), call.port);
+		}
+		Loop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+		return new Connection(loop, call.route, call.address, call.secure ? call.host : null, mode);
+	}
+
+	private Connection takeIdle(String route) {
+		ConcurrentLinkedQueue<Connection> idle = idleConnections.get(route);
+		if (idle == null)
+			return null;
+
+		Connection connection;
+		while ((connection = idle.poll()) != null) {
+			if (!connection.closed)
+				return connection;
+		}
+		return null;
+	}
+
+	private void releaseIdle(Connection connection) {
+		ConcurrentLinkedQueue<Connection> idle = idleConnections.get(connection.route);
+		if (idle == null) {
+			idle = new ConcurrentLinkedQueue<Connection>();
+			ConcurrentLinkedQueue<Connection> existing = idleConnections.putIfAbsent(connection.route, idle);
+			if (existing != null)
+				idle = existing;
+		}
+		idle.add(connection);
+	}
+
+	void setIdleConnectionTime(long idleConnectionTime) {
+		this.idleConnectionTime = idleConnectionTime;
+	}
+
+	/**
+	 * @param http2Enabled True to use HTTP/2 with origins that speak it.
+	 */
+	void setHttp2Enabled(boolean http2Enabled) {
+		this.http2Enabled = http2Enabled;
+	}
+
+	int getOpenConnectionCount() {
+		return openConnections.get();
+	}
+
+	/**
+	 * Fails every request in flight and closes every connection.
+	 */
+	void shutdown() {
+		shutdown = true;
+		for (Loop loop : loops)
+			loop.selector.wakeup();
+	}
+
+	/**
+	 * One selector thread and the connections registered with it. Connections and calls are only touched on it.
+	 */
+	private class Loop implements Runnable {
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private final Set<Connection> connections = new HashSet<Connection>();
+		private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		private Loop(int number) throws IOException {
+			selector = Selector.open();
+			Thread thread = new Thread(this, "NetworkService NIO #" + number);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		private void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		private void start(final Connection connection, final Call call) {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						connection.start(call);
+					} catch (RuntimeException e) {
+						connection.crashed(e);
+					}
+				}
+			});
+		}
+
+		/**
+		 * Runs a task, so one that throws does not stop the loop for every other connection.
+		 */
+		private void runTask(Runnable task) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				Log.w("NetworkService", "A transport task failed.", e);
+			}
+		}
+
+		@Override
+		public void run() {
+			while (!shutdown) {
+				Runnable task;
+				while ((task = tasks.poll()) != null)
+					runTask(task);
+
+				try {
+					selector.select(SELECT_TIMEOUT);
+				} catch (IOException e) {
+					continue;
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					((Connection) key.attachment()).onReady(key);
+				}
+
+				long now = SystemClock.elapsedRealtime();
+				for (Connection connection : connections.toArray(new Connection[connections.size()])) {
+					try {
+						connection.checkTimeouts(now);
+					} catch (RuntimeException e) {
+						connection.crashed(e);
+					}
+				}
+			}
+
+			for (Connection connection : connections.toArray(new Connection[connections.size()])) {
+				try {
+					connection.fail(new IOException("Transport was shut down."), false);
+				} catch (RuntimeException e) {
+					connection.crashed(e);
+				}
+			}
+			Runnable task;
+			while ((task = tasks.poll()) != null)
+				runTask(task);
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * A request on its way and the parser of its HTTP/1.1 response.
+	 */
+	private class Call implements Exchange {
+		private final HttpUriRequest request;
+		private final URI uri;
+		private final String scheme;
+		private final boolean secure;
+		private final String host;
+		private final int port;
+		private final String route;
+		private final byte[] body;
+		private final boolean idempotent;
+		private final int connectTimeout;
+		private final int readTimeout;
+		private final Callback callback;
+		private final ResponseParser parser;
+		private volatile InetSocketAddress address;
+		private volatile Loop loop;
+		private ByteBuffer out;
+		private Connection connection;
+		private long lastActivity;
+		private long received = 0;
+		private boolean reused;
+		private boolean retried = false;
+		private boolean done = false;
+
+		private Call(HttpUriRequest request, String scheme, byte[] body, int connectTimeout, int readTimeout, Callback callback) {
+			this.request = request;
+			this.uri = request.getURI();
+			this.scheme = scheme;
+			this.secure = scheme.equals("https");
+			this.host = uri.getHost();
+			this.port = uri.getPort() != -1 ? uri.getPort() : (secure ? 443 : 80);
+			this.route = scheme + "://" + host.toLowerCase() + ":" + port;
+			this.body = body;
+			this.idempotent = !request.getMethod().equals("POST");
+			this.connectTimeout = connectTimeout;
+			this.readTimeout = readTimeout;
+			this.callback = callback;
+			this.parser = new ResponseParser(request.getMethod().equals("HEAD"));
+		}
+
+		@Override
+		public void abort() {
+			final Loop target = loop;
+			target.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (loop != target) {
+						// It was sent again on a connection of another loop.
+						abort();
+						return;
+					}
+					if (done)
+						return;
+					if (connection == null || !connection.abort(Call.this))
+						fail(new IOException("Request aborted."));
+				}
+			});
+		}
+
+		private String getAuthority() {
+			Header host = request.getFirstHeader("Host");
+			if (host != null)
+				return host.getValue();
+			return port == (secure ? 443 : 80) ? this.host : this.host + ":" + port;
+		}
+
+		private String getPath() {
+			String path = uri.getRawPath() == null || uri.getRawPath().length() == 0 ? "/" : uri.getRawPath();
+			return uri.getRawQuery() == null ? path : path + "?" + uri.getRawQuery();
+		}
+
+		/**
+		 * @return The request as HTTP/1.1 bytes.
+		 */
+		private ByteBuffer encode() {
+			StringBuilder head = new StringBuilder(256);
+			head.append(request.getMethod()).append(' ').append(getPath()).append(" HTTP/1.1\r\n");
+			if (!request.containsHeader("Host"))
+				head.append("Host: ").append(getAuthority()).append("\r\n");
+			for (Header header : request.getAllHeaders())
+				head.append(header.getName()).append(": ").append(header.getValue()).append("\r\n");
+			if (body != null)
+				head.append("Content-Length: ").append(body.length).append("\r\n");
+			else if (request.getMethod().equals("POST") || request.getMethod().equals("PUT"))
+				head.append("Content-Length: 0\r\n");
+			head.append("\r\n");
+
+			byte[] headBytes = Hpack.latin1(head.toString());
+			ByteBuffer encoded = ByteBuffer.allocate(headBytes.length + (body == null ? 0 : body.length));
+			encoded.put(headBytes);
+			if (body != null)
+				encoded.put(body);
+			encoded.flip();
+			return encoded;
+		}
+
+		/**
+		 * @return The headers for HTTP/2, lower cased and without those it leaves to the connection.
+		 */
+		private List<String[]> getHttp2Headers() {
+			Header[] all = request.getAllHeaders();
+			List<String[]> headers = new ArrayList<String[]>(all.length);
+			for (Header header : all) {
+				String name = header.getName().toLowerCase();
+				if (!CONNECTION_HEADERS.contains(name) && !name.equals("content-length"))
+					headers.add(new String[] { name, header.getValue() });
+			}
+			return headers;
+		}
+
+		/**
+		 * Forgets the last attempt so the call can be sent again.
+		 */
+		private void reset() {
+			connection = null;
+			out = null;
+			received = 0;
+			parser.reset();
+		}
+
+		private void succeed(HttpResponse response, long headersAt) {
+			if (done)
+				return;
+			done = true;
+			callback.onResponse(response, headersAt);
+		}
+
+		private void fail(IOException error) {
+			if (done)
+				return;
+			done = true;
+			callback.onError(error);
+		}
+	}
+
+	/**
+	 * A connection speaking HTTP/1.1, or HTTP/2 once negotiated. Calls that arrive while it is negotiating,
+	 * or while the server's limit of concurrent streams is reached, wait in pending.
+	 */
+	private class Connection implements Http2Session.Listener<Call> {
+		private final Loop loop;
+		private final String route;
+		private final InetSocketAddress address;
+		private final String sslHost;
+		private int mode;
+		private SocketChannel channel;
+		private SelectionKey key;
+		private SSLEngine engine;
+		private ByteBuffer netIn;
+		private ByteBuffer netOut;
+		private ByteBuffer appIn;
+		private boolean handshaking = false;
+		private long connectDeadline = 0;
+		private Call call;
+		private Http2Session<Call> session;
+		private final List<Call> pending = new ArrayList<Call>();
+		private int exchanges = 0;
+		private long idleSince;
+		private volatile boolean goingAway = false;
+		private volatile boolean closed = false;
+
+		private Connection(Loop loop, String route, InetSocketAddress address, String sslHost, int mode) {
+			this.loop = loop;
+			this.route = route;
+			this.address = address;
+			this.sslHost = sslHost;
+			this.mode = mode;
+		}
+
+		/**
+		 * @return True if new calls can be sent on this connection as HTTP/2 streams.
+		 */
+		private boolean acceptsStreams() {
+			return !closed && !goingAway && mode != HTTP_1;
+		}
+
+		private void start(Call next) {
+			if (next.done) {
+				if (mode == HTTP_1 && channel != null && !closed && call == null)
+					releaseIdle(this);
+				return;
+			}
+			if (closed || (mode == HTTP_1 && call != null)) {
+				// The server closed it while it sat in the pool, or it stopped being HTTP/2 meanwhile.
+				restart(next);
+				return;
+			}
+
+			next.connection = this;
+			next.lastActivity = SystemClock.elapsedRealtime();
+			try {
+				if (mode != HTTP_1) {
+					pending.add(next);
+					if (channel == null)
+						open(next);
+					else if (session != null)
+						openStreams();
+					return;
+				}
+
+				call = next;
+				next.reused = channel != null;
+				if (channel == null) {
+					open(next);
+				} else {
+					next.callback.onConnected(true);
+					write();
+				}
+			} catch (IOException e) {
+				fail(e, false);
+			}
+		}
+
+		/**
+		 * Sends the call again from the start, on whichever connection dispatch() picks.
+		 */
+		private void restart(Call again) {
+			again.reset();
+			again.address = address;
+			try {
+				dispatch(again);
+			} catch (IOException e) {
+				again.fail(e);
+			}
+		}
+
+		private boolean abort(Call aborted) {
+			IOException error = new IOException("Request aborted.");
+			if (mode == HTTP_1) {
+				if (call != aborted)
+					return false;
+				fail(error, false);
+				return true;
+			}
+
+			if (pending.remove(aborted)) {
+				aborted.fail(error);
+				return true;
+			}
+			if (session == null || !session.hasStream(aborted))
+				return false;
+			session.resetStream(aborted);
+			aborted.fail(error);
+			streamEnded();
+			try {
+				write();
+			} catch (IOException e) {
+				fail(e, true);
+			}
+			return true;
+		}
+
+		private void open(Call first) throws IOException {
+			channel = SocketChannel.open();
+			loop.connections.add(this);
+			openConnections.incrementAndGet();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			// A timeout of 0 waits for as long as the connect takes, like a blocking socket.
+			connectDeadline = first.connectTimeout > 0 ? SystemClock.elapsedRealtime() + first.connectTimeout : Long.MAX_VALUE;
+			if (channel.connect(address)) {
+				key = channel.register(loop.selector, 0, this);
+				connected();
+			} else {
+				key = channel.register(loop.selector, SelectionKey.OP_CONNECT, this);
+			}
+		}
+
+		private void connected() throws IOException {
+			if (sslHost == null) {
+				ready();
+				return;
+			}
+
+			try {
+				engine = SSLContext.getDefault().createSSLEngine(sslHost, address.getPort());
+			} catch (NoSuchAlgorithmException e) {
+				throw new SSLException(e.getMessage());
+			}
+			engine.setUseClientMode(true);
+			if (mode == NEGOTIATING && SET_APPLICATION_PROTOCOLS != null) {
+				SSLParameters parameters = engine.getSSLParameters();
+				try {
+					SET_APPLICATION_PROTOCOLS.invoke(parameters, (Object) ALPN_PROTOCOLS);
+					engine.setSSLParameters(parameters);
+				} catch (Exception e) {
+					// Without ALPN the server speaks HTTP/1.1.
+				}
+			}
+			SSLSession session = engine.getSession();
+			netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+			netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+			netOut.flip();
+			appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+			engine.beginHandshake();
+			handshaking = true;
+			handshake();
+		}
+
+		private void ready() throws IOException {
+			if (mode == NEGOTIATING) {
+				if (sslHost == null || "h2".equals(getApplicationProtocol()))
+					startHttp2();
+				else
+					fallBackToHttp1();
+				return;
+			}
+
+			connectDeadline = 0;
+			call.lastActivity = SystemClock.elapsedRealtime();
+			call.callback.onConnected(false);
+			write();
+		}
+
+		private String getApplicationProtocol() {
+			if (GET_APPLICATION_PROTOCOL == null)
+				return null;
+			try {
+				return (String) GET_APPLICATION_PROTOCOL.invoke(engine);
+			} catch (Exception e) {
+				return null;
+			}
+		}
+
+		private void startHttp2() throws IOException {
+			mode = HTTP_2;
+			session = new Http2Session<Call>(this);
+			session.start();
+			// Over TLS, ALPN already settled it. Over plain http it is settled by the server's first frame.
+			if (sslHost != null)
+				connectDeadline = 0;
+			openStreams();
+		}
+
+		/**
+		 * The server picked HTTP/1.1 in ALPN. This connection carries the first waiting call that way, and the
+		 * rest are sent on connections of their own.
+		 */
+		private void fallBackToHttp1() throws IOException {
+			mode = HTTP_1;
+			goingAway = true;
+			sessions.remove(route, this);
+			http1Routes.add(route);
+			connectDeadline = 0;
+
+			List<Call> waiting = new ArrayList<Call>(pending);
+			pending.clear();
+			if (waiting.isEmpty()) {
+				idleSince = SystemClock.elapsedRealtime();
+				interest(SelectionKey.OP_READ);
+				releaseIdle(this);
+				return;
+			}
+
+			call = waiting.remove(0);
+			call.reused = false;
+			for (Call other : waiting)
+				restart(other);
+			ready();
+		}
+
+		private void openStreams() throws IOException {
+			long now = SystemClock.elapsedRealtime();
+			while (!pending.isEmpty() && session.canOpenStream()) {
+				Call next = pending.remove(0);
+				next.reused = exchanges++ > 0;
+				next.lastActivity = now;
+				next.callback.onConnected(next.reused);
+				session.openStream(next, next.request.getMethod(), next.scheme, next.getAuthority(), next.getPath(),
+						next.getHttp2Headers(), next.body);
+			}
+			write();
+		}
+
+		private void onReady(SelectionKey readyKey) {
+			try {
+				if (!readyKey.isValid())
+					return;
+
+				if (readyKey.isConnectable()) {
+					if (channel.finishConnect()) {
+						interest(0);
+						connected();
+					}
+					return;
+				}
+
+				if (readyKey.isWritable()) {
+					if (handshaking)
+						handshake();
+					else
+						write();
+				}
+				if (readyKey.isValid() && readyKey.isReadable())
+					read();
+			} catch (IOException e) {
+				fail(e, true);
+			} catch (RuntimeException e) {
+				crashed(e);
+			}
+		}
+
+		/**
+		 * Fails the calls of a connection that ran into a bug or a response it could not handle, and closes it.
+		 */
+		private void crashed(RuntimeException e) {
+			Log.w("NetworkService", "Connection to " + route + " failed.", e);
+			try {
+				fail(new IOException("Connection failed : " + e, e), false);
+			} catch (RuntimeException again) {
+				close();
+			}
+		}
+
+		/**
+		 * @return The next bytes to send, or null if everything was sent.
+		 */
+		private ByteBuffer nextOutput() {
+			if (session != null)
+				return session.nextOutput();
+			if (call == null)
+				return null;
+			if (call.out == null)
+				call.out = call.encode();
+			return call.out.hasRemaining() ? call.out : null;
+		}
+
+		/**
+		 * Writes as much as the socket takes, then waits for more to write or to read.
+		 */
+		private void write() throws IOException {
+			if (closed || handshaking || connectDeadline > 0 && session == null)
+				return;
+
+			ByteBuffer out;
+			while ((out = nextOutput()) != null) {
+				if (!send(out)) {
+					interest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+			interest(SelectionKey.OP_READ);
+		}
+
+		/**
+		 * @return True if all of out was written.
+		 */
+		private boolean send(ByteBuffer out) throws IOException {
+			if (engine == null) {
+				if (channel.write(out) > 0)
+					wrote();
+				return !out.hasRemaining();
+			}
+
+			while (out.hasRemaining() || netOut.hasRemaining()) {
+				if (netOut.hasRemaining()) {
+					if (channel.write(netOut) == 0)
+						return false;
+					wrote();
+					continue;
+				}
+				netOut.compact();
+				SSLEngineResult result = engine.wrap(out, netOut);
+				netOut.flip();
+				if (result.getStatus() != SSLEngineResult.Status.OK)
+					throw new SSLException("Could not encrypt request : " + result.getStatus());
+			}
+			return true;
+		}
+
+		/**
+		 * Counts bytes going out as activity, so a large body sent slowly does not time out while it is still moving.
+		 */
+		private void wrote() {
+			long now = SystemClock.elapsedRealtime();
+			if (session != null) {
+				for (Call owner : session.getOwners())
+					owner.lastActivity = now;
+			} else if (call != null) {
+				call.lastActivity = now;
+			}
+		}
+
+		private void read() throws IOException {
+			if (engine == null) {
+				ByteBuffer buffer = loop.readBuffer;
+				buffer.clear();
+				int read = channel.read(buffer);
+				if (read == -1) {
+					onEndOfStream();
+				} else if (read > 0) {
+					buffer.flip();
+					deliver(buffer);
+				}
+				return;
+			}
+
+			int read = channel.read(netIn);
+			if (handshaking) {
+				if (read == -1)
+					throw new EOFException("Connection closed during the TLS handshake.");
+				handshake();
+				return;
+			}
+
+			netIn.flip();
+			while (netIn.hasRemaining() && !closed) {
+				SSLEngineResult result = engine.unwrap(netIn, appIn);
+				if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW)
+					break;
+				if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+					throw new SSLException("Could not decrypt response : buffer overflow");
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+					netIn.clear();
+					onEndOfStream();
+					return;
+				}
+				appIn.flip();
+				if (appIn.hasRemaining())
+					deliver(appIn);
+				appIn.clear();
+			}
+			if (!closed)
+				netIn.compact();
+			if (read == -1)
+				onEndOfStream();
+		}
+
+		private void handshake() throws IOException {
+			while (true) {
+				switch (engine.getHandshakeStatus()) {
+				case NEED_TASK:
+					Runnable task;
+					while ((task = engine.getDelegatedTask()) != null)
+						task.run();
+					break;
+				case NEED_WRAP:
+					netOut.compact();
+					SSLEngineResult wrapped = engine.wrap(EMPTY, netOut);
+					netOut.flip();
+					if (wrapped.getStatus() != SSLEngineResult.Status.OK)
+						throw new SSLException("TLS handshake failed : " + wrapped.getStatus());
+					if (!flush())
+						return;
+					break;
+				case NEED_UNWRAP:
+					netIn.flip();
+					SSLEngineResult unwrapped = engine.unwrap(netIn, appIn);
+					netIn.compact();
+					if (unwrapped.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+						int read = channel.read(netIn);
+						if (read == -1)
+							throw new EOFException("Connection closed during the TLS handshake.");
+						if (read == 0) {
+							interest(SelectionKey.OP_READ);
+							return;
+						}
+					} else if (unwrapped.getStatus() != SSLEngineResult.Status.OK) {
+						throw new SSLException("TLS handshake failed : " + unwrapped.getStatus());
+					}
+					break;
+				default:
+					if (!flush())
+						return;
+					handshaking = false;
+					verifyHost();
+					ready();
+					return;
+				}
+			}
+		}
+
+		private boolean flush() throws IOException {
+			while (netOut.hasRemaining()) {
+				if (channel.write(netOut) == 0) {
+					interest(SelectionKey.OP_WRITE);
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * The same check the blocking transport's SSLSocketFactory makes.
+		 */
+		private void verifyHost() throws IOException {
+			X509Certificate certificate = (X509Certificate) engine.getSession().getPeerCertificates()[0];
+			SSLSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER.verify(sslHost, certificate);
+		}
+
+		private void deliver(ByteBuffer data) throws IOException {
+			if (session != null) {
+				session.onBytes(data);
+				if (closed)
+					return;
+				if (connectDeadline > 0 && session.isConfirmed())
+					connectDeadline = 0;
+				if (session.isGoingAway())
+					drain();
+				else
+					openStreams();
+				return;
+			}
+
+			if (call == null) {
+				// Nothing may arrive on an idle connection.
+				close();
+				return;
+			}
+
+			call.lastActivity = SystemClock.elapsedRealtime();
+			call.received += data.remaining();
+			if (call.parser.feed(data))
+				complete();
+		}
+
+		/**
+		 * The server sent GOAWAY: waiting calls go to a new connection, and this one closes once its streams end.
+		 */
+		private void drain() throws IOException {
+			goingAway = true;
+			sessions.remove(route, this);
+			List<Call> waiting = new ArrayList<Call>(pending);
+			pending.clear();
+			for (Call next : waiting)
+				restart(next);
+			if (session.getStreamCount() == 0) {
+				write();
+				close();
+			} else {
+				write();
+			}
+		}
+
+		private void onEndOfStream() {
+			if (session != null)
+				fail(new EOFException("Connection closed by the server."), true);
+			else if (call != null && call.parser.onEndOfStream())
+				complete();
+			else if (call != null)
+				fail(new EOFException("Connection closed by the server."), true);
+			else
+				close();
+		}
+
+		private void complete() {
+			Call finished = call;
+			call = null;
+			if (finished.parser.keepAlive && !closed) {
+				idleSince = SystemClock.elapsedRealtime();
+				try {
+					interest(SelectionKey.OP_READ);
+					releaseIdle(this);
+				} catch (IOException e) {
+					close();
+				}
+			} else {
+				close();
+			}
+			finished.succeed(finished.parser.build(), finished.parser.headersAt);
+		}
+
+		@Override
+		public void onResponse(Call owner, HttpResponse response, long headersAt) {
+			streamEnded();
+			owner.succeed(response, headersAt);
+		}
+
+		@Override
+		public void onStreamActivity(Call owner) {
+			owner.lastActivity = SystemClock.elapsedRealtime();
+			owner.received++;
+		}
+
+		@Override
+		public void onStreamFailed(Call owner, IOException error, boolean refused) {
+			streamEnded();
+			if (refused)
+				restart(owner);
+			else
+				owner.fail(error);
+		}
+
+		private void streamEnded() {
+			if (session.getStreamCount() == 0)
+				idleSince = SystemClock.elapsedRealtime();
+		}
+
+		/**
+		 * @param mayRetry True if a call that failed before any of its response arrived was most likely caught
+		 * by the server closing an idle connection, so it can be sent again on a new one.
+		 */
+		private void fail(IOException error, boolean mayRetry) {
+			List<Call> failed = new ArrayList<Call>(pending);
+			pending.clear();
+			if (call != null)
+				failed.add(call);
+			call = null;
+			if (session != null)
+				failed.addAll(session.getOwners());
+			boolean notHttp2 = session != null && !session.isConfirmed() && sslHost == null;
+			close();
+
+			if (notHttp2 && mayRetry) {
+				// The server did not answer the preface with HTTP/2 settings, so it only speaks HTTP/1.1.
+				http1Routes.add(route);
+				for (Call next : failed)
+					restart(next);
+				return;
+			}
+
+			for (Call next : failed) {
+				if (next.done)
+					continue;
+				boolean unanswered = next.received == 0 && (next.reused || session != null);
+				boolean resendable = next.idempotent || next.out == null || next.out.position() == 0;
+				if (mayRetry && unanswered && resendable && !next.retried) {
+					next.retried = true;
+					restart(next);
+				} else {
+					next.fail(error);
+				}
+			}
+		}
+
+		private void checkTimeouts(long now) {
+			if (closed)
+				return;
+
+			if (connectDeadline > 0) {
+				if (now > connectDeadline)
+					fail(new SocketTimeoutException("Connect timed out"), session != null);
+				return;
+			}
+
+			if (session != null) {
+				if (session.getStreamCount() == 0 && pending.isEmpty()) {
+					if (now - idleSince > idleConnectionTime) {
+						session.goAway();
+						try {
+							write();
+						} catch (IOException e) {
+						}
+						close();
+					}
+					return;
+				}
+				boolean reset = false;
+				for (Call owner : session.getOwners()) {
+					if (owner.readTimeout > 0 && now - owner.lastActivity > owner.readTimeout) {
+						session.resetStream(owner);
+						owner.fail(new SocketTimeoutException("Read timed out"));
+						reset = true;
+					}
+				}
+				if (reset) {
+					streamEnded();
+					try {
+						openStreams();
+					} catch (IOException e) {
+						fail(e, true);
+					}
+				}
+				return;
+			}
+
+			if (call == null) {
+				if (now - idleSince > idleConnectionTime)
+					close();
+			} else if (call.readTimeout > 0 && now - call.lastActivity > call.readTimeout) {
+				fail(new SocketTimeoutException("Read timed out"), false);
+			}
+		}
+
+		private void interest(int ops) throws IOException {
+			if (key == null || !key.isValid())
+				throw new IOException("Connection is closed.");
+			key.interestOps(ops);
+		}
+
+		private void close() {
+			if (closed)
+				return;
+			closed = true;
+
+			sessions.remove(route, this);
+			ConcurrentLinkedQueue<Connection> idle = idleConnections.get(route);
+			if (idle != null)
+				idle.remove(this);
+			if (channel != null) {
+				loop.connections.remove(this);
+				openConnections.decrementAndGet();
+				if (key != null)
+					key.cancel();
+				try {
+					channel.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parses a response as its bytes arrive.
+	 */
+	private static class ResponseParser {
+		private static final int HEAD = 0;
+		private static final int FIXED_LENGTH = 1;
+		private static final int CHUNK_SIZE = 2;
+		private static final int CHUNK_DATA = 3;
+		private static final int CHUNK_END = 4;
+		private static final int TRAILERS = 5;
+		private static final int UNTIL_CLOSE = 6;
+		private static final int DONE = 7;
+
+		private final boolean headRequest;
+		private int state;
+		private byte[] head;
+		private int headLength;
+		private StringBuilder line;
+		private long remaining;
+		private ByteArrayOutputStream body;
+		private byte[] copyBuffer;
+		private BasicHttpResponse response;
+		private boolean keepAlive;
+		private long headersAt;
+
+		private ResponseParser(boolean headRequest) {
+			this.headRequest = headRequest;
+			reset();
+		}
+
+		private void reset() {
+			state = HEAD;
+			head = new byte[512];
+			headLength = 0;
+			line = new StringBuilder();
+			body = null;
+			response = null;
+			keepAlive = false;
+		}
+
+		/**
+		 * @return True once the whole response has been read.
+		 */
+		private boolean feed(ByteBuffer data) throws IOException {
+			while (data.hasRemaining() && state != DONE) {
+				switch (state) {
+				case HEAD:
+					readHead(data);
+					break;
+				case FIXED_LENGTH:
+					remaining -= copy(data, remaining);
+					if (remaining == 0)
+						state = DONE;
+					break;
+				case CHUNK_SIZE:
+					if (readLine(data)) {
+						String size = line.toString();
+						int extension = size.indexOf(';');
+						if (extension >= 0)
+							size = size.substring(0, extension);
+						line.setLength(0);
+						try {
+							remaining = Long.parseLong(size.trim(), 16);
+						} catch (NumberFormatException e) {
+							throw new IOException("Malformed chunk size : " + size);
+						}
+						state = remaining == 0 ? TRAILERS : CHUNK_DATA;
+					}
+					break;
+				case CHUNK_DATA:
+					remaining -= copy(data, remaining);
+					if (remaining == 0)
+						state = CHUNK_END;
+					break;
+				case CHUNK_END:
+					if (readLine(data)) {
+						line.setLength(0);
+						state = CHUNK_SIZE;
+					}
+					break;
+				case TRAILERS:
+					if (readLine(data)) {
+						if (line.length() == 0)
+							state = DONE;
+						line.setLength(0);
+					}
+					break;
+				case UNTIL_CLOSE:
+					copy(data, Long.MAX_VALUE);
+					break;
+				}
+			}
+			return state == DONE;
+		}
+
+		/**
+		 * @return True if the end of the stream ends the response.
+		 */
+		private boolean onEndOfStream() {
+			if (state != UNTIL_CLOSE)
+				return false;
+			state = DONE;
+			return true;
+		}
+
+		private void readHead(ByteBuffer data) throws IOException {
+			while (data.hasRemaining()) {
+				if (headLength == head.length) {
+					if (head.length >= 64 * 1024)
+						throw new IOException("Response headers are too large.");
+					byte[] larger = new byte[head.length * 2];
+					System.arraycopy(head, 0, larger, 0, headLength);
+					head = larger;
+				}
+				byte b = data.get();
+				head[headLength++] = b;
+				if (b == '\n' && (endsWith("\r\n\r\n") || endsWith("\n\n"))) {
+					parseHead();
+					return;
+				}
+			}
+		}
+
+		private boolean endsWith(String suffix) {
+			if (headLength < suffix.length())
+				return false;
+			for (int i = 0; i < suffix.length(); i++)
+				if (head[headLength - suffix.length() + i] != suffix.charAt(i))
+					return false;
+			return true;
+		}
+
+		private void parseHead() throws IOException {
+			String[] lines = new String(head, 0, headLength, "ISO-8859-1").split("\r?\n");
+			String[] status = lines[0].split(" ", 3);
+			if (status.length < 2 || !status[0].startsWith("HTTP/"))
+				throw new IOException("Malformed status line : " + lines[0]);
+
+			int code;
+			int major;
+			int minor;
+			try {
+				code = Integer.parseInt(status[1]);
+				String version = status[0].substring(5);
+				int dot = version.indexOf('.');
+				major = Integer.parseInt(dot < 0 ? version : version.substring(0, dot));
+				minor = dot < 0 ? 0 : Integer.parseInt(version.substring(dot + 1));
+			} catch (NumberFormatException e) {
+				throw new IOException("Malformed status line : " + lines[0]);
+			}
+
+			headLength = 0;
+			if (code >= 100 && code < 200) {
+				// An interim response such as 100 Continue, the real one follows.
+				return;
+			}
+
+			ProtocolVersion version = new ProtocolVersion("HTTP", major, minor);
+			response = new BasicHttpResponse(new BasicStatusLine(version, code, status.length > 2 ? status[2] : ""));
+			for (int i = 1; i < lines.length; i++) {
+				int colon = lines[i].indexOf(':');
+				if (colon > 0)
+					response.addHeader(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+			}
+			headersAt = System.nanoTime();
+
+			Header connection = response.getFirstHeader("Connection");
+			String connectionValue = connection == null ? "" : connection.getValue().toLowerCase();
+			keepAlive = version.greaterEquals(new ProtocolVersion("HTTP", 1, 1))
+					? !connectionValue.contains("close") : connectionValue.contains("keep-alive");
+
+			Header transferEncoding = response.getFirstHeader("Transfer-Encoding");
+			Header contentLength = response.getFirstHeader("Content-Length");
+			if (headRequest || code == 204 || code == 304) {
+				state = DONE;
+			} else if (transferEncoding != null && transferEncoding.getValue().toLowerCase().contains("chunked")) {
+				body = new ByteArrayOutputStream(4096);
+				state = CHUNK_SIZE;
+			} else if (contentLength != null) {
+				try {
+					remaining = Long.parseLong(contentLength.getValue().trim());
+				} catch (NumberFormatException e) {
+					throw new IOException("Malformed Content-Length : " + contentLength.getValue());
+				}
+				body = new ByteArrayOutputStream((int) Math.min(remaining, 1024 * 1024));
+				state = remaining == 0 ? DONE : FIXED_LENGTH;
+			} else {
+				body = new ByteArrayOutputStream(4096);
+				keepAlive = false;
+				state = UNTIL_CLOSE;
+			}
+		}
+
+		/**
+		 * @return True once a whole line, without its line break, is in the line buffer.
+		 */
+		private boolean readLine(ByteBuffer data) {
+			while (data.hasRemaining()) {
+				char c = (char) (data.get() & 0xff);
+				if (c == '\n')
+					return true;
+				if (c != '\r')
+					line.append(c);
+			}
+			return false;
+		}
+
+		private long copy(ByteBuffer data, long max) {
+			if (copyBuffer == null)
+				copyBuffer = new byte[BUFFER_SIZE];
+			int length = (int) Math.min(Math.min(max, data.remaining()), copyBuffer.length);
+			data.get(copyBuffer, 0, length);
+			body.write(copyBuffer, 0, length);
+			return length;
+		}
+
+		private HttpResponse build() {
+			ByteArrayEntity entity = new ByteArrayEntity(body == null ? new byte[0] : body.toByteArray());
+			entity.setContentType(response.getFirstHeader("Content-Type"));
+			entity.setContentEncoding(response.getFirstHeader("Content-Encoding"));
+			response.setEntity(entity);
+			return response;
+		}
+	}
+}
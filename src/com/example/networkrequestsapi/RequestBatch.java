@@ -0,0 +1,296 @@
+package com.example.networkrequestsapi;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Requests that are sent together and reported together, e.g. everything a screen needs before it can render.
+ * Get one from NetworkService.batch(), add the calls and execute() it; the BatchListener is called once, after
+ * every call has finished, with a result for each call in the order they were added.
+ *
+ * <pre>
+ * networkService.batch()
+ *     .get(profileUrl)
+ *     .get(feedUrl)
+ *     .setAllOrNothing(true)
+ *     .execute(listener);
+ * </pre>
+ *
+ * @author Saquib Hafiz
+ *
+ */
+public class RequestBatch {
+
+	/**
+	 * Told once when every call in the batch has finished.
+	 */
+	public interface BatchListener {
+		/**
+		 * @param results One result per call, in the order the calls were added.
+		 */
+		public void onComplete(List<BatchResult> results);
+	}
+
+	/**
+	 * The outcome of one call in a batch.
+	 */
+	public static class BatchResult {
+		private final int index;
+		private final byte[] body;
+		private final Exception error;
+
+		BatchResult(int index, byte[] body, Exception error) {
+			this.index = index;
+			this.body = body;
+			this.error = error;
+		}
+
+		/**
+		 * @return The position of the call in the batch.
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * @return True if the call returned with status code 200.
+		 */
+		public boolean isSuccessful() {
+			return error == null;
+		}
+
+		/**
+		 * @return The response body, or null if the call failed.
+		 */
+		public byte[] getBody() {
+			return body;
+		}
+
+		/**
+		 * @return A new InputStream over the response body, or null if the call failed.
+		 */
+		public InputStream getData() {
+			return body == null ? null : new ByteArrayInputStream(body);
+		}
+
+		/**
+		 * @return The error the call failed with, or null if it succeeded.
+		 */
+		public Exception getError() {
+			return error;
+		}
+	}
+
+	/**
+	 * A running batch, so it can be cancelled.
+	 */
+	interface Execution {
+		void cancel(String reason);
+	}
+
+	static class Call {
+		final String method;
+		final String url;
+		final Map<String, String> headers;
+		final Map<String, String> parameters;
+		final byte[] content;
+		final RequestOptions options;
+
+		private Call(String method, String url, Map<String, String> headers, Map<String, String> parameters,
+				byte[] content, RequestOptions options) {
+			this.method = method;
+			this.url = url;
+			this.headers = headers;
+			this.parameters = parameters;
+			this.content = content;
+			this.options = options;
+		}
+	}
+
+	private final NetworkService service;
+	private final List<Call> calls = new ArrayList<Call>();
+	private RequestOptions options = new RequestOptions();
+	private boolean allOrNothing = false;
+	private String batchEndpoint;
+	private Execution execution;
+	private boolean cancelled = false;
+
+	RequestBatch(NetworkService service) {
+		this.service = service;
+	}
+
+	/**
+	 * Add an HTTP GET call.
+	 *
+	 * @param url The url.
+	 * @return This batch.
+	 */
+	public RequestBatch get(String url) {
+		return get(url, new HashMap<String, String>(), new HashMap<String, String>(), null);
+	}
+
+	/**
+	 * Add an HTTP GET call.
+	 *
+	 * @param url The url.
+	 * @param headers Map of header values.(cannot be null)
+	 * @param parameters Map of parameter values.(cannot be null)
+	 * @param options The RequestOptions of the call, or null to use the batch's.
+	 * @return This batch.
+	 */
+	public RequestBatch get(String url, Map<String, String> headers, Map<String, String> parameters, RequestOptions options) {
+		return add("GET", url, headers, parameters, null, options);
+	}
+
+	/**
+	 * Add an HTTP POST call.
+	 *
+	 * @param url The url.
+	 * @param headers Map of header values.(cannot be null)
+	 * @param parameters Map of parameter values.(cannot be null)
+	 * @param content The content.
+	 * @param options The RequestOptions of the call, or null to use the batch's.
+	 * @return This batch.
+	 */
+	public RequestBatch post(String url, Map<String, String> headers, Map<String, String> parameters, byte[] content, RequestOptions options) {
+		return add("POST", url, headers, parameters, content, options);
+	}
+
+	/**
+	 * Add an HTTP PUT call.
+	 *
+	 * @param url The url.
+	 * @param headers Map of header values.(cannot be null)
+	 * @param parameters Map of parameter values.(cannot be null)
+	 * @param content The content.
+	 * @param options The RequestOptions of the call, or null to use the batch's.
+	 * @return This batch.
+	 */
+	public RequestBatch put(String url, Map<String, String> headers, Map<String, String> parameters, byte[] content, RequestOptions options) {
+		return add("PUT", url, headers, parameters, content, options);
+	}
+
+	/**
+	 * Add an HTTP DELETE call.
+	 *
+	 * @param url The url.
+	 * @param headers Map of header values.(cannot be null)
+	 * @param parameters Map of parameter values.(cannot be null)
+	 * @param options The RequestOptions of the call, or null to use the batch's.
+	 * @return This batch.
+	 */
+	public RequestBatch delete(String url, Map<String, String> headers, Map<String, String> parameters, RequestOptions options) {
+		return add("DELETE", url, headers, parameters, null, options);
+	}
+
+	private synchronized RequestBatch add(String method, String url, Map<String, String> headers,
+			Map<String, String> parameters, byte[] content, RequestOptions options) {
+		if (execution != null)
+			throw new IllegalStateException("The batch was already executed.");
+
+		calls.add(new Call(method, url, headers, parameters, content, options));
+		return this;
+	}
+
+	/**
+	 * @return The RequestOptions of calls that were added without their own.
+	 */
+	public RequestOptions getOptions() {
+		return options;
+	}
+
+	/**
+	 * Set the RequestOptions of calls that are added without their own, e.g. to queue the whole batch as
+	 * BACKGROUND.
+	 *
+	 * @param options The RequestOptions.
+	 * @return This batch.
+	 */
+	public RequestBatch setOptions(RequestOptions options) {
+		this.options = options;
+		return this;
+	}
+
+	/**
+	 * @return True if the other calls are cancelled as soon as one fails.
+	 */
+	public boolean isAllOrNothing() {
+		return allOrNothing;
+	}
+
+	/**
+	 * Cancel the calls that have not finished as soon as one call fails (default false). Their results carry
+	 * the cancellation as the error.
+	 *
+	 * @param allOrNothing True to cancel the rest of the batch on the first failure.
+	 * @return This batch.
+	 */
+	public RequestBatch setAllOrNothing(boolean allOrNothing) {
+		this.allOrNothing = allOrNothing;
+		return this;
+	}
+
+	/**
+	 * @return The url the batch is sent to as one multipart/mixed request, or null.
+	 */
+	public String getBatchEndpoint() {
+		return batchEndpoint;
+	}
+
+	/**
+	 * Send the whole batch as one multipart/mixed POST to a server endpoint that unpacks it, instead of one
+	 * request per call. Each part is an application/http request, and the server has to answer with a
+	 * multipart/mixed body holding an application/http response per call, in order or numbered by Content-ID.
+	 * The RequestOptions of the batch apply to the POST; those of the calls are not used.
+	 *
+	 * @param batchEndpoint The url of the endpoint, or null to send the calls on their own.
+	 * @return This batch.
+	 */
+	public RequestBatch setBatchEndpoint(String batchEndpoint) {
+		this.batchEndpoint = batchEndpoint;
+		return this;
+	}
+
+	/**
+	 * Queue every call of the batch at once.
+	 *
+	 * @param listener The BatchListener told the results.(cannot be null)
+	 */
+	public void execute(BatchListener listener) {
+		Execution started;
+		synchronized (this) {
+			if (execution != null)
+				throw new IllegalStateException("The batch was already executed.");
+			started = service.executeBatch(this, listener);
+			execution = started;
+		}
+		// A cancel() before the calls were queued could not reach them.
+		if (isCancelled())
+			started.cancel("Cancelled batch.");
+	}
+
+	/**
+	 * Cancel every call of the batch that has not finished. The BatchListener is still called.
+	 */
+	public void cancel() {
+		Execution running;
+		synchronized (this) {
+			cancelled = true;
+			running = execution;
+		}
+		if (running != null)
+			running.cancel("Cancelled batch.");
+	}
+
+	private synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	synchronized List<Call> getCalls() {
+		return new ArrayList<Call>(calls);
+	}
+}
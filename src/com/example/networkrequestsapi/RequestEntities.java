@@ -0,0 +1,147 @@
+package com.example.networkrequestsapi;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.entity.InputStreamEntity;
+
+import com.example.networkrequestsapi.NetworkService.BodyWriter;
+import com.example.networkrequestsapi.NetworkService.UploadProgressListener;
+
+/**
+ * Request bodies that are streamed to the connection instead of being held in memory. Bodies without a known
+ * length are sent with chunked transfer encoding.
+ *
+ * @author Saquib Hafiz
+ *
+ */
+final class RequestEntities {
+
+	private RequestEntities() {
+	}
+
+	/**
+	 * @param length The number of bytes in the stream, or -1 if unknown.
+	 */
+	static HttpEntity fromStream(InputStream content, long length) {
+		InputStreamEntity entity = new InputStreamEntity(content, length);
+		entity.setChunked(length < 0);
+		return entity;
+	}
+
+	static HttpEntity fromFile(File content) {
+		return new FileEntity(content, (String) null);
+	}
+
+	/**
+	 * @param length The number of bytes the writer will write, or -1 if unknown.
+	 */
+	static HttpEntity fromWriter(BodyWriter writer, long length) {
+		return new WriterEntity(writer, length);
+	}
+
+	/**
+	 * Wraps a body so the number of bytes written is reported to a listener and a counter as it goes out.
+	 * Either may be null.
+	 */
+	static HttpEntity withProgress(HttpEntity entity, UploadProgressListener listener, CompressionInterceptor counter) {
+		return new ProgressEntity(entity, listener, counter);
+	}
+
+	private static class WriterEntity extends AbstractHttpEntity {
+		private final BodyWriter writer;
+		private final long length;
+
+		private WriterEntity(BodyWriter writer, long length) {
+			this.writer = writer;
+			this.length = length;
+			setChunked(length < 0);
+		}
+
+		@Override
+		public boolean isRepeatable() {
+			return true;
+		}
+
+		@Override
+		public long getContentLength() {
+			return length;
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			throw new UnsupportedOperationException("A BodyWriter can only be written to a stream.");
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			writer.writeTo(out);
+			out.flush();
+		}
+
+		@Override
+		public boolean isStreaming() {
+			return false;
+		}
+	}
+
+	private static class ProgressEntity extends HttpEntityWrapper {
+		private final UploadProgressListener listener;
+		private final CompressionInterceptor counter;
+
+		private ProgressEntity(HttpEntity wrapped, UploadProgressListener listener, CompressionInterceptor counter) {
+			super(wrapped);
+			this.listener = listener;
+			this.counter = counter;
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			ProgressOutputStream progress = new ProgressOutputStream(out, wrappedEntity.getContentLength());
+			try {
+				wrappedEntity.writeTo(progress);
+			} finally {
+				if (counter != null)
+					counter.countSent(progress.written, progress.written);
+			}
+		}
+
+		/**
+		 * Only counts; the listener is handed two longs per write so reporting does not allocate.
+		 */
+		private class ProgressOutputStream extends FilterOutputStream {
+			private final long total;
+			private long written = 0;
+
+			private ProgressOutputStream(OutputStream out, long total) {
+				super(out);
+				this.total = total;
+			}
+
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				progress(1);
+			}
+
+			@Override
+			public void write(byte[] buffer, int offset, int length) throws IOException {
+				out.write(buffer, offset, length);
+				progress(length);
+			}
+
+			private void progress(int length) {
+				written += length;
+				if (listener != null)
+					listener.onProgress(written, total);
+			}
+		}
+	}
+}
@@ -0,0 +1,412 @@
+package com.example.networkrequestsapi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A request that was handed to the NetworkService, returned by every get(), post(), put(), delete() and
+ * download(). Cancel it when its result is no longer wanted, e.g. when the list item it was for scrolls out of
+ * view. A request still in the backlog is taken out at once and one on the network has its connection aborted,
+ * so neither keeps a call slot or bandwidth.
+ *
+ * It is also a Future of the result: the decoded response for calls made with a ResponseDecoder, the file for a
+ * download, and null for calls made with a listener. Continuations can be chained with then() and handles combined with all(); each
+ * runs on the given Executor, or on the thread that completed the handle if it is null.
+ *
+ * <pre>
+ * RequestHandle&lt;JSONObject&gt; profile = networkService.get(url, headers, parameters, options, ResponseDecoders.JSON_OBJECT);
+ * profile.then(new RequestHandle.Continuation&lt;JSONObject, String&gt;() {
+ *     public String then(JSONObject result) throws Exception { return result.getString("name"); }
+ * }, null).addCallback(callback, mainThreadExecutor);
+ * ...
+ * profile.cancel();
+ * </pre>
+ *
+ * @param <T> The type of the result.
+ *
+ * @author Saquib Hafiz
+ *
+ */
+public class RequestHandle<T> implements Future<T> {
+
+	/**
+	 * Where the request is. QUEUED covers the backlog, the cache lookup and the wait before a retry.
+	 */
+	public enum Status { QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED };
+
+	/**
+	 * Turns the result of one handle into the result of the next.
+	 */
+	public interface Continuation<T, R> {
+		/**
+		 * @param result The result of the handle it was chained to.
+		 * @return The result of the new handle.
+		 * @throws Exception If it fails, the new handle fails with the exception.
+		 */
+		public R then(T result) throws Exception;
+	}
+
+	/**
+	 * Told once when a handle completes. A cancelled handle reports the error it was cancelled with to onError().
+	 */
+	public interface Callback<T> {
+		public void onResult(T result);
+
+		public void onError(Exception error);
+	}
+
+	/**
+	 * Stops whatever produces the result of a handle.
+	 */
+	interface Canceller {
+		/**
+		 * @return True if the work was stopped and the handle completed as cancelled.
+		 */
+		boolean cancel();
+	}
+
+	private Status status = Status.QUEUED;
+	private T result;
+	private Exception error;
+	private Exception pendingError;
+	private List<Runnable> continuations = new ArrayList<Runnable>(2);
+	private volatile Canceller canceller;
+
+	RequestHandle() {
+	}
+
+	void setCanceller(Canceller canceller) {
+		this.canceller = canceller;
+	}
+
+	/**
+	 * @return Where the request is now.
+	 */
+	public synchronized Status getStatus() {
+		return status;
+	}
+
+	synchronized void setStatus(Status status) {
+		if (!isDone())
+			this.status = status;
+	}
+
+	/**
+	 * Stop the request wherever it is. Its listener is told with onError() unless it already got the response.
+	 *
+	 * @return True if the request was stopped, false if it had already completed.
+	 */
+	public boolean cancel() {
+		if (isDone())
+			return false;
+
+		Canceller stop = canceller;
+		if (stop != null)
+			return stop.cancel();
+		return complete(null, new CancellationException("Cancelled request."), Status.CANCELLED);
+	}
+
+	/**
+	 * Same as cancel(). A request on the network always has its connection aborted.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return cancel();
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return status == Status.CANCELLED;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return status == Status.SUCCEEDED || status == Status.FAILED || status == Status.CANCELLED;
+	}
+
+	@Override
+	public synchronized T get() throws InterruptedException, ExecutionException {
+		while (!isDone())
+			wait();
+		return getResult();
+	}
+
+	@Override
+	public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		long end = System.nanoTime() + unit.toNanos(timeout);
+		while (!isDone()) {
+			long remaining = end - System.nanoTime();
+			if (remaining <= 0)
+				throw new TimeoutException();
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return getResult();
+	}
+
+	private T getResult() throws ExecutionException {
+		if (status == Status.CANCELLED)
+			throw (CancellationException) new CancellationException(error.getMessage()).initCause(error);
+		if (status == Status.FAILED)
+			throw new ExecutionException(error);
+		return result;
+	}
+
+	/**
+	 * @return The error the handle failed or was cancelled with, or null.
+	 */
+	public synchronized Exception getError() {
+		return error;
+	}
+
+	/**
+	 * Tell the callback once the handle completes, right away if it already has.
+	 *
+	 * @param callback The Callback.(cannot be null)
+	 * @param executor The Executor the callback runs on, or null to run it on the thread that completes the handle.
+	 * @return This handle.
+	 */
+	public RequestHandle<T> addCallback(final Callback<? super T> callback, final Executor executor) {
+		whenDone(new Runnable() {
+			@Override
+			public void run() {
+				Exception failure = getError();
+				if (failure == null)
+					callback.onResult(result);
+				else
+					callback.onError(failure);
+			}
+		}, executor);
+		return this;
+	}
+
+	/**
+	 * Chain a step that runs on the result once this handle succeeds. A failure or cancel is passed on without
+	 * running it, and cancelling the new handle cancels this one.
+	 *
+	 * @param continuation The Continuation.(cannot be null)
+	 * @param executor The Executor it runs on, or null to run it on the thread that completes this handle.
+	 * @return A handle for the result of the continuation.
+	 */
+	public <R> RequestHandle<R> then(final Continuation<? super T, ? extends R> continuation, Executor executor) {
+		final RequestHandle<R> next = new RequestHandle<R>();
+		next.setCanceller(cancelling(this, next));
+		whenDone(new Runnable() {
+			@Override
+			public void run() {
+				if (next.passOn(RequestHandle.this))
+					return;
+				try {
+					next.succeed(continuation.then(result));
+				} catch (Exception e) {
+					next.fail(e);
+				}
+			}
+		}, executor);
+		return next;
+	}
+
+	/**
+	 * Chain a request that needs the result of this one, e.g. fetch the details of the item a search returned.
+	 * The new handle completes with the result of that request, and cancelling it cancels whichever of the two
+	 * is running.
+	 *
+	 * @param continuation The Continuation that starts the next request.(cannot be null)
+	 * @param executor The Executor it runs on, or null to run it on the thread that completes this handle.
+	 * @return A handle for the result of the next request.
+	 */
+	public <R> RequestHandle<R> thenRequest(final Continuation<? super T, RequestHandle<R>> continuation, Executor executor) {
+		final RequestHandle<R> next = new RequestHandle<R>();
+		final RequestHandle<?>[] current = new RequestHandle<?>[] { this };
+		next.setCanceller(new Canceller() {
+			@Override
+			public boolean cancel() {
+				RequestHandle<?> running;
+				synchronized (current) {
+					running = current[0];
+				}
+				running.cancel();
+				return next.complete(null, new CancellationException("Cancelled request."), Status.CANCELLED);
+			}
+		});
+		whenDone(new Runnable() {
+			@Override
+			public void run() {
+				if (next.passOn(RequestHandle.this))
+					return;
+				final RequestHandle<R> started;
+				try {
+					started = continuation.then(result);
+				} catch (Exception e) {
+					next.fail(e);
+					return;
+				}
+				synchronized (current) {
+					current[0] = started;
+				}
+				if (next.isCancelled())
+					started.cancel();
+				started.whenDone(new Runnable() {
+					@Override
+					public void run() {
+						if (!next.passOn(started))
+							next.succeed(started.result);
+					}
+				}, null);
+			}
+		}, executor);
+		return next;
+	}
+
+	/**
+	 * Combine handles into one that succeeds with every result, in order, once all of them have. It fails as
+	 * soon as one of them fails, and cancelling it cancels the ones still running.
+	 *
+	 * @param handles The handles to wait for.(cannot be null)
+	 * @return A handle for the list of results.
+	 */
+	public static <T> RequestHandle<List<T>> all(final List<? extends RequestHandle<? extends T>> handles) {
+		final RequestHandle<List<T>> combined = new RequestHandle<List<T>>();
+		final Object[] results = new Object[handles.size()];
+		final AtomicInteger remaining = new AtomicInteger(handles.size());
+		combined.setCanceller(new Canceller() {
+			@Override
+			public boolean cancel() {
+				boolean cancelled = combined.complete(null, new CancellationException("Cancelled request."), Status.CANCELLED);
+				for (RequestHandle<? extends T> handle : handles)
+					handle.cancel();
+				return cancelled;
+			}
+		});
+
+		if (handles.isEmpty())
+			combined.succeed(new ArrayList<T>());
+		for (int i = 0; i < handles.size(); i++) {
+			final int index = i;
+			final RequestHandle<? extends T> handle = handles.get(i);
+			handle.whenDone(new Runnable() {
+				@Override
+				public void run() {
+					if (combined.passOn(handle))
+						return;
+					results[index] = handle.result;
+					if (remaining.decrementAndGet() == 0)
+						combined.succeed(collect(results));
+				}
+			}, null);
+		}
+		return combined;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> List<T> collect(Object[] results) {
+		List<T> list = new ArrayList<T>(results.length);
+		for (Object result : results)
+			list.add((T) result);
+		return list;
+	}
+
+	private static Canceller cancelling(final RequestHandle<?> previous, final RequestHandle<?> next) {
+		return new Canceller() {
+			@Override
+			public boolean cancel() {
+				previous.cancel();
+				return next.complete(null, new CancellationException("Cancelled request."), Status.CANCELLED);
+			}
+		};
+	}
+
+	/**
+	 * Completes this handle the way the other one failed or was cancelled.
+	 *
+	 * @return False if the other handle succeeded.
+	 */
+	private boolean passOn(RequestHandle<?> other) {
+		Status otherStatus = other.getStatus();
+		if (otherStatus == Status.SUCCEEDED)
+			return false;
+		complete(null, other.getError(), otherStatus);
+		return true;
+	}
+
+	/**
+	 * Runs the task once the handle is done, right away if it already is.
+	 */
+	private void whenDone(final Runnable task, final Executor executor) {
+		Runnable run = executor == null ? task : new Runnable() {
+			@Override
+			public void run() {
+				executor.execute(task);
+			}
+		};
+
+		synchronized (this) {
+			if (!isDone()) {
+				continuations.add(run);
+				return;
+			}
+		}
+		run.run();
+	}
+
+	/**
+	 * Keeps the decoded response until the request reports that it was delivered.
+	 */
+	synchronized void setResult(T result) {
+		this.result = result;
+	}
+
+	/**
+	 * Keeps an error the listener got although the request itself succeeded, e.g. a body that could not be decoded.
+	 */
+	synchronized void setError(Exception error) {
+		this.pendingError = error;
+	}
+
+	/**
+	 * Called by the request once its listener has been told.
+	 *
+	 * @param error The error the listener got, or null if it got the response.
+	 */
+	void finish(Exception error, boolean cancelled) {
+		Exception failure;
+		synchronized (this) {
+			failure = error != null ? error : pendingError;
+		}
+		if (failure == null)
+			complete(result, null, Status.SUCCEEDED);
+		else
+			complete(null, failure, cancelled ? Status.CANCELLED : Status.FAILED);
+	}
+
+	void succeed(T result) {
+		complete(result, null, Status.SUCCEEDED);
+	}
+
+	void fail(Exception error) {
+		complete(null, error, Status.FAILED);
+	}
+
+	private boolean complete(T result, Exception error, Status status) {
+		List<Runnable> done;
+		synchronized (this) {
+			if (isDone())
+				return false;
+			this.result = result;
+			this.error = error;
+			this.status = status;
+			done = continuations;
+			continuations = null;
+			notifyAll();
+		}
+		for (Runnable continuation : done)
+			continuation.run();
+		return true;
+	}
+}
@@ -0,0 +1,426 @@
+package com.example.networkrequestsapi;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+import com.example.networkrequestsapi.RequestOptions.Priority;
+
+/**
+ * An append-only file of the durable requests that have not completed yet, so they outlive the process. A request
+ * is written when it is made and a completion record when it is done; once completions make up most of the file
+ * it is rewritten with only the live requests.
+ *
+ * Records are written on the journal Executor. Everything handed in while a write is syncing goes out together in
+ * the next one, so a burst of requests costs one sync rather than one each, and completions are written without
+ * one. Every record carries a checksum, and a record torn by a crash ends the file when it is read back.
+ *
+ * @author Saquib Hafiz
+ *
+ */
+class RequestJournal {
+	private static final int VERSION = 2;
+	private static final byte ADD = 1;
+	private static final byte DONE = 2;
+	private static final String TEMP = ".tmp";
+	// The file is only rewritten once it holds at least this many completion records.
+	private static final int COMPACT_THRESHOLD = 64;
+
+	private final File file;
+	private final Executor executor;
+	private List<Operation> pending = new ArrayList<Operation>();
+	private boolean flushScheduled = false;
+	private boolean closed = false;
+
+	// Only touched on the journal Executor.
+	private FileOutputStream out;
+	private final LinkedHashMap<Long, byte[]> live = new LinkedHashMap<Long, byte[]>();
+	private int completed = 0;
+	private long nextId = 1;
+	// Set when a write failed partway, so the file may end in a torn record nothing can be appended after.
+	private boolean torn = false;
+
+	private volatile int liveCount = 0;
+	private volatile long syncs = 0;
+
+	/**
+	 * A request as it is kept in the journal. The URL already has its parameters.
+	 */
+	static class Request {
+		final String method;
+		final String url;
+		final Map<String, String> headers;
+		final byte[] content;
+		final Priority priority;
+		final String tag;
+		final boolean compressContent;
+		// Wall clock time, since it has to hold across reboots.
+		final long createdAt;
+		private long id;
+
+		Request(String method, String url, Map<String, String> headers, byte[] content, Priority priority, String tag, boolean compressContent) {
+			this(method, url, headers, content, priority, tag, compressContent, System.currentTimeMillis());
+		}
+
+		private Request(String method, String url, Map<String, String> headers, byte[] content, Priority priority, String tag,
+				boolean compressContent, long createdAt) {
+			this.method = method;
+			this.url = url;
+			this.headers = headers;
+			this.content = content;
+			this.priority = priority;
+			this.tag = tag;
+			this.compressContent = compressContent;
+			this.createdAt = createdAt;
+		}
+	}
+
+	private static class Operation {
+		private final Request request;
+		private final boolean add;
+		private final Runnable committed;
+
+		private Operation(Request request, boolean add, Runnable committed) {
+			this.request = request;
+			this.add = add;
+			this.committed = committed;
+		}
+	}
+
+	/**
+	 * @param executor A single thread Executor the file is written on.
+	 */
+	RequestJournal(File file, Executor executor) {
+		this.file = file;
+		this.executor = executor;
+	}
+
+	/**
+	 * Reads back the requests that did not complete, and rewrites the file without the rest. Run it on the journal
+	 * Executor before anything is appended.
+	 *
+	 * @return The live requests, oldest first.
+	 */
+	List<Request> open() {
+		List<Request> requests = new ArrayList<Request>();
+		if (!file.exists())
+			return requests;
+
+		LinkedHashMap<Long, Request> found = new LinkedHashMap<Long, Request>();
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != VERSION)
+					throw new IOException("Unknown journal version.");
+
+				long remaining = file.length() - 4;
+				byte[] record;
+				while ((record = readRecord(in, remaining)) != null) {
+					remaining -= record.length + 8;
+					DataInputStream payload = new DataInputStream(new ByteArrayInputStream(record));
+					byte type = payload.readByte();
+					long id = payload.readLong();
+					nextId = Math.max(nextId, id + 1);
+					if (type == ADD) {
+						Request request = readRequest(payload);
+						request.id = id;
+						found.put(id, request);
+						live.put(id, frame(record));
+					} else if (found.remove(id) != null) {
+						live.remove(id);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.w("NetworkService", "Could not read the request journal.", e);
+		}
+
+		requests.addAll(found.values());
+		liveCount = live.size();
+		torn = !rewrite();
+		return requests;
+	}
+
+	/**
+	 * Writes the request to the journal.
+	 *
+	 * @param committed Run once the request is on disk, or once writing it failed.
+	 */
+	void append(Request request, Runnable committed) {
+		submit(new Operation(request, true, committed));
+	}
+
+	/**
+	 * Records that the request is done, so it is not replayed.
+	 */
+	void complete(Request request) {
+		submit(new Operation(request, false, null));
+	}
+
+	/**
+	 * Writes what was handed in so far and ignores anything after. Completions after it are not recorded, so the
+	 * requests cancelled by a shutdown are replayed the next time.
+	 */
+	void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+				closeFile();
+			}
+		});
+	}
+
+	/**
+	 * @return The number of requests in the journal that have not completed.
+	 */
+	int size() {
+		return liveCount;
+	}
+
+	/**
+	 * @return The number of times the journal was synced to disk.
+	 */
+	long getSyncCount() {
+		return syncs;
+	}
+
+	private void submit(Operation operation) {
+		synchronized (this) {
+			if (closed)
+				return;
+			pending.add(operation);
+			if (flushScheduled)
+				return;
+			flushScheduled = true;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		});
+	}
+
+	/**
+	 * Writes every operation handed in since the last flush with a single sync.
+	 */
+	private void flush() {
+		List<Operation> operations;
+		synchronized (this) {
+			flushScheduled = false;
+			operations = pending;
+			pending = new ArrayList<Operation>();
+		}
+		if (operations.isEmpty())
+			return;
+
+		ByteArrayOutputStream batch = new ByteArrayOutputStream();
+		boolean added = false;
+		try {
+			for (Operation operation : operations) {
+				Request request = operation.request;
+				if (operation.add) {
+					added = true;
+					request.id = nextId++;
+					byte[] record = frame(writeRequest(request));
+					live.put(request.id, record);
+					batch.write(record);
+				} else if (live.remove(request.id) != null) {
+					batch.write(frame(writeDone(request.id)));
+					completed++;
+				}
+			}
+			liveCount = live.size();
+
+			if (torn || live.isEmpty() || (completed >= COMPACT_THRESHOLD && completed >= live.size())) {
+				torn = !rewrite();
+			} else if (batch.size() > 0) {
+				if (out == null) {
+					boolean empty = !file.exists() || file.length() == 0;
+					out = new FileOutputStream(file, true);
+					if (empty)
+						out.write(header());
+				}
+				out.write(batch.toByteArray());
+				// A completion that is lost to a power cut only means the request is sent again, so it is not
+				// worth a sync of its own. Once written it survives the process.
+				if (added) {
+					out.getFD().sync();
+					syncs++;
+				}
+			}
+		} catch (IOException e) {
+			// The requests still go out, they are only not durable.
+			Log.w("NetworkService", "Could not write to the request journal.", e);
+			closeFile();
+			// Anything appended after a torn record would be lost when the file is read back.
+			torn = !rewrite();
+		}
+
+		for (Operation operation : operations) {
+			if (operation.committed != null)
+				operation.committed.run();
+		}
+	}
+
+	/**
+	 * Replaces the file with one that holds only the live requests, or deletes it if there are none.
+	 *
+	 * @return False if the file could not be replaced.
+	 */
+	private boolean rewrite() {
+		closeFile();
+		completed = 0;
+		if (live.isEmpty())
+			return file.delete() || !file.exists();
+
+		File temp = new File(file.getPath() + TEMP);
+		try {
+			FileOutputStream rewritten = new FileOutputStream(temp);
+			try {
+				ByteArrayOutputStream contents = new ByteArrayOutputStream();
+				contents.write(header());
+				for (byte[] record : live.values())
+					contents.write(record);
+				rewritten.write(contents.toByteArray());
+				rewritten.getFD().sync();
+				syncs++;
+			} finally {
+				rewritten.close();
+			}
+			if (temp.renameTo(file))
+				return true;
+		} catch (IOException e) {
+			Log.w("NetworkService", "Could not compact the request journal.", e);
+		}
+		temp.delete();
+		return false;
+	}
+
+	private void closeFile() {
+		if (out == null)
+			return;
+		try {
+			out.close();
+		} catch (IOException e) {
+		}
+		out = null;
+	}
+
+	private static byte[] header() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(4);
+		new DataOutputStream(bytes).writeInt(VERSION);
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Prefixes a record with its length and checksum.
+	 */
+	private static byte[] frame(byte[] record) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(record.length + 8);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(record.length);
+		out.writeInt((int) crc.getValue());
+		out.write(record);
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @param remaining The number of bytes left in the file.
+	 * @return The next record, or null at the end of the file or at a record that was not completely written.
+	 */
+	private static byte[] readRecord(DataInputStream in, long remaining) throws IOException {
+		try {
+			int length = in.readInt();
+			int checksum = in.readInt();
+			// A length torn by a crash could be anything, so it is not trusted beyond the end of the file.
+			if (length <= 0 || length > remaining - 8)
+				return null;
+			byte[] record = new byte[length];
+			in.readFully(record);
+
+			CRC32 crc = new CRC32();
+			crc.update(record);
+			return (int) crc.getValue() == checksum ? record : null;
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	private static byte[] writeRequest(Request request) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 + (request.content == null ? 0 : request.content.length));
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(ADD);
+		out.writeLong(request.id);
+		out.writeUTF(request.method);
+		out.writeUTF(request.url);
+		out.writeInt(request.headers.size());
+		for (Entry<String, String> header : request.headers.entrySet()) {
+			out.writeUTF(header.getKey());
+			out.writeUTF(header.getValue());
+		}
+		out.writeInt(request.content == null ? -1 : request.content.length);
+		if (request.content != null)
+			out.write(request.content);
+		out.writeUTF(request.priority.name());
+		out.writeBoolean(request.tag != null);
+		if (request.tag != null)
+			out.writeUTF(request.tag);
+		out.writeBoolean(request.compressContent);
+		out.writeLong(request.createdAt);
+		return bytes.toByteArray();
+	}
+
+	private static Request readRequest(DataInputStream in) throws IOException {
+		String method = in.readUTF();
+		String url = in.readUTF();
+		Map<String, String> headers = new HashMap<String, String>();
+		for (int i = in.readInt(); i > 0; i--)
+			headers.put(in.readUTF(), in.readUTF());
+		int length = in.readInt();
+		byte[] content = null;
+		if (length >= 0) {
+			content = new byte[length];
+			in.readFully(content);
+		}
+		Priority priority = Priority.valueOf(in.readUTF());
+		String tag = in.readBoolean() ? in.readUTF() : null;
+		boolean compressContent = in.readBoolean();
+		return new Request(method, url, headers, content, priority, tag, compressContent, in.readLong());
+	}
+
+	private static byte[] writeDone(long id) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(9);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(DONE);
+		out.writeLong(id);
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,232 @@
+package com.example.networkrequestsapi;
+
+import java.util.concurrent.Executor;
+
+import com.example.networkrequestsapi.NetworkService.UploadProgressListener;
+
+import android.os.Handler;
+
+/**
+ * Per-request settings for calls made through the NetworkService.
+ * 
+ * @author Saquib Hafiz
+ *
+ */
+public class RequestOptions {
+	/**
+	 * The order queued requests are dispatched in. Requests that have waited long enough are treated as one class
+	 * higher so lower classes are never starved.
+	 */
+	public enum Priority { IMMEDIATE, NORMAL, BACKGROUND, PREFETCH };
+	
+	/**
+	 * Calls the listener on the worker thread that read the response, which is where it is called by default.
+	 */
+	public static final Executor WORKER_THREAD = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+	
+	/**
+	 * Calls the listener on the main thread. Responses that arrive while a delivery is waiting for the main thread
+	 * go out in the same message, so a burst of them is handled in one frame.
+	 */
+	public static final Executor MAIN_THREAD = new MainThreadExecutor();
+	
+	private Priority priority = Priority.NORMAL;
+	private Object tag;
+	private boolean compressContent = false;
+	private UploadProgressListener uploadProgressListener;
+	private int parallelRanges = 1;
+	private RetryPolicy retryPolicy;
+	private long timeout = 0;
+	private Executor callbackExecutor;
+	private boolean durable = false;
+
+	/**
+	 * @return The priority the request is queued with.
+	 */
+	public Priority getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Set the priority the request is queued with (default NORMAL).
+	 * 
+	 * @param priority The priority class.
+	 * @return These options.
+	 */
+	public RequestOptions setPriority(Priority priority) {
+		this.priority = priority;
+		return this;
+	}
+
+	/**
+	 * @return The tag used to find the request again, or null.
+	 */
+	public Object getTag() {
+		return tag;
+	}
+
+	/**
+	 * Set a tag used to find the request again, e.g. to reprioritize all the requests made by one screen.
+	 * 
+	 * @param tag Any object, compared with equals().
+	 * @return These options.
+	 */
+	public RequestOptions setTag(Object tag) {
+		this.tag = tag;
+		return this;
+	}
+
+	/**
+	 * @return True if POST/PUT content is gzipped before it is sent.
+	 */
+	public boolean isCompressContent() {
+		return compressContent;
+	}
+
+	/**
+	 * Gzip POST/PUT content larger than the service's compression threshold (default false). Only turn this on
+	 * for servers that accept Content-Encoding: gzip on requests.
+	 * 
+	 * @param compressContent True to compress the content.
+	 * @return These options.
+	 */
+	public RequestOptions setCompressContent(boolean compressContent) {
+		this.compressContent = compressContent;
+		return this;
+	}
+
+	/**
+	 * @return The listener told how much of the content has been sent, or null.
+	 */
+	public UploadProgressListener getUploadProgressListener() {
+		return uploadProgressListener;
+	}
+
+	/**
+	 * Set a listener that is told how much of a POST/PUT's content has been sent.
+	 * 
+	 * @param uploadProgressListener The UploadProgressListener.
+	 * @return These options.
+	 */
+	public RequestOptions setUploadProgressListener(UploadProgressListener uploadProgressListener) {
+		this.uploadProgressListener = uploadProgressListener;
+		return this;
+	}
+
+	/**
+	 * @return The number of byte ranges a download is fetched in at once.
+	 */
+	public int getParallelRanges() {
+		return parallelRanges;
+	}
+
+	/**
+	 * Fetch a download as several byte ranges at once (default 1). Files smaller than a megabyte per range are
+	 * split into fewer ranges, and a split download starts over if the app is restarted.
+	 * 
+	 * @param parallelRanges The number of ranges.
+	 * @return These options.
+	 */
+	public RequestOptions setParallelRanges(int parallelRanges) {
+		this.parallelRanges = parallelRanges;
+		return this;
+	}
+
+	/**
+	 * @return The RetryPolicy of the request, or null to use the service's.
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * Set the RetryPolicy of the request instead of using the service's.
+	 * 
+	 * @param retryPolicy The RetryPolicy.
+	 * @return These options.
+	 */
+	public RequestOptions setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+		return this;
+	}
+
+	/**
+	 * @return The total time the request may take in milliseconds, or 0 if it has no deadline.
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Give the request a deadline (default none). The time counts from the call, so it covers waiting in the
+	 * backlog, retries and reading the response. A request that passes its deadline is aborted and the listener
+	 * gets onError(). For a download it applies to each range request.
+	 * 
+	 * @param timeout The total time in milliseconds, or 0 for no deadline.
+	 * @return These options.
+	 */
+	public RequestOptions setTimeout(long timeout) {
+		this.timeout = timeout;
+		return this;
+	}
+
+	/**
+	 * @return The Executor the listener is called on, or null to use the service's.
+	 */
+	public Executor getCallbackExecutor() {
+		return callbackExecutor;
+	}
+
+	/**
+	 * Set where the listener is called, e.g. WORKER_THREAD, MAIN_THREAD or an app Executor (default the service's).
+	 * 
+	 * @param callbackExecutor The Executor, or null to use the service's.
+	 * @return These options.
+	 */
+	public RequestOptions setCallbackExecutor(Executor callbackExecutor) {
+		this.callbackExecutor = callbackExecutor;
+		return this;
+	}
+
+	/**
+	 * Call the listener on the thread of a Handler.
+	 * 
+	 * @param handler The Handler the callbacks are posted to.
+	 * @return These options.
+	 */
+	public RequestOptions setCallbackHandler(final Handler handler) {
+		return setCallbackExecutor(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				handler.post(command);
+			}
+		});
+	}
+
+	/**
+	 * @return True if the request is kept on disk until it completes.
+	 */
+	public boolean isDurable() {
+		return durable;
+	}
+
+	/**
+	 * Keep the request on disk until it completes, so it is sent again if the process dies first (default false).
+	 * It is sent once it is written, and replayed when the service next starts if the server never answered it,
+	 * its answer asked for a retry, or the service was stopped. A request can reach the server twice this way.
+	 * Replayed requests report to the service's ReplayListener, and only a String tag is kept. Only POST, PUT and
+	 * DELETE calls with content in memory are kept; the option is ignored for the others.
+	 * 
+	 * @param durable True to keep the request on disk.
+	 * @return These options.
+	 */
+	public RequestOptions setDurable(boolean durable) {
+		this.durable = durable;
+		return this;
+	}
+}
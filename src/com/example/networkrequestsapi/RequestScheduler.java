@@ -0,0 +1,367 @@
+package com.example.networkrequestsapi;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.example.networkrequestsapi.RequestOptions.Priority;
+
+import android.os.SystemClock;
+
+/**
+ * The backlog of the NetworkService. Requests are grouped by host, and within a host kept in one FIFO queue per
+ * priority class. The head with the best effective priority is dispatched first. A request's effective priority
+ * rises by one class for every aging interval it has waited, so BACKGROUND and PREFETCH work still goes out under
+ * constant foreground load.
+ *
+ * Each host may only have so many requests in flight. Hosts at their limit are skipped, so one slow host can not
+ * take every call slot, and hosts whose heads are equally urgent take turns.
+ *
+ * BACKGROUND and PREFETCH requests can be held back as a group, e.g. while offline, and are then let go together.
+ *
+ * @author Saquib Hafiz
+ *
+ */
+class RequestScheduler<T extends RequestScheduler.Schedulable> {
+	private static final int DEFERRABLE = Priority.BACKGROUND.ordinal();
+
+	interface Schedulable {
+		Priority getPriority();
+		void setPriority(Priority priority);
+		long getQueuedTime();
+		Object getTag();
+		String getHost();
+	}
+
+	private class HostQueue {
+		private final String host;
+		private final List<LinkedHashSet<T>> queues;
+		private int size = 0;
+		private int inFlight = 0;
+
+		private HostQueue(String host) {
+			this.host = host;
+			Priority[] priorities = Priority.values();
+			queues = new ArrayList<LinkedHashSet<T>>(priorities.length);
+			for (int i = 0; i < priorities.length; i++)
+				queues.add(new LinkedHashSet<T>());
+		}
+
+		private int getLimit() {
+			Integer limit = hostLimits.get(host);
+			return limit != null ? limit : defaultHostLimit;
+		}
+	}
+
+	private final List<HostQueue> hostList = new ArrayList<HostQueue>();
+	private final Map<String, HostQueue> hosts = new HashMap<String, HostQueue>();
+	private final Map<String, Integer> hostLimits = new HashMap<String, Integer>();
+	private int defaultHostLimit;
+	private int nextHost = 0;
+	private long agingTime = 5000;
+	private int size = 0;
+	private volatile int version = 0;
+	private boolean deferring = false;
+	private long maxDeferral = 0;
+
+	RequestScheduler(int defaultHostLimit) {
+		this.defaultHostLimit = defaultHostLimit;
+	}
+
+	synchronized void add(T request) {
+		HostQueue hostQueue = getHostQueue(request.getHost());
+		if (hostQueue.queues.get(request.getPriority().ordinal()).add(request)) {
+			hostQueue.size++;
+			size++;
+			version++;
+		}
+	}
+
+	/**
+	 * Adds the requests under one lock, so nothing queued by another thread lands between them.
+	 */
+	synchronized void addAll(List<T> requests) {
+		for (T request : requests)
+			add(request);
+	}
+
+	/**
+	 * Takes the next request to dispatch and counts it as in flight to its host until release() is called.
+	 *
+	 * @return The request, or null if the backlog is empty or every host with queued requests is at its limit.
+	 */
+	synchronized T poll() {
+		if (size == 0)
+			return null;
+
+		long now = SystemClock.elapsedRealtime();
+		HostQueue bestHost = null;
+		LinkedHashSet<T> best = null;
+		int bestRank = Integer.MAX_VALUE;
+		long bestQueuedTime = Long.MAX_VALUE;
+		int hostCount = hostList.size();
+
+		// Start after the host served last so that hosts whose heads are equally urgent and equally old take turns.
+		for (int i = 0; i < hostCount; i++) {
+			HostQueue hostQueue = hostList.get((nextHost + i) % hostCount);
+			if (hostQueue.size == 0 || hostQueue.inFlight >= hostQueue.getLimit())
+				continue;
+
+			for (int p = 0; p < hostQueue.queues.size(); p++) {
+				LinkedHashSet<T> queue = hostQueue.queues.get(p);
+				if (queue.isEmpty())
+					continue;
+
+				long queuedTime = queue.iterator().next().getQueuedTime();
+				long waited = now - queuedTime;
+				if (isHeld(p, waited))
+					continue;
+
+				int rank = effectiveRank(p, waited);
+				if (rank < bestRank || (rank == bestRank && queuedTime < bestQueuedTime)) {
+					bestHost = hostQueue;
+					best = queue;
+					bestRank = rank;
+					bestQueuedTime = queuedTime;
+				}
+			}
+		}
+
+		if (best == null)
+			return null;
+
+		Iterator<T> iterator = best.iterator();
+		T request = iterator.next();
+		iterator.remove();
+		bestHost.size--;
+		bestHost.inFlight++;
+		size--;
+		nextHost = (hostList.indexOf(bestHost) + 1) % hostCount;
+		return request;
+	}
+
+	/**
+	 * Frees the host slot of a request returned by poll().
+	 */
+	synchronized void release(T request) {
+		HostQueue hostQueue = hosts.get(request.getHost());
+		if (hostQueue == null)
+			return;
+
+		hostQueue.inFlight--;
+		version++;
+		removeIfIdle(hostQueue);
+	}
+
+	private boolean isHeld(int ordinal, long waited) {
+		return deferring && ordinal >= DEFERRABLE && (maxDeferral <= 0 || waited < maxDeferral);
+	}
+
+	private int effectiveRank(int ordinal, long waited) {
+		if (agingTime <= 0)
+			return ordinal;
+
+		return (int) Math.max(0, ordinal - waited / agingTime);
+	}
+
+	private HostQueue getHostQueue(String host) {
+		HostQueue hostQueue = hosts.get(host);
+		if (hostQueue == null) {
+			hostQueue = new HostQueue(host);
+			hosts.put(host, hostQueue);
+			hostList.add(hostQueue);
+		}
+		return hostQueue;
+	}
+
+	private void removeIfIdle(HostQueue hostQueue) {
+		if (hostQueue.size > 0 || hostQueue.inFlight > 0)
+			return;
+
+		int index = hostList.indexOf(hostQueue);
+		hostList.remove(index);
+		hosts.remove(hostQueue.host);
+		if (index < nextHost)
+			nextHost--;
+		if (nextHost >= hostList.size())
+			nextHost = 0;
+	}
+
+	synchronized boolean remove(T request) {
+		HostQueue hostQueue = hosts.get(request.getHost());
+		if (hostQueue == null || !hostQueue.queues.get(request.getPriority().ordinal()).remove(request))
+			return false;
+
+		hostQueue.size--;
+		size--;
+		removeIfIdle(hostQueue);
+		return true;
+	}
+
+	/**
+	 * Moves every queued request with the given tag to another priority class. They keep their queued time.
+	 *
+	 * @return The number of requests that were moved.
+	 */
+	synchronized int reprioritize(Object tag, Priority priority) {
+		int moved = 0;
+		for (HostQueue hostQueue : hostList) {
+			List<T> hostMoved = new ArrayList<T>();
+			for (LinkedHashSet<T> queue : hostQueue.queues) {
+				Iterator<T> iterator = queue.iterator();
+				while (iterator.hasNext()) {
+					T request = iterator.next();
+					if (tag.equals(request.getTag()) && request.getPriority() != priority) {
+						iterator.remove();
+						hostMoved.add(request);
+					}
+				}
+			}
+
+			LinkedHashSet<T> target = hostQueue.queues.get(priority.ordinal());
+			for (T request : hostMoved) {
+				request.setPriority(priority);
+				target.add(request);
+			}
+			moved += hostMoved.size();
+		}
+		return moved;
+	}
+
+	/**
+	 * Removes and returns every queued request.
+	 */
+	synchronized List<T> drain() {
+		List<T> drained = new ArrayList<T>(size);
+		for (HostQueue hostQueue : new ArrayList<HostQueue>(hostList)) {
+			for (LinkedHashSet<T> queue : hostQueue.queues) {
+				drained.addAll(queue);
+				queue.clear();
+			}
+			hostQueue.size = 0;
+			removeIfIdle(hostQueue);
+		}
+		size = 0;
+		return drained;
+	}
+
+	synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return A number that changes whenever a request is added or a host slot is freed, so a dispatcher that found
+	 * nothing to poll can tell whether it has to look again.
+	 */
+	int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Holds back the BACKGROUND and PREFETCH requests, or lets them go. A held request does not age.
+	 *
+	 * @param maxDeferral How long a held request waits before it goes anyway in milliseconds, or 0 to hold it until
+	 * it is let go.
+	 */
+	synchronized void setDeferring(boolean deferring, long maxDeferral) {
+		if (deferring == this.deferring && maxDeferral == this.maxDeferral)
+			return;
+		this.deferring = deferring;
+		this.maxDeferral = maxDeferral;
+		version++;
+	}
+
+	/**
+	 * @return The number of requests being held back.
+	 */
+	synchronized int getDeferredCount() {
+		if (!deferring)
+			return 0;
+
+		int count = 0;
+		for (HostQueue hostQueue : hostList)
+			for (int p = DEFERRABLE; p < hostQueue.queues.size(); p++)
+				count += hostQueue.queues.get(p).size();
+		return count;
+	}
+
+	/**
+	 * @return The queued time of the longest held request, or -1 if none is held.
+	 */
+	synchronized long getOldestDeferredTime() {
+		long oldest = -1;
+		if (!deferring)
+			return oldest;
+
+		for (HostQueue hostQueue : hostList) {
+			for (int p = DEFERRABLE; p < hostQueue.queues.size(); p++) {
+				LinkedHashSet<T> queue = hostQueue.queues.get(p);
+				if (queue.isEmpty())
+					continue;
+				long queued = queue.iterator().next().getQueuedTime();
+				if (oldest < 0 || queued < oldest)
+					oldest = queued;
+			}
+		}
+		return oldest;
+	}
+
+	synchronized void setAgingTime(long agingTime) {
+		this.agingTime = agingTime;
+	}
+
+	synchronized long getAgingTime() {
+		return agingTime;
+	}
+
+	synchronized void setDefaultHostLimit(int defaultHostLimit) {
+		this.defaultHostLimit = defaultHostLimit;
+		version++;
+	}
+
+	synchronized int getDefaultHostLimit() {
+		return defaultHostLimit;
+	}
+
+	/**
+	 * @param limit The limit for the host, or a negative number to use the default again.
+	 */
+	synchronized void setHostLimit(String host, int limit) {
+		if (limit < 0)
+			hostLimits.remove(host);
+		else
+			hostLimits.put(host, limit);
+		version++;
+	}
+
+	synchronized int getHostLimit(String host) {
+		Integer limit = hostLimits.get(host);
+		return limit != null ? limit : defaultHostLimit;
+	}
+
+	synchronized int getQueueDepth(String host) {
+		HostQueue hostQueue = hosts.get(host);
+		return hostQueue == null ? 0 : hostQueue.size;
+	}
+
+	synchronized int getInFlight(String host) {
+		HostQueue hostQueue = hosts.get(host);
+		return hostQueue == null ? 0 : hostQueue.inFlight;
+	}
+
+	/**
+	 * @return The hosts that have requests queued or in flight.
+	 */
+	synchronized Set<String> getHosts() {
+		return new TreeSet<String>(hosts.keySet());
+	}
+}
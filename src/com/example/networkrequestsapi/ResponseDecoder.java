@@ -0,0 +1,23 @@
+package com.example.networkrequestsapi;
+
+import java.io.InputStream;
+
+/**
+ * Turns a response body into the object a DecodedResponseListener is given. It runs on the worker thread that
+ * received the response, so it may parse as much as it needs to. ResponseDecoders has the common ones.
+ *
+ * @param <T> The type of the decoded response.
+ *
+ * @author Saquib Hafiz
+ *
+ */
+public interface ResponseDecoder<T> {
+	/**
+	 * @param data The response body. It is closed by the service.
+	 * @param contentType The Content-Type of the response, or null if it had none.
+	 * @param contentLength The length of the body in bytes, or -1 if it is not known.
+	 * @return The decoded response.
+	 * @throws Exception If the body can not be decoded. The listener's onError() is told.
+	 */
+	public T decode(InputStream data, String contentType, long contentLength) throws Exception;
+}
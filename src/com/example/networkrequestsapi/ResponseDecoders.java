@@ -0,0 +1,206 @@
+package com.example.networkrequestsapi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.Arrays;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import com.example.networkrequestsapi.BufferPool.PooledOutputStream;
+
+/**
+ * The common ResponseDecoders. Bodies are read into an array sized from the Content-Length, so a response of
+ * known length is copied once, and text is decoded with the charset of the Content-Type, or UTF-8 if it names
+ * none.
+ *
+ * @author Saquib Hafiz
+ *
+ */
+public final class ResponseDecoders {
+	private static final String DEFAULT_CHARSET = "UTF-8";
+
+	/**
+	 * The body as it arrived.
+	 */
+	public static final ResponseDecoder<byte[]> BYTES = new PooledDecoder<byte[]>() {
+		@Override
+		byte[] decode(InputStream data, String contentType, long contentLength, BufferPool pool) throws IOException {
+			return toByteArray(data, contentLength, pool);
+		}
+	};
+
+	/**
+	 * The body as text, line breaks included.
+	 */
+	public static final ResponseDecoder<String> STRING = new PooledDecoder<String>() {
+		@Override
+		String decode(InputStream data, String contentType, long contentLength, BufferPool pool) throws IOException {
+			return readString(data, getCharset(contentType), contentLength, pool);
+		}
+	};
+
+	/**
+	 * The body parsed as JSON: a JSONObject, JSONArray, String, Number, Boolean or JSONObject.NULL.
+	 */
+	public static final ResponseDecoder<Object> JSON = new PooledDecoder<Object>() {
+		@Override
+		Object decode(InputStream data, String contentType, long contentLength, BufferPool pool) throws IOException, JSONException {
+			return new JSONTokener(readString(data, getCharset(contentType), contentLength, pool)).nextValue();
+		}
+	};
+
+	/**
+	 * The body parsed as a JSON object.
+	 */
+	public static final ResponseDecoder<JSONObject> JSON_OBJECT = new PooledDecoder<JSONObject>() {
+		@Override
+		JSONObject decode(InputStream data, String contentType, long contentLength, BufferPool pool) throws Exception {
+			Object value = ResponseDecoders.decode(JSON, data, contentType, contentLength, pool);
+			if (!(value instanceof JSONObject))
+				throw new JSONException("Response is not a JSON object.");
+			return (JSONObject) value;
+		}
+	};
+
+	/**
+	 * The body parsed as a JSON array.
+	 */
+	public static final ResponseDecoder<JSONArray> JSON_ARRAY = new PooledDecoder<JSONArray>() {
+		@Override
+		JSONArray decode(InputStream data, String contentType, long contentLength, BufferPool pool) throws Exception {
+			Object value = ResponseDecoders.decode(JSON, data, contentType, contentLength, pool);
+			if (!(value instanceof JSONArray))
+				throw new JSONException("Response is not a JSON array.");
+			return (JSONArray) value;
+		}
+	};
+
+	// Used when a decoder is called outside the service. It keeps nothing, so every array is freshly allocated.
+	private static final BufferPool UNPOOLED = new BufferPool(0);
+
+	/**
+	 * A decoder that borrows its working storage from the service's BufferPool.
+	 */
+	abstract static class PooledDecoder<T> implements ResponseDecoder<T> {
+		abstract T decode(InputStream data, String contentType, long contentLength, BufferPool pool) throws Exception;
+
+		@Override
+		public final T decode(InputStream data, String contentType, long contentLength) throws Exception {
+			return decode(data, contentType, contentLength, UNPOOLED);
+		}
+	}
+
+	private ResponseDecoders() {
+	}
+
+	/**
+	 * Decodes with the pool if the decoder is one that can use it.
+	 */
+	static <T> T decode(ResponseDecoder<T> decoder, InputStream data, String contentType, long contentLength, BufferPool pool) throws Exception {
+		if (decoder instanceof PooledDecoder)
+			return ((PooledDecoder<T>) decoder).decode(data, contentType, contentLength, pool);
+		return decoder.decode(data, contentType, contentLength);
+	}
+
+	/**
+	 * @param contentType A Content-Type such as "text/html; charset=ISO-8859-1", or null.
+	 * @return The charset it names if the platform supports it, else UTF-8.
+	 */
+	public static String getCharset(String contentType) {
+		if (contentType == null)
+			return DEFAULT_CHARSET;
+
+		for (String parameter : contentType.split(";")) {
+			int equals = parameter.indexOf('=');
+			if (equals < 0 || !parameter.substring(0, equals).trim().equalsIgnoreCase("charset"))
+				continue;
+
+			String charset = parameter.substring(equals + 1).trim();
+			if (charset.length() >= 2 && charset.startsWith("\"") && charset.endsWith("\""))
+				charset = charset.substring(1, charset.length() - 1);
+			try {
+				if (Charset.isSupported(charset))
+					return charset;
+			} catch (IllegalCharsetNameException e) {
+			}
+		}
+		return DEFAULT_CHARSET;
+	}
+
+	/**
+	 * Reads the stream to its end.
+	 *
+	 * @param contentLength The expected length, or -1 if it is not known.
+	 */
+	public static byte[] toByteArray(InputStream data, long contentLength) throws IOException {
+		return toByteArray(data, contentLength, UNPOOLED);
+	}
+
+	/**
+	 * A body of known length is read straight into an array of that length. Any other body is gathered in storage
+	 * borrowed from the pool and copied out once.
+	 */
+	static byte[] toByteArray(InputStream data, long contentLength, BufferPool pool) throws IOException {
+		if (contentLength < 0 || contentLength > BufferPool.MAX_PRESIZE) {
+			PooledOutputStream out = new PooledOutputStream(pool, -1);
+			try {
+				out.readFrom(data);
+				return out.toByteArray();
+			} finally {
+				out.close();
+			}
+		}
+
+		byte[] bytes = new byte[(int) contentLength];
+		int offset = 0;
+		int read;
+		while (offset < bytes.length && (read = data.read(bytes, offset, bytes.length - offset)) != -1)
+			offset += read;
+		if (offset < bytes.length)
+			return Arrays.copyOf(bytes, offset);
+
+		int next = data.read();
+		if (next == -1)
+			return bytes;
+
+		// The body is longer than the Content-Length said, e.g. after it was decompressed.
+		PooledOutputStream out = new PooledOutputStream(pool, bytes.length * 2L + 1);
+		try {
+			out.write(bytes, 0, bytes.length);
+			out.write(next);
+			out.readFrom(data);
+			return out.toByteArray();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads the stream to its end as text.
+	 *
+	 * @param charset The charset of the text.
+	 * @param contentLength The expected length in bytes, or -1 if it is not known.
+	 */
+	public static String readString(InputStream data, String charset, long contentLength) throws IOException {
+		return readString(data, charset, contentLength, UNPOOLED);
+	}
+
+	/**
+	 * The bytes are only needed until they are decoded, so they are always read into borrowed storage.
+	 */
+	static String readString(InputStream data, String charset, long contentLength, BufferPool pool) throws IOException {
+		// One spare byte so reading the end of the body does not grow the storage.
+		PooledOutputStream out = new PooledOutputStream(pool, contentLength < 0 ? -1 : contentLength + 1);
+		try {
+			out.readFrom(data);
+			return out.toString(charset);
+		} finally {
+			out.close();
+		}
+	}
+}
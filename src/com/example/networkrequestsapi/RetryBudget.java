@@ -0,0 +1,54 @@
+package com.example.networkrequestsapi;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caps retries across the whole service so a failing server does not get a retry storm on top of its load.
+ * Every retry spends a token and every request that succeeds earns back a fraction of one, so in the long run
+ * retries are at most that fraction of successful requests, with a burst allowance on top.
+ * 
+ * @author Saquib Hafiz
+ *
+ */
+class RetryBudget {
+	private static final int SCALE = 1000;
+	
+	private final AtomicInteger tokens;
+	private volatile int maxTokens;
+	private volatile int deposit;
+	
+	/**
+	 * @param burst The number of retries allowed before any request succeeded.
+	 * @param ratio The number of retries each successful request earns, e.g. 0.1.
+	 */
+	RetryBudget(int burst, double ratio) {
+		this.maxTokens = burst * SCALE;
+		this.deposit = (int) (ratio * SCALE);
+		this.tokens = new AtomicInteger(maxTokens);
+	}
+	
+	boolean tryAcquire() {
+		while (true) {
+			int current = tokens.get();
+			if (current < SCALE)
+				return false;
+			if (tokens.compareAndSet(current, current - SCALE))
+				return true;
+		}
+	}
+	
+	void onSuccess() {
+		while (true) {
+			int current = tokens.get();
+			int next = Math.min(maxTokens, current + deposit);
+			if (current == next || tokens.compareAndSet(current, next))
+				return;
+		}
+	}
+	
+	void set(int burst, double ratio) {
+		maxTokens = burst * SCALE;
+		deposit = (int) (ratio * SCALE);
+		tokens.set(maxTokens);
+	}
+}
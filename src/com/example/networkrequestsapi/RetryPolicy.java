@@ -0,0 +1,155 @@
+package com.example.networkrequestsapi;
+
+import java.util.Random;
+
+/**
+ * When and how often a failed request is sent again. Failures are connection errors, timeouts and the
+ * retryable status codes (408, 429, 502, 503 and 504 by default). Retries wait an exponentially growing,
+ * jittered delay, or as long as the server asked for in a Retry-After header. GET, PUT and DELETE are
+ * retried by default; POST is only retried when setRetryPost(true) says it is safe to do so.
+ * 
+ * @author Saquib Hafiz
+ *
+ */
+public class RetryPolicy {
+	private static final Random random = new Random();
+	
+	private int maxRetries = 2;
+	private long initialBackoff = 500;
+	private long maxBackoff = 30000;
+	private double multiplier = 2;
+	private boolean retryPost = false;
+	private int[] retryStatusCodes = { 408, 429, 502, 503, 504 };
+
+	/**
+	 * @return A policy that never retries.
+	 */
+	public static RetryPolicy none() {
+		return new RetryPolicy().setMaxRetries(0);
+	}
+
+	/**
+	 * @param retry The number of the retry, starting at 1.
+	 * @return The time to wait before the retry, between half and all of the exponential backoff.
+	 */
+	long getBackoff(int retry) {
+		double backoff = initialBackoff * Math.pow(multiplier, retry - 1);
+		long capped = (long) Math.min(maxBackoff, backoff);
+		return capped / 2 + (long) (random.nextDouble() * (capped - capped / 2));
+	}
+
+	boolean isRetryStatusCode(int statusCode) {
+		for (int code : retryStatusCodes)
+			if (code == statusCode)
+				return true;
+		return false;
+	}
+
+	/**
+	 * @return The number of times a request is retried.
+	 */
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * Set the number of times a request is retried (default 2).
+	 * 
+	 * @param maxRetries The number of retries, 0 to never retry.
+	 * @return This policy.
+	 */
+	public RetryPolicy setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+		return this;
+	}
+
+	/**
+	 * @return The backoff before the first retry.
+	 */
+	public long getInitialBackoff() {
+		return initialBackoff;
+	}
+
+	/**
+	 * Set the backoff before the first retry (default 500ms). Each retry after it waits multiplier times longer.
+	 * 
+	 * @param initialBackoff The backoff in milliseconds.
+	 * @return This policy.
+	 */
+	public RetryPolicy setInitialBackoff(long initialBackoff) {
+		this.initialBackoff = initialBackoff;
+		return this;
+	}
+
+	/**
+	 * @return The longest backoff.
+	 */
+	public long getMaxBackoff() {
+		return maxBackoff;
+	}
+
+	/**
+	 * Set the longest backoff (default 30000ms). A Retry-After longer than this is not waited for and the request fails.
+	 * 
+	 * @param maxBackoff The backoff in milliseconds.
+	 * @return This policy.
+	 */
+	public RetryPolicy setMaxBackoff(long maxBackoff) {
+		this.maxBackoff = maxBackoff;
+		return this;
+	}
+
+	/**
+	 * @return The factor the backoff grows by with every retry.
+	 */
+	public double getMultiplier() {
+		return multiplier;
+	}
+
+	/**
+	 * Set the factor the backoff grows by with every retry (default 2).
+	 * 
+	 * @param multiplier The factor.
+	 * @return This policy.
+	 */
+	public RetryPolicy setMultiplier(double multiplier) {
+		this.multiplier = multiplier;
+		return this;
+	}
+
+	/**
+	 * @return True if POST requests are retried.
+	 */
+	public boolean isRetryPost() {
+		return retryPost;
+	}
+
+	/**
+	 * Retry POST requests too (default false). Only turn this on if the server handles a POST sent twice.
+	 * 
+	 * @param retryPost True to retry POST requests.
+	 * @return This policy.
+	 */
+	public RetryPolicy setRetryPost(boolean retryPost) {
+		this.retryPost = retryPost;
+		return this;
+	}
+
+	/**
+	 * @return The status codes that are retried.
+	 */
+	public int[] getRetryStatusCodes() {
+		return retryStatusCodes.clone();
+	}
+
+	/**
+	 * Set the status codes that are retried (default 408, 429, 502, 503 and 504).
+	 * 
+	 * @param retryStatusCodes The status codes.
+	 * @return This policy.
+	 */
+	public RetryPolicy setRetryStatusCodes(int... retryStatusCodes) {
+		this.retryStatusCodes = retryStatusCodes.clone();
+		return this;
+	}
+}
@@ -0,0 +1,206 @@
+package com.example.networkrequestsapi;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks Hpack against the examples of RFC 7541 Appendix C.
+ *
+ * @author Saquib Hafiz
+ *
+ */
+public class HpackTest extends TestCase {
+
+	public void testRequestsWithoutHuffman() throws IOException {
+		// C.3
+		Hpack.Decoder decoder = new Hpack.Decoder();
+		assertHeaders(decoder.decode(bytes("828684410f7777772e6578616d706c652e636f6d")),
+				":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+		assertHeaders(decoder.decode(bytes("828684be58086e6f2d6361636865")),
+				":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+				"cache-control", "no-cache");
+		assertHeaders(decoder.decode(bytes("828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565")),
+				":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+				"custom-key", "custom-value");
+	}
+
+	public void testRequestsWithHuffman() throws IOException {
+		// C.4
+		Hpack.Decoder decoder = new Hpack.Decoder();
+		assertHeaders(decoder.decode(bytes("828684418cf1e3c2e5f23a6ba0ab90f4ff")),
+				":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+		assertHeaders(decoder.decode(bytes("828684be5886a8eb10649cbf")),
+				":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+				"cache-control", "no-cache");
+		assertHeaders(decoder.decode(bytes("828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf")),
+				":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+				"custom-key", "custom-value");
+	}
+
+	public void testEncoderMatchesHuffmanRequests() {
+		// The encoder indexes and Huffman codes the same way as C.4, so it gives the same bytes.
+		Hpack.Encoder encoder = new Hpack.Encoder();
+		assertEquals("828684418cf1e3c2e5f23a6ba0ab90f4ff", hex(encoder.encode(headers(
+				":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com"))));
+		assertEquals("828684be5886a8eb10649cbf", hex(encoder.encode(headers(
+				":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+				"cache-control", "no-cache"))));
+		assertEquals("828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf", hex(encoder.encode(headers(
+				":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+				"custom-key", "custom-value"))));
+	}
+
+	public void testResponsesWithoutHuffmanEvict() throws IOException {
+		// C.5, with the 256 byte table of the example set by a size update.
+		Hpack.Decoder decoder = new Hpack.Decoder();
+		assertHeaders(decoder.decode(bytes("3fe101" + "4803333032580770726976617465611d4d6f6e2c203231204f6374"
+				+ "20323031332032303a31333a323120474d546e1768747470733a2f2f7777772e6578616d706c652e636f6d")),
+				":status", "302", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+				"location", "https://www.example.com");
+		// Adding ":status: 307" evicts ":status: 302".
+		assertHeaders(decoder.decode(bytes("4803333037c1c0bf")),
+				":status", "307", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+				"location", "https://www.example.com");
+		assertHeaders(decoder.decode(bytes("88c1611d4d6f6e2c203231204f637420323031332032303a31333a323220474d54c05a04"
+				+ "677a69707738666f6f3d4153444a4b48514b425a584f5157454f50495541585157454f49553b206d61782d6167"
+				+ "653d333630303b2076657273696f6e3d31")),
+				":status", "200", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:22 GMT",
+				"location", "https://www.example.com", "content-encoding", "gzip",
+				"set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1");
+
+		// Only set-cookie, content-encoding and the second date are left, at 62 to 64.
+		assertHeaders(decoder.decode(bytes("bebfc0")),
+				"set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1",
+				"content-encoding", "gzip", "date", "Mon, 21 Oct 2013 20:13:22 GMT");
+		assertDecodeFails(decoder, "c1");
+	}
+
+	public void testResponsesWithHuffmanEvict() throws IOException {
+		// C.6
+		Hpack.Decoder decoder = new Hpack.Decoder();
+		assertHeaders(decoder.decode(bytes("3fe101" + "488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e0"
+				+ "82a62d1bff6e919d29ad171863c78f0b97c8e9ae82ae43d3")),
+				":status", "302", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+				"location", "https://www.example.com");
+		assertHeaders(decoder.decode(bytes("4883640effc1c0bf")),
+				":status", "307", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+				"location", "https://www.example.com");
+		assertHeaders(decoder.decode(bytes("88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab77ad94e782"
+				+ "1dd7f2e6c7b335dfdfcd5b3960d5af27087f3672c1ab270fb5291f9587316065c003ed4ee5b1063d5007")),
+				":status", "200", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:22 GMT",
+				"location", "https://www.example.com", "content-encoding", "gzip",
+				"set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1");
+		assertDecodeFails(decoder, "c1");
+	}
+
+	public void testEncoderFollowsSmallerTable() throws IOException {
+		Hpack.Encoder encoder = new Hpack.Encoder();
+		Hpack.Decoder decoder = new Hpack.Decoder();
+		encoder.setMaxTableSize(256);
+
+		// 256 takes the 5 bit prefix and two more bytes, as 1337 does in C.1.2.
+		byte[] first = encoder.encode(headers("x-first", "1"));
+		assertEquals("3fe101", hex(first).substring(0, 6));
+		assertHeaders(decoder.decode(first), "x-first", "1");
+
+		// Each of these takes 32 + 7 + 100 bytes, so only one fits and each evicts the one before at both ends.
+		String value = repeat('a', 100);
+		assertHeaders(decoder.decode(encoder.encode(headers("x-value", value))), "x-value", value);
+		assertHeaders(decoder.decode(encoder.encode(headers("x-other", value))), "x-other", value);
+		byte[] again = encoder.encode(headers("x-value", value, "x-other", value));
+		assertEquals(0x40, again[0] & 0xc0);
+		assertHeaders(decoder.decode(again), "x-value", value, "x-other", value);
+	}
+
+	public void testSensitiveHeadersAreNeverIndexed() throws IOException {
+		Hpack.Encoder encoder = new Hpack.Encoder();
+		byte[] block = encoder.encode(headers("authorization", "secret"));
+		// Never indexed, with the static name index 23 in the 4 bit prefix.
+		assertEquals(0x1f, block[0] & 0xff);
+		assertEquals(0x08, block[1] & 0xff);
+		assertEquals(block.length, encoder.encode(headers("authorization", "secret")).length);
+		assertHeaders(new Hpack.Decoder().decode(block), "authorization", "secret");
+	}
+
+	public void testHuffmanRoundTrip() throws IOException {
+		Hpack.Encoder encoder = new Hpack.Encoder();
+		Hpack.Decoder decoder = new Hpack.Decoder();
+		StringBuilder everyByte = new StringBuilder();
+		for (int i = 0; i < 256; i++)
+			everyByte.append((char) i);
+		// Long enough to need a multi byte length, and common enough characters that Huffman is shorter.
+		String text = repeat('e', 300) + "/path?query=1&x=y";
+
+		List<String[]> sent = headers("x-text", text, "x-bytes", everyByte.toString(), "x-empty", "");
+		byte[] block = encoder.encode(sent);
+		assertHeaders(decoder.decode(block), "x-text", text, "x-bytes", everyByte.toString(), "x-empty", "");
+		assertTrue(block.length < text.length() + everyByte.length());
+	}
+
+	public void testInvalidBlocksFail() {
+		Hpack.Decoder decoder = new Hpack.Decoder();
+		// Eight bits of padding.
+		assertDecodeFails(decoder, "000161" + "81ff");
+		// The EOS code itself.
+		assertDecodeFails(decoder, "000161" + "84ffffffff");
+		// Past the end of the static table with an empty dynamic table.
+		assertDecodeFails(decoder, "be");
+		// Index 0.
+		assertDecodeFails(decoder, "80");
+		// A table size above the 4096 the client allows.
+		assertDecodeFails(decoder, "3fe21f");
+		// A length past the end of the block.
+		assertDecodeFails(decoder, "00016185616263");
+		// An integer that never ends.
+		assertDecodeFails(decoder, "ffffffffffffffff");
+	}
+
+	private static void assertDecodeFails(Hpack.Decoder decoder, String hex) {
+		try {
+			decoder.decode(bytes(hex));
+			fail("Decoded " + hex);
+		} catch (IOException e) {
+		}
+	}
+
+	private static void assertHeaders(List<String[]> actual, String... expected) {
+		List<String> flat = new ArrayList<String>();
+		for (String[] header : actual) {
+			flat.add(header[0]);
+			flat.add(header[1]);
+		}
+		assertEquals(Arrays.asList(expected), flat);
+	}
+
+	static List<String[]> headers(String... namesAndValues) {
+		List<String[]> headers = new ArrayList<String[]>();
+		for (int i = 0; i < namesAndValues.length; i += 2)
+			headers.add(new String[] { namesAndValues[i], namesAndValues[i + 1] });
+		return headers;
+	}
+
+	private static String repeat(char c, int count) {
+		StringBuilder value = new StringBuilder(count);
+		for (int i = 0; i < count; i++)
+			value.append(c);
+		return value.toString();
+	}
+
+	static byte[] bytes(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		return bytes;
+	}
+
+	static String hex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			hex.append(Character.forDigit((b >>> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		return hex.toString();
+	}
+}
@@ -0,0 +1,407 @@
+package com.example.networkrequestsapi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.util.EntityUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * Drives an Http2Session with frames built by hand, standing in for the server.
+ *
+ * @author Saquib Hafiz
+ *
+ */
+public class Http2SessionTest extends TestCase {
+	private static final int DATA = 0x0;
+	private static final int HEADERS = 0x1;
+	private static final int RST_STREAM = 0x3;
+	private static final int SETTINGS = 0x4;
+	private static final int PUSH_PROMISE = 0x5;
+	private static final int PING = 0x6;
+	private static final int GOAWAY = 0x7;
+	private static final int WINDOW_UPDATE = 0x8;
+	private static final int CONTINUATION = 0x9;
+
+	private static final int END_STREAM = 0x1;
+	private static final int ACK = 0x1;
+	private static final int END_HEADERS = 0x4;
+	private static final int PADDED = 0x8;
+
+	private static final String PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n";
+
+	private static class Frame {
+		final int type;
+		final int flags;
+		final int streamId;
+		final byte[] payload;
+
+		Frame(int type, int flags, int streamId, byte[] payload) {
+			this.type = type;
+			this.flags = flags;
+			this.streamId = streamId;
+			this.payload = payload;
+		}
+
+		int getInt(int offset) {
+			return ByteBuffer.wrap(payload).getInt(offset);
+		}
+	}
+
+	private final List<String> responses = new ArrayList<String>();
+	private final List<HttpResponse> responseObjects = new ArrayList<HttpResponse>();
+	private final List<String> failures = new ArrayList<String>();
+	private final Hpack.Encoder serverEncoder = new Hpack.Encoder();
+	private final Hpack.Decoder serverDecoder = new Hpack.Decoder();
+	private Http2Session<String> session;
+
+	@Override
+	protected void setUp() throws Exception {
+		session = new Http2Session<String>(new Http2Session.Listener<String>() {
+			@Override
+			public void onResponse(String owner, HttpResponse response, long headersAt) {
+				try {
+					responses.add(owner + " " + response.getStatusLine().getStatusCode() + " "
+							+ EntityUtils.toString(response.getEntity(), "ISO-8859-1"));
+				} catch (IOException e) {
+					throw new AssertionError(e);
+				}
+				responseObjects.add(response);
+			}
+
+			@Override
+			public void onStreamActivity(String owner) {
+			}
+
+			@Override
+			public void onStreamFailed(String owner, IOException error, boolean refused) {
+				failures.add(owner + (refused ? " refused" : " failed"));
+			}
+		});
+	}
+
+	public void testStartSendsPrefaceSettingsAndWindow() throws IOException {
+		session.start();
+		byte[] written = drain();
+		assertEquals(PREFACE, new String(written, 0, PREFACE.length(), "ISO-8859-1"));
+
+		List<Frame> frames = parse(Arrays.copyOfRange(written, PREFACE.length(), written.length));
+		assertEquals(2, frames.size());
+		Frame settings = frames.get(0);
+		assertEquals(SETTINGS, settings.type);
+		// Push disabled and a 1MB stream window.
+		assertEquals("000200000000" + "000400100000", HpackTest.hex(settings.payload));
+		Frame window = frames.get(1);
+		assertEquals(WINDOW_UPDATE, window.type);
+		assertEquals(0, window.streamId);
+		assertEquals(16 * 1024 * 1024 - 65535, window.getInt(0));
+	}
+
+	public void testFrameBeforeSettingsFails() {
+		session.start();
+		drain();
+		try {
+			receive(frame(PING, 0, 0, new byte[8]));
+			fail("Accepted a PING before the settings.");
+		} catch (IOException e) {
+			assertTrue(e instanceof ProtocolException);
+		}
+	}
+
+	public void testSettingsAreAcknowledged() throws IOException {
+		startConfirmed();
+		receive(frame(PING, 0, 0, HpackTest.bytes("0102030405060708")));
+		List<Frame> frames = parse(drain());
+		assertEquals(1, frames.size());
+		assertEquals(PING, frames.get(0).type);
+		assertEquals(ACK, frames.get(0).flags);
+		assertEquals("0102030405060708", HpackTest.hex(frames.get(0).payload));
+	}
+
+	public void testRequestAndResponse() throws IOException {
+		startConfirmed();
+		session.openStream("a", "GET", "https", "example.com", "/index.html",
+				HpackTest.headers("accept", "text/plain"), null);
+
+		List<Frame> frames = parse(drain());
+		assertEquals(1, frames.size());
+		Frame request = frames.get(0);
+		assertEquals(HEADERS, request.type);
+		assertEquals(END_HEADERS | END_STREAM, request.flags);
+		assertEquals(1, request.streamId);
+		List<String[]> headers = serverDecoder.decode(request.payload);
+		assertEquals(":method GET", headers.get(0)[0] + " " + headers.get(0)[1]);
+		assertEquals(":path /index.html", headers.get(3)[0] + " " + headers.get(3)[1]);
+		assertEquals("accept text/plain", headers.get(4)[0] + " " + headers.get(4)[1]);
+
+		receive(frame(HEADERS, END_HEADERS, 1, responseHeaders("200", "content-type", "text/plain")));
+		// Padded, with two bytes of padding.
+		receive(frame(DATA, PADDED, 1, HpackTest.bytes("02" + "68656c" + "0000")));
+		receive(frame(DATA, END_STREAM, 1, "lo".getBytes("ISO-8859-1")));
+		assertEquals(Collections.singletonList("a 200 hello"), responses);
+		assertEquals("text/plain", responseObjects.get(0).getFirstHeader("content-type").getValue());
+		assertEquals(0, session.getStreamCount());
+	}
+
+	public void testFramesSplitAcrossReads() throws IOException {
+		startConfirmed();
+		session.openStream("a", "GET", "https", "example.com", "/", HpackTest.headers(), null);
+		drain();
+
+		ByteArrayOutputStream server = new ByteArrayOutputStream();
+		server.write(frame(HEADERS, END_HEADERS, 1, responseHeaders("200")));
+		server.write(frame(DATA, END_STREAM, 1, "body".getBytes("ISO-8859-1")));
+		for (byte b : server.toByteArray())
+			session.onBytes(ByteBuffer.wrap(new byte[] { b }));
+		assertEquals(Collections.singletonList("a 200 body"), responses);
+	}
+
+	public void testContinuationIsReassembled() throws IOException {
+		startConfirmed();
+		session.openStream("a", "GET", "https", "example.com", "/", HpackTest.headers(), null);
+		drain();
+
+		byte[] block = responseHeaders("200", "x-long", repeat('v', 200), "x-other", "value");
+		int third = block.length / 3;
+		receive(frame(HEADERS, 0, 1, Arrays.copyOfRange(block, 0, third)));
+		receive(frame(CONTINUATION, 0, 1, Arrays.copyOfRange(block, third, 2 * third)));
+		assertTrue(responses.isEmpty());
+		receive(frame(CONTINUATION, END_HEADERS, 1, Arrays.copyOfRange(block, 2 * third, block.length)));
+		receive(frame(DATA, END_STREAM, 1, new byte[0]));
+
+		assertEquals(Collections.singletonList("a 200 "), responses);
+		HttpResponse response = responseObjects.get(0);
+		assertEquals(repeat('v', 200), response.getFirstHeader("x-long").getValue());
+		assertEquals("value", response.getFirstHeader("x-other").getValue());
+	}
+
+	public void testInterruptedHeaderBlockFails() throws IOException {
+		startConfirmed();
+		session.openStream("a", "GET", "https", "example.com", "/", HpackTest.headers(), null);
+		session.openStream("b", "GET", "https", "example.com", "/", HpackTest.headers(), null);
+		drain();
+
+		byte[] block = responseHeaders("200");
+		receive(frame(HEADERS, 0, 1, Arrays.copyOfRange(block, 0, 1)));
+		try {
+			receive(frame(CONTINUATION, END_HEADERS, 3, Arrays.copyOfRange(block, 1, block.length)));
+			fail("Accepted a CONTINUATION for another stream.");
+		} catch (ProtocolException e) {
+		}
+	}
+
+	public void testLargeRequestHeadersAreContinued() throws IOException {
+		startConfirmed();
+		// Random enough that HPACK can not shrink it below one frame.
+		StringBuilder value = new StringBuilder();
+		Random random = new Random(1);
+		for (int i = 0; i < 20000; i++)
+			value.append((char) ('!' + random.nextInt(90)));
+		session.openStream("a", "GET", "https", "example.com", "/", HpackTest.headers("x-big", value.toString()), null);
+
+		List<Frame> frames = parse(drain());
+		assertEquals(2, frames.size());
+		assertEquals(HEADERS, frames.get(0).type);
+		assertEquals(END_STREAM, frames.get(0).flags);
+		assertEquals(16384, frames.get(0).payload.length);
+		assertEquals(CONTINUATION, frames.get(1).type);
+		assertEquals(END_HEADERS, frames.get(1).flags);
+
+		ByteArrayOutputStream block = new ByteArrayOutputStream();
+		block.write(frames.get(0).payload);
+		block.write(frames.get(1).payload);
+		List<String[]> headers = serverDecoder.decode(block.toByteArray());
+		assertEquals(value.toString(), headers.get(4)[1]);
+	}
+
+	public void testRequestBodyFollowsStreamWindow() throws IOException {
+		session.start();
+		drain();
+		receive(frame(SETTINGS, 0, 0, HpackTest.bytes("0004" + "0000000a")));
+		drain();
+
+		session.openStream("a", "POST", "https", "example.com", "/", HpackTest.headers(), new byte[25]);
+		List<Frame> frames = parse(drain());
+		assertEquals(2, frames.size());
+		assertEquals(HEADERS, frames.get(0).type);
+		assertEquals(0, frames.get(0).flags & END_STREAM);
+		assertData(frames.get(1), 10, false);
+
+		receive(frame(WINDOW_UPDATE, 0, 1, HpackTest.bytes("0000000a")));
+		frames = parse(drain());
+		assertEquals(1, frames.size());
+		assertData(frames.get(0), 10, false);
+
+		// A larger initial window also grows the window of the open stream.
+		receive(frame(SETTINGS, 0, 0, HpackTest.bytes("0004" + "00000014")));
+		frames = parse(drain());
+		assertEquals(SETTINGS, frames.get(0).type);
+		assertData(frames.get(1), 5, true);
+	}
+
+	public void testRequestBodyFollowsConnectionWindow() throws IOException {
+		session.start();
+		drain();
+		receive(frame(SETTINGS, 0, 0, HpackTest.bytes("0004" + "00100000")));
+		drain();
+
+		session.openStream("a", "POST", "https", "example.com", "/", HpackTest.headers(), new byte[70000]);
+		List<Frame> frames = parse(drain());
+		assertEquals(HEADERS, frames.get(0).type);
+		assertEquals(65535, sentData(frames.subList(1, frames.size())));
+
+		receive(frame(WINDOW_UPDATE, 0, 0, HpackTest.bytes("00010000")));
+		frames = parse(drain());
+		assertEquals(70000 - 65535, sentData(frames));
+		assertEquals(END_STREAM, frames.get(frames.size() - 1).flags);
+	}
+
+	public void testReceivedDataIsAcknowledged() throws IOException {
+		startConfirmed();
+		session.openStream("a", "GET", "https", "example.com", "/", HpackTest.headers(), null);
+		drain();
+		receive(frame(HEADERS, END_HEADERS, 1, responseHeaders("200")));
+
+		// Half of the 1MB stream window.
+		byte[] chunk = new byte[16384];
+		for (int i = 0; i < 31; i++)
+			receive(frame(DATA, 0, 1, chunk));
+		assertEquals(0, parse(drain()).size());
+		receive(frame(DATA, 0, 1, chunk));
+
+		List<Frame> frames = parse(drain());
+		assertEquals(1, frames.size());
+		assertEquals(WINDOW_UPDATE, frames.get(0).type);
+		assertEquals(1, frames.get(0).streamId);
+		assertEquals(32 * 16384, frames.get(0).getInt(0));
+	}
+
+	public void testGoAwayFailsLaterStreams() throws IOException {
+		startConfirmed();
+		session.openStream("a", "GET", "https", "example.com", "/", HpackTest.headers(), null);
+		session.openStream("b", "GET", "https", "example.com", "/", HpackTest.headers(), null);
+		session.openStream("c", "GET", "https", "example.com", "/", HpackTest.headers(), null);
+		drain();
+
+		// The last stream the server processes is 3.
+		receive(frame(GOAWAY, 0, 0, HpackTest.bytes("00000003" + "00000000")));
+		assertTrue(session.isGoingAway());
+		assertFalse(session.canOpenStream());
+		assertEquals(Collections.singletonList("c refused"), failures);
+		assertEquals(2, session.getStreamCount());
+
+		receive(frame(HEADERS, END_HEADERS | END_STREAM, 3, responseHeaders("204")));
+		assertEquals(Collections.singletonList("b 204 "), responses);
+	}
+
+	public void testResetStream() throws IOException {
+		startConfirmed();
+		session.openStream("a", "GET", "https", "example.com", "/", HpackTest.headers(), null);
+		session.openStream("b", "GET", "https", "example.com", "/", HpackTest.headers(), null);
+		drain();
+
+		receive(frame(RST_STREAM, 0, 1, HpackTest.bytes("00000007")));
+		receive(frame(RST_STREAM, 0, 3, HpackTest.bytes("00000002")));
+		assertEquals(Arrays.asList("a refused", "b failed"), failures);
+		assertEquals(0, session.getStreamCount());
+	}
+
+	public void testPushPromiseFails() throws IOException {
+		startConfirmed();
+		try {
+			receive(frame(PUSH_PROMISE, END_HEADERS, 1, HpackTest.bytes("00000002")));
+			fail("Accepted a PUSH_PROMISE.");
+		} catch (ProtocolException e) {
+		}
+	}
+
+	private void startConfirmed() throws IOException {
+		session.start();
+		receive(frame(SETTINGS, 0, 0, new byte[0]));
+		assertTrue(session.isConfirmed());
+		byte[] written = drain();
+		List<Frame> frames = parse(Arrays.copyOfRange(written, PREFACE.length(), written.length));
+		Frame ack = frames.get(frames.size() - 1);
+		assertEquals(SETTINGS, ack.type);
+		assertEquals(ACK, ack.flags);
+	}
+
+	private byte[] responseHeaders(String status, String... namesAndValues) {
+		List<String[]> headers = HpackTest.headers(namesAndValues);
+		headers.add(0, new String[] { ":status", status });
+		return serverEncoder.encode(headers);
+	}
+
+	private void receive(byte[] bytes) throws IOException {
+		session.onBytes(ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * @return Everything the session has queued to write.
+	 */
+	private byte[] drain() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ByteBuffer next;
+		while ((next = session.nextOutput()) != null) {
+			byte[] bytes = new byte[next.remaining()];
+			next.get(bytes);
+			out.write(bytes, 0, bytes.length);
+		}
+		return out.toByteArray();
+	}
+
+	private static int sentData(List<Frame> frames) {
+		int sent = 0;
+		for (Frame frame : frames) {
+			assertEquals(DATA, frame.type);
+			assertTrue(frame.payload.length <= 16384);
+			sent += frame.payload.length;
+		}
+		return sent;
+	}
+
+	private static void assertData(Frame frame, int length, boolean last) {
+		assertEquals(DATA, frame.type);
+		assertEquals(1, frame.streamId);
+		assertEquals(length, frame.payload.length);
+		assertEquals(last ? END_STREAM : 0, frame.flags);
+	}
+
+	private static byte[] frame(int type, int flags, int streamId, byte[] payload) {
+		ByteBuffer frame = ByteBuffer.allocate(9 + payload.length);
+		frame.put((byte) (payload.length >>> 16)).put((byte) (payload.length >>> 8)).put((byte) payload.length);
+		frame.put((byte) type).put((byte) flags).putInt(streamId).put(payload);
+		return frame.array();
+	}
+
+	private static List<Frame> parse(byte[] bytes) {
+		List<Frame> frames = new ArrayList<Frame>();
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) {
+			int length = ((buffer.get() & 0xff) << 16) | ((buffer.get() & 0xff) << 8) | (buffer.get() & 0xff);
+			int type = buffer.get() & 0xff;
+			int flags = buffer.get() & 0xff;
+			int streamId = buffer.getInt() & Integer.MAX_VALUE;
+			byte[] payload = new byte[length];
+			buffer.get(payload);
+			frames.add(new Frame(type, flags, streamId, payload));
+		}
+		return frames;
+	}
+
+	private static String repeat(char c, int count) {
+		StringBuilder value = new StringBuilder(count);
+		for (int i = 0; i < count; i++)
+			value.append(c);
+		return value.toString();
+	}
+}